@@ -17,6 +17,17 @@ public final class Preferences {
      * Port number of Sockso server
      */
     public static final String PORT = "port";
+
+    /**
+     * Other addresses of the same Sockso server, as comma separated "host:port"
+     * (e.g. a WAN address when the host name is the LAN one)
+     */
+    public static final String ALTERNATE_SERVERS = "alternate_servers";
+    
+    /**
+     * Keep a copy of the library in memory for browsing (see LibrarySnapshot)
+     */
+    public static final String LIBRARY_SNAPSHOT = "library_snapshot";
         
     
 }
@@ -1,23 +1,117 @@
 package com.pugh.sockso.android;
 
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.pugh.sockso.android.api.ServerCapabilities;
+import com.pugh.sockso.android.net.ApiResponseCache;
+import com.pugh.sockso.android.net.RequestExecutor;
+import com.pugh.sockso.android.net.ServerEndpoints;
 
+/**
+ * Hands out the SocksoServer for the configured host and port (and alternate addresses).
+ * <p/>
+ * The server is built once and kept until one of those preferences changes.
+ */
 public class ServerFactory {
 
     private static final String TAG = ServerFactory.class.getSimpleName();
 
+    private static SocksoServer sServer;
+
+    // SharedPreferences only keeps weak references to its listeners
+    private static OnSharedPreferenceChangeListener sListener;
+
     private ServerFactory() {}
 
-    public static SocksoServer getServer(final Context context) {
+    public static synchronized SocksoServer getServer(final Context context) {
+
+        if (sServer != null) {
+            return sServer;
+        }
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
+        if (sListener == null) {
+
+            sListener = new OnSharedPreferenceChangeListener() {
+
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+
+                    if (Preferences.HOSTNAME.equals(key) || Preferences.PORT.equals(key)
+                            || Preferences.ALTERNATE_SERVERS.equals(key)) {
+                        Log.d(TAG, "Server changed");
+                        clearServer();
+                    }
+                }
+            };
+
+            prefs.registerOnSharedPreferenceChangeListener(sListener);
+        }
+
         String host = prefs.getString(Preferences.HOSTNAME, null);
         int    port = Integer.parseInt(prefs.getString(Preferences.PORT, "4444"));
 
-        return new SocksoServerImpl(host, port);
+        List<String> rootUrls = new ArrayList<String>();
+        rootUrls.add("http://" + host + ":" + port);
+
+        for (String address : prefs.getString(Preferences.ALTERNATE_SERVERS, "").split(",")) {
+
+            address = address.trim();
+
+            if (address.length() == 0) {
+                continue;
+            }
+
+            String rootUrl = "http://" + (address.indexOf(':') == -1 ? address + ":" + port : address);
+
+            if (! rootUrls.contains(rootUrl)) {
+                rootUrls.add(rootUrl);
+            }
+        }
+
+        sServer = new SocksoServerImpl(new ServerEndpoints(context, rootUrls), ApiResponseCache.getInstance(context));
+
+        return sServer;
+    }
+
+    private static synchronized void clearServer() {
+        sServer = null;
+    }
+
+    /**
+     * Looks up the server and connects to it in the background, so the first real
+     * request doesn't have to (see SocksoServer.warmUp()), and finds out what it can do
+     */
+    public static void warmUp(final Context context) {
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        if (prefs.getString(Preferences.HOSTNAME, null) == null) {
+            return; // no account yet
+        }
+
+        final SocksoServer server = getServer(context);
+
+        RequestExecutor.getInstance().submit(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+                server.warmUp();
+
+                // Known before the first sync, cover or stream needs them
+                ServerCapabilities.get(server);
+                return null;
+            }
+        }, RequestExecutor.PRIORITY_PREFETCH, RequestExecutor.NO_DEADLINE, null);
     }
 }
@@ -10,6 +10,38 @@ public interface SocksoServer {
 
     public Bitmap downloadBitmap(String url);
 
+    /**
+     * Downloads the cover scaled to the size on the server, only for servers that support it
+     * (see ServerCapabilities.SIZED_COVERS)
+     */
+    public Bitmap downloadBitmap(String musicItemId, int width, int height);
+
     public String doGet(String url) throws IOException;
 
+    /**
+     * Asks for the size of what's at the URL (e.g. a stream) with a HEAD request,
+     * returns -1 if the server doesn't say (chunked responses)
+     */
+    public long getContentLength(String url) throws IOException;
+
+    public void warmUp();
+
+    /**
+     * A request to the URL made outside of this server (e.g. a stream) couldn't reach it,
+     * returns true if the server's requests now go to another endpoint
+     */
+    public boolean reportFailure(String url);
+
+    /**
+     * Returns the URL (e.g. of a stream) moved to the endpoint in use now, if it was built for
+     * another one of the server's endpoints
+     */
+    public String rebase(String url);
+
+    /**
+     * Returns false while the server can't be reached (every address has failed repeatedly),
+     * requests then fail straight away, so work from what's stored locally
+     */
+    public boolean isAvailable();
+
 }
@@ -6,39 +6,63 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Collections;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
-import org.apache.http.util.EntityUtils;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Log;
 
+import com.pugh.sockso.android.net.ApiResponseCache;
+import com.pugh.sockso.android.net.ContentDecoder;
+import com.pugh.sockso.android.net.HttpMetrics;
+import com.pugh.sockso.android.net.RequestContext;
+import com.pugh.sockso.android.net.RetryPolicy;
+import com.pugh.sockso.android.net.ServerEndpoints;
+import com.pugh.sockso.android.net.ServerUnavailableException;
+import com.pugh.sockso.android.net.SharedHttpClient;
+import com.pugh.sockso.android.net.TrafficPolicy;
+
 // Singleton
 public class SocksoServerImpl implements SocksoServer {
 
     private static final String TAG = SocksoServerImpl.class.getSimpleName();
 
     // private String mAuthToken; // TODO Session
-    private final String mRootUrl;
+
+    // Where the server can be reached
+    private final ServerEndpoints mEndpoints;
+
+    // Cache of API responses, may be null
+    private final ApiResponseCache mCache;
 
     // TODO Singleton?
     public SocksoServerImpl(final String server, final int port) {
-        mRootUrl = "http://" + server + ":" + port;
+        this(server, port, null);
+    }
+
+    public SocksoServerImpl(final String server, final int port, final ApiResponseCache cache) {
+        this(new ServerEndpoints(Collections.singletonList("http://" + server + ":" + port)), cache);
+    }
+
+    public SocksoServerImpl(final ServerEndpoints endpoints, final ApiResponseCache cache) {
+        mEndpoints = endpoints;
+        mCache     = cache;
     }
 
     public String getRootUrl() {
-        return mRootUrl;
+        return mEndpoints.getRootUrl();
     }
 
     /*
@@ -76,8 +100,16 @@ public class SocksoServerImpl implements SocksoServer {
     }
 
     public Bitmap downloadBitmap(String musicItemId) {
+        return downloadBitmap(musicItemId, 0, 0);
+    }
+
+    public Bitmap downloadBitmap(String musicItemId, int width, int height) {
 
         String url = getRootUrl() + "/file/cover/" + musicItemId;
+
+        if (width > 0 && height > 0) {
+            url += "?width=" + width + "&height=" + height;
+        }
         
         HttpParams httpParameters = new BasicHttpParams();
         
@@ -91,15 +123,40 @@ public class SocksoServerImpl implements SocksoServer {
         int timeoutSocket = 5000;  // 5 seconds
         HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);
         
-        final HttpClient client = new DefaultHttpClient(httpParameters);
+        final HttpClient client = SharedHttpClient.get();
         final HttpGet getRequest = new HttpGet(url);
+        // The timeouts are for this request only, the client is shared
+        getRequest.setParams(httpParameters);
+        final RequestContext context = RequestContext.current();
        
+        // Don't keep trying a dead host for every cover on screen
+        if (! mEndpoints.allowRequest(url)) {
+            return null;
+        }
+
+        int statusCode = 0;
+        boolean settled = false; // whether the endpoint's been told how it went
+        HttpMetrics.begin(url);
+
         try {
+            if (context != null) {
+                context.begin(getRequest);
+            }
+
             HttpResponse response = client.execute(getRequest);
-            final int statusCode = response.getStatusLine().getStatusCode();
+            HttpMetrics.firstByte();
+
+            statusCode = response.getStatusLine().getStatusCode();
+            mEndpoints.reportSuccess(url);
+            settled = true;
 
             if (statusCode != HttpStatus.SC_OK) { // 200 OK
                 Log.w(TAG, "Error " + statusCode + " while retrieving bitmap from " + url);
+
+                // Releases the connection back to the pool
+                if (response.getEntity() != null) {
+                    response.getEntity().consumeContent();
+                }
                 return null;
             }
 
@@ -107,10 +164,14 @@ public class SocksoServerImpl implements SocksoServer {
 
             if (entity != null) {
 
+                if (entity.getContentLength() > 0) {
+                    HttpMetrics.bytesIn(entity.getContentLength());
+                }
+
                 InputStream inputStream = null;
 
                 try {
-                    inputStream = entity.getContent();
+                    inputStream = TrafficPolicy.throttle(entity.getContent());
 
                     return BitmapFactory.decodeStream(inputStream);
                 }
@@ -124,7 +185,14 @@ public class SocksoServerImpl implements SocksoServer {
         }
         catch (IOException e) {
             getRequest.abort();
+            HttpMetrics.failed(e);
             Log.w(TAG, "I/O error while retrieving bitmap from " + url, e);
+
+            // The next cover comes from another endpoint, if there is one
+            if (context == null || ! context.isCancelled()) {
+                mEndpoints.reportFailure(url);
+                settled = true;
+            }
         }
         catch (IllegalStateException e) {
             getRequest.abort();
@@ -134,14 +202,64 @@ public class SocksoServerImpl implements SocksoServer {
             getRequest.abort();
             Log.w(TAG, "Error while retrieving bitmap from " + url, e);
         }
+        finally {
+            if (! settled) {
+                mEndpoints.reportAbandoned(url);
+            }
+            if (context != null) {
+                context.end(getRequest);
+            }
+            HttpMetrics.end(statusCode); // no-op if it was recorded as failed
+        }
 
         return null;
     }
 
+    /**
+     * GETs are idempotent, so one that fails is retried straight away on the endpoint that's
+     * been failed over to if there is one, else after a backoff if the failure might not
+     * happen again (see RetryPolicy).
+     *
+     * @throws ServerUnavailableException if the server's circuit breakers are open, and there's
+     *                                    no cached response to fall back on
+     */
     public String doGet(String url) throws IOException {
+
+        for (int attempt = 1; ; attempt++) {
+
+            // Built before a failover, it has to go to the endpoint in use now
+            url = mEndpoints.rebase(url);
+
+            try {
+                return get(url);
+            }
+            catch (IOException e) {
+
+                RequestContext context = RequestContext.current();
+
+                if ((context != null && context.isCancelled()) || e instanceof ServerUnavailableException) {
+                    throw e;
+                }
+
+                boolean switched = mEndpoints.reportFailure(url);
+
+                if (attempt == RetryPolicy.MAX_ATTEMPTS || ! (switched || RetryPolicy.isRetryable(e))) {
+                    throw e;
+                }
+
+                Log.d(TAG, "doGet() retrying after " + e);
+
+                // No need to wait for another endpoint
+                if (! switched) {
+                    RetryPolicy.backOff(attempt);
+                }
+            }
+        }
+    }
+
+    private String get(String url) throws IOException {
         Log.d(TAG, "doGet() url: " + url);
 
-        String data = null;
         URI encodedUri = null;
 
         try {
@@ -153,38 +271,245 @@ public class SocksoServerImpl implements SocksoServer {
         }
 
         HttpGet httpGet = new HttpGet(encodedUri);
+        ContentDecoder.acceptCompressed(httpGet);
+
+        ApiResponseCache.Entry cached = null;
+
+        if (mCache != null && mCache.isCacheable(url)) {
+
+            cached = mCache.get(url);
+
+            if (cached != null) {
+
+                if (cached.isFresh()) {
+                    Log.d(TAG, "doGet() fresh in cache");
+                    return mCache.hit(url, cached);
+                }
+
+                mCache.addConditionalHeaders(httpGet, cached);
+            }
+        }
 
-        HttpClient httpClient = new DefaultHttpClient();
-        HttpResponse httpResponse = null;
+        if (! mEndpoints.allowRequest(url)) {
+
+            // Offline, a stale answer beats none
+            if (cached != null) {
+                Log.d(TAG, "doGet() server unavailable, stale from cache");
+                return mCache.hit(url, cached);
+            }
+
+            throw new ServerUnavailableException(url);
+        }
+
+        // So cancelling the request (see RequestExecutor) aborts the connection
+        RequestContext context = RequestContext.current();
 
         try {
-            httpResponse = httpClient.execute(httpGet);
+            if (context != null) {
+                context.begin(httpGet);
+            }
+
+            HttpMetrics.begin(url);
 
-            // response headers
-            Log.d(TAG, "Http Response: " + httpResponse.toString());
-            Log.d(TAG, "Status: " + httpResponse.getStatusLine());
-            for (Header h : httpResponse.getAllHeaders()) {
-                Log.d(TAG, h.getName() + ": " + h.getValue());
+            String data = fetch(url, httpGet, cached);
+            mEndpoints.reportSuccess(url);
+
+            return data;
+        }
+        catch (IOException e) {
+            HttpMetrics.failed(e);
+
+            // Other failures are reported by doGet(), a cancelled request says nothing about the endpoint
+            if (context != null && context.isCancelled()) {
+                mEndpoints.reportAbandoned(url);
             }
 
+            throw e;
         }
-        catch (ClientProtocolException e) {
-            Log.e(TAG, "Error in HTTP protocol: " + e.getMessage());
-            e.printStackTrace();
+        catch (RuntimeException e) {
+            mEndpoints.reportAbandoned(url);
+            throw e;
+        }
+        finally {
+            if (context != null) {
+                context.end(httpGet);
+            }
+        }
+    }
+
+    private String fetch(String url, HttpGet httpGet, ApiResponseCache.Entry cached) throws IOException {
+
+        String data = null;
+
+        HttpClient httpClient = SharedHttpClient.get();
+
+        // A protocol error is thrown on (it's an IOException), there's no response to read
+        HttpResponse httpResponse = httpClient.execute(httpGet);
+        HttpMetrics.firstByte();
+
+        // response headers
+        Log.d(TAG, "Http Response: " + httpResponse.toString());
+        Log.d(TAG, "Status: " + httpResponse.getStatusLine());
+        for (Header h : httpResponse.getAllHeaders()) {
+            Log.d(TAG, h.getName() + ": " + h.getValue());
         }
 
         HttpEntity httpEntity = httpResponse.getEntity();
+        int statusCode = httpResponse.getStatusLine().getStatusCode();
+
+        if (statusCode >= 500) {
+
+            if (httpEntity != null) {
+                httpEntity.consumeContent();
+            }
+
+            HttpMetrics.end(statusCode);
+
+            // Thrown so it can be retried
+            throw new HttpResponseException(statusCode, httpResponse.getStatusLine().getReasonPhrase());
+        }
+
+        if (cached != null && httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+
+            if (httpEntity != null) {
+                httpEntity.consumeContent();
+            }
+
+            HttpMetrics.end(HttpStatus.SC_NOT_MODIFIED);
+
+            return mCache.revalidated(url, cached, httpResponse);
+        }
 
         if (httpEntity != null) {
 
-            data = EntityUtils.toString(httpEntity);
+            // Decompressed as it's read
+            data = ContentDecoder.toString(httpEntity);
             // clean the contents of the response
             httpEntity.consumeContent();
         }
 
+        if (mCache != null && mCache.isCacheable(url) && httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+            mCache.put(url, httpResponse, data);
+        }
+
+        HttpMetrics.end(httpResponse.getStatusLine().getStatusCode());
+
         return data;
     }
 
+    /**
+     * Blocks, don't call it on the main thread. Made once, a failed stream is failed over by its
+     * player (see reportFailure()).
+     */
+    public long getContentLength(String url) throws IOException {
+
+        url = mEndpoints.rebase(url);
+
+        if (! mEndpoints.allowRequest(url)) {
+            throw new ServerUnavailableException(url);
+        }
+
+        HttpHead httpHead = new HttpHead(url);
+        RequestContext context = RequestContext.current();
+        boolean settled = false;
+
+        try {
+            if (context != null) {
+                context.begin(httpHead);
+            }
+
+            // Recorded under /stream/*, it's the connection the player's stream will use
+            HttpMetrics.begin(url);
+
+            HttpResponse httpResponse = SharedHttpClient.get().execute(httpHead);
+            HttpMetrics.firstByte();
+
+            int statusCode = httpResponse.getStatusLine().getStatusCode();
+            HttpMetrics.end(statusCode);
+
+            if (statusCode >= 500) {
+                throw new HttpResponseException(statusCode, httpResponse.getStatusLine().getReasonPhrase());
+            }
+
+            mEndpoints.reportSuccess(url);
+            settled = true;
+
+            Header length = httpResponse.getFirstHeader("Content-Length");
+
+            if (statusCode != HttpStatus.SC_OK || length == null) {
+                return -1;
+            }
+
+            try {
+                return Long.parseLong(length.getValue());
+            }
+            catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        catch (IOException e) {
+            HttpMetrics.failed(e);
+
+            // A cancelled request says nothing about the endpoint
+            if (context == null || ! context.isCancelled()) {
+                mEndpoints.reportFailure(url);
+                settled = true;
+            }
+
+            throw e;
+        }
+        finally {
+            if (! settled) {
+                mEndpoints.reportAbandoned(url);
+            }
+
+            if (context != null) {
+                context.end(httpHead);
+            }
+        }
+    }
+
+    public boolean reportFailure(String url) {
+        return mEndpoints.reportFailure(url);
+    }
+
+    public String rebase(String url) {
+        return mEndpoints.rebase(url);
+    }
+
+    public boolean isAvailable() {
+        return mEndpoints.isAvailable();
+    }
+
+    /**
+     * Looks up the server's address and opens a connection to it (by fetching the server info,
+     * bypassing the cache), which the shared client keeps alive for the next request.
+     * Blocks, don't call it on the main thread.
+     */
+    public void warmUp() {
+
+        String url = getRootUrl() + "/api";
+        HttpGet httpGet = new HttpGet(url);
+
+        HttpMetrics.begin(url);
+
+        try {
+            HttpResponse httpResponse = SharedHttpClient.get().execute(httpGet);
+            HttpMetrics.firstByte();
+
+            if (httpResponse.getEntity() != null) {
+                httpResponse.getEntity().consumeContent();
+            }
+
+            HttpMetrics.end(httpResponse.getStatusLine().getStatusCode());
+        }
+        catch (IOException e) {
+            httpGet.abort();
+            HttpMetrics.failed(e);
+            Log.d(TAG, "warmUp() failed: " + e.getMessage());
+        }
+    }
+
     /*
      * public HttpResponse doPost(HttpPost httpPost) throws IOException {
      * DefaultHttpClient httpClient = new DefaultHttpClient();
@@ -28,6 +28,7 @@ import android.widget.TextView;
 import com.pugh.sockso.android.R;
 import com.pugh.sockso.android.data.CoverArtFetcher;
 import com.pugh.sockso.android.data.MusicManager;
+import com.pugh.sockso.android.data.MusicRepository;
 import com.pugh.sockso.android.data.SocksoProvider;
 import com.pugh.sockso.android.data.SocksoProvider.AlbumColumns;
 import com.pugh.sockso.android.data.SocksoProvider.TrackColumns;
@@ -133,20 +134,29 @@ public class AlbumActivity extends FragmentActivity {
 
             mAlbumDetailsView = inflater.inflate(R.layout.album_details_header, null, false);
 
-            Album album = MusicManager.getAlbum(getActivity().getContentResolver() , mAlbumId);
-
-            TextView artistText = (TextView) mAlbumDetailsView.findViewById(R.id.album_artist_id);
-            artistText.setText(album.getArtist());
-
-            TextView titleText = (TextView) mAlbumDetailsView.findViewById(R.id.album_title_id);
-            titleText.setText(album.getName());
+            final TextView artistText = (TextView) mAlbumDetailsView.findViewById(R.id.album_artist_id);
+            final TextView titleText = (TextView) mAlbumDetailsView.findViewById(R.id.album_title_id);
 
             // Album Cover
-            ImageView albumCover = (ImageView) mAlbumDetailsView.findViewById(R.id.album_image_id);
+            final ImageView albumCover = (ImageView) mAlbumDetailsView.findViewById(R.id.album_image_id);
 
-            CoverArtFetcher coverFetcher = new CoverArtFetcher(getActivity());
+            final CoverArtFetcher coverFetcher = new CoverArtFetcher(getActivity());
             coverFetcher.setDimensions(150, 150);
-            coverFetcher.loadCoverArtAlbum(album.getServerId(), albumCover);
+
+            MusicRepository.getInstance(getActivity()).getAlbum(mAlbumId, new MusicRepository.Callback<Album>() {
+
+                @Override
+                public void onResult(Album album) {
+
+                    if (album == null) {
+                        return;
+                    }
+
+                    artistText.setText(album.getArtist());
+                    titleText.setText(album.getName());
+                    coverFetcher.loadCoverArtAlbum(album.getServerId(), albumCover);
+                }
+            });
 
             ImageButton playButton = (ImageButton) mAlbumDetailsView.findViewById(R.id.play_album_button);
 
@@ -21,14 +21,20 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.ListView;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.pugh.sockso.android.Preferences;
 import com.pugh.sockso.android.R;
 import com.pugh.sockso.android.data.CoverArtFetcher;
 import com.pugh.sockso.android.data.MusicManager;
+import com.pugh.sockso.android.data.PagedCursorLoader;
 import com.pugh.sockso.android.data.SocksoProvider;
 import com.pugh.sockso.android.data.SocksoProvider.AlbumColumns;
+import com.pugh.sockso.android.data.SocksoProvider.SectionColumns;
+import com.pugh.sockso.android.data.SortKey;
+import com.pugh.sockso.android.widget.PagedSectionIndexer;
+import com.pugh.sockso.android.widget.PagingScrollListener;
 
 public class AlbumListFragmentActivity extends FragmentActivity {
 
@@ -56,12 +62,15 @@ public class AlbumListFragmentActivity extends FragmentActivity {
     }
 
     // Custom list view item (cover image | artist/album text)
-    public static class AlbumCursorAdapter extends SimpleCursorAdapter {
+    public static class AlbumCursorAdapter extends SimpleCursorAdapter implements SectionIndexer {
 
         private Context mContext;
         private int mLayout;
         private CoverArtFetcher mCoverFetcher;
 
+        // Letter sections of the sort keys, for fast scrolling
+        private final PagedSectionIndexer mIndexer = new PagedSectionIndexer(SortKey.SECTIONS, AlbumColumns.SORT_KEY);
+
         
         public AlbumCursorAdapter(Context context, int layout, Cursor cursor, String[] from, int[] to, int flags) {
             super(context, layout, cursor, from, to, flags);
@@ -91,6 +100,31 @@ public class AlbumListFragmentActivity extends FragmentActivity {
             return view;
         }
 
+        public PagedSectionIndexer getSectionIndexer() {
+            return mIndexer;
+        }
+
+        @Override
+        public Cursor swapCursor(Cursor newCursor) {
+            mIndexer.setCursor(newCursor);
+            return super.swapCursor(newCursor);
+        }
+
+        @Override
+        public Object[] getSections() {
+            return mIndexer.getSections();
+        }
+
+        @Override
+        public int getPositionForSection(int section) {
+            return mIndexer.getPositionForSection(section);
+        }
+
+        @Override
+        public int getSectionForPosition(int position) {
+            return mIndexer.getSectionForPosition(position);
+        }
+
         @Override
         public void bindView(View view, Context context, Cursor cursor) {
             Log.d(TAG, "bindView() ran");
@@ -119,6 +153,7 @@ public class AlbumListFragmentActivity extends FragmentActivity {
         private final static String TAG = AlbumListFragment.class.getSimpleName();
 
         private static final int ALBUM_LIST_LOADER = 1;
+        private static final int SECTIONS_LOADER = 2;
 
         private AlbumCursorAdapter mAdapter;
 
@@ -139,7 +174,16 @@ public class AlbumListFragmentActivity extends FragmentActivity {
             // Start out with a progress indicator
             setListShown(false);
             
+            // The sections are tiny, so the fast scroller has them before the first page
+            getLoaderManager().initLoader(SECTIONS_LOADER, null, this);
             getLoaderManager().initLoader(ALBUM_LIST_LOADER, null, this);
+            
+            // Load more of the list as it's scrolled (or fast scrolled)
+            PagingScrollListener pager = new PagingScrollListener(getLoaderManager(), ALBUM_LIST_LOADER);
+            mAdapter.getSectionIndexer().setPagingListener(pager);
+            
+            getListView().setOnScrollListener(pager);
+            getListView().setFastScrollEnabled(true);
         }
 
         @Override
@@ -162,16 +206,28 @@ public class AlbumListFragmentActivity extends FragmentActivity {
         public Loader<Cursor> onCreateLoader(int id, Bundle args) {
             Log.i(TAG, "onCreateLoader() ran");
 
-            String[] projection = { AlbumColumns._ID, AlbumColumns.SERVER_ID, AlbumColumns.NAME,
+            if (id == SECTIONS_LOADER) {
+                String[] projection = { SectionColumns.SECTION, SectionColumns.ROW_COUNT };
+                Uri contentUri = Uri.parse(SocksoProvider.CONTENT_URI + "/" + SectionColumns.TABLE_NAME + "/"
+                        + AlbumColumns.TABLE_NAME);
+                return new CursorLoader(getActivity(), contentUri, projection, null, null, null);
+            }
+
+            String[] projection = { AlbumColumns._ID, AlbumColumns.SERVER_ID, AlbumColumns.NAME, AlbumColumns.SORT_KEY,
                     AlbumColumns.ARTIST_NAME };
             Uri contentUri = Uri.parse(SocksoProvider.CONTENT_URI + "/" + AlbumColumns.TABLE_NAME);
-            CursorLoader cursorLoader = new CursorLoader(getActivity(), contentUri, projection, null, null, AlbumColumns.FULL_NAME + " ASC");
-
-            return cursorLoader;
+            // Sorted by sort key (then _id), one page at a time
+            return new PagedCursorLoader(getActivity(), contentUri, projection, AlbumColumns.SORT_KEY);
         }
 
         @Override
         public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+
+            if (loader.getId() == SECTIONS_LOADER) {
+                mAdapter.getSectionIndexer().setSectionCounts(cursor);
+                return;
+            }
+
             Log.d(TAG, "onLoadFinished: " + cursor.getCount());
             mAdapter.swapCursor(cursor);
             
@@ -185,6 +241,12 @@ public class AlbumListFragmentActivity extends FragmentActivity {
 
         @Override
         public void onLoaderReset(Loader<Cursor> loader) {
+
+            if (loader.getId() == SECTIONS_LOADER) {
+                mAdapter.getSectionIndexer().setSectionCounts(null);
+                return;
+            }
+
             mAdapter.swapCursor(null);
         }
 
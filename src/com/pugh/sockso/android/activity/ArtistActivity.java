@@ -27,6 +27,7 @@ import android.widget.TextView;
 import com.pugh.sockso.android.R;
 import com.pugh.sockso.android.data.CoverArtFetcher;
 import com.pugh.sockso.android.data.MusicManager;
+import com.pugh.sockso.android.data.MusicRepository;
 import com.pugh.sockso.android.data.SocksoProvider;
 import com.pugh.sockso.android.data.SocksoProvider.AlbumColumns;
 import com.pugh.sockso.android.data.SocksoProvider.ArtistColumns;
@@ -138,10 +139,17 @@ public class ArtistActivity extends FragmentActivity {
 
             mArtistDetailsView = inflater.inflate(R.layout.artist_details_header, null, false);
             
-            Artist artist = MusicManager.getArtist(getActivity().getContentResolver() , mArtistId);
+            final TextView titleText = (TextView) mArtistDetailsView.findViewById(R.id.artist_title_id);
 
-            TextView titleText = (TextView) mArtistDetailsView.findViewById(R.id.artist_title_id);
-            titleText.setText(artist.getName());
+            MusicRepository.getInstance(getActivity()).getArtist(mArtistId, new MusicRepository.Callback<Artist>() {
+
+                @Override
+                public void onResult(Artist artist) {
+                    if (artist != null) {
+                        titleText.setText(artist.getName());
+                    }
+                }
+            });
 
             return super.onCreateView(inflater, container, savedInstanceState);
         }
@@ -192,7 +200,7 @@ public class ArtistActivity extends FragmentActivity {
             Uri contentUri = Uri.parse(SocksoProvider.CONTENT_URI + "/" + ArtistColumns.TABLE_NAME + "/" + mArtistId
                     + "/" + AlbumColumns.TABLE_NAME);
             CursorLoader cursorLoader = new CursorLoader(getActivity(), contentUri, projection, null, null,
-                    AlbumColumns.FULL_NAME + " ASC");
+                    AlbumColumns.FULL_SORT_KEY + " ASC");
 
             return cursorLoader;
         }
@@ -21,14 +21,20 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.ListView;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.pugh.sockso.android.Preferences;
 import com.pugh.sockso.android.R;
 import com.pugh.sockso.android.data.CoverArtFetcher;
 import com.pugh.sockso.android.data.MusicManager;
+import com.pugh.sockso.android.data.PagedCursorLoader;
 import com.pugh.sockso.android.data.SocksoProvider;
 import com.pugh.sockso.android.data.SocksoProvider.ArtistColumns;
+import com.pugh.sockso.android.data.SocksoProvider.SectionColumns;
+import com.pugh.sockso.android.data.SortKey;
+import com.pugh.sockso.android.widget.PagedSectionIndexer;
+import com.pugh.sockso.android.widget.PagingScrollListener;
 
 public class ArtistListFragmentActivity extends FragmentActivity {
 
@@ -55,12 +61,15 @@ public class ArtistListFragmentActivity extends FragmentActivity {
     }
 
     // Custom list view item (cover image | artist text)
-    public static class ArtistCursorAdapter extends SimpleCursorAdapter {
+    public static class ArtistCursorAdapter extends SimpleCursorAdapter implements SectionIndexer {
 
         private Context mContext;
         private int mLayout;
         private CoverArtFetcher mCoverFetcher;
 
+        // Letter sections of the sort keys, for fast scrolling
+        private final PagedSectionIndexer mIndexer = new PagedSectionIndexer(SortKey.SECTIONS, ArtistColumns.SORT_KEY);
+
 
         public ArtistCursorAdapter(Context context, int layout, Cursor cursor, String[] from, int[] to, int flags) {
             super(context, layout, cursor, from, to, flags);
@@ -88,6 +97,31 @@ public class ArtistListFragmentActivity extends FragmentActivity {
             return view;
         }
 
+        public PagedSectionIndexer getSectionIndexer() {
+            return mIndexer;
+        }
+
+        @Override
+        public Cursor swapCursor(Cursor newCursor) {
+            mIndexer.setCursor(newCursor);
+            return super.swapCursor(newCursor);
+        }
+
+        @Override
+        public Object[] getSections() {
+            return mIndexer.getSections();
+        }
+
+        @Override
+        public int getPositionForSection(int section) {
+            return mIndexer.getPositionForSection(section);
+        }
+
+        @Override
+        public int getSectionForPosition(int position) {
+            return mIndexer.getSectionForPosition(position);
+        }
+
         @Override
         public void bindView(View view, Context context, Cursor cursor) {
             Log.d(TAG, "bindView() ran");
@@ -113,6 +147,7 @@ public class ArtistListFragmentActivity extends FragmentActivity {
         private final static String TAG = ArtistListFragment.class.getSimpleName();
 
         private static final int ARTIST_LIST_LOADER = 1;
+        private static final int SECTIONS_LOADER = 2;
 
         private ArtistCursorAdapter mAdapter;
 
@@ -133,7 +168,16 @@ public class ArtistListFragmentActivity extends FragmentActivity {
             // Start out with a progress indicator
             setListShown(false);
 
+            // The sections are tiny, so the fast scroller has them before the first page
+            getLoaderManager().initLoader(SECTIONS_LOADER, null, this);
             getLoaderManager().initLoader(ARTIST_LIST_LOADER, null, this);
+            
+            // Load more of the list as it's scrolled (or fast scrolled)
+            PagingScrollListener pager = new PagingScrollListener(getLoaderManager(), ARTIST_LIST_LOADER);
+            mAdapter.getSectionIndexer().setPagingListener(pager);
+            
+            getListView().setOnScrollListener(pager);
+            getListView().setFastScrollEnabled(true);
         }
 
         @Override
@@ -156,15 +200,27 @@ public class ArtistListFragmentActivity extends FragmentActivity {
         public Loader<Cursor> onCreateLoader(int id, Bundle args) {
             Log.i(TAG, "onCreateLoader() ran");
 
-            String[] projection = { ArtistColumns._ID, ArtistColumns.SERVER_ID, ArtistColumns.NAME };
-            Uri contentUri = Uri.parse(SocksoProvider.CONTENT_URI + "/" + ArtistColumns.TABLE_NAME);
-            CursorLoader cursorLoader = new CursorLoader(getActivity(), contentUri, projection, null, null, ArtistColumns.FULL_NAME + " ASC");
+            if (id == SECTIONS_LOADER) {
+                String[] projection = { SectionColumns.SECTION, SectionColumns.ROW_COUNT };
+                Uri contentUri = Uri.parse(SocksoProvider.CONTENT_URI + "/" + SectionColumns.TABLE_NAME + "/"
+                        + ArtistColumns.TABLE_NAME);
+                return new CursorLoader(getActivity(), contentUri, projection, null, null, null);
+            }
 
-            return cursorLoader;
+            String[] projection = { ArtistColumns._ID, ArtistColumns.SERVER_ID, ArtistColumns.NAME, ArtistColumns.SORT_KEY };
+            Uri contentUri = Uri.parse(SocksoProvider.CONTENT_URI + "/" + ArtistColumns.TABLE_NAME);
+            // Sorted by sort key (then _id), one page at a time
+            return new PagedCursorLoader(getActivity(), contentUri, projection, ArtistColumns.SORT_KEY);
         }
 
         @Override
         public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+
+            if (loader.getId() == SECTIONS_LOADER) {
+                mAdapter.getSectionIndexer().setSectionCounts(cursor);
+                return;
+            }
+
             Log.d(TAG, "onLoadFinished: " + cursor.getCount());
             mAdapter.swapCursor(cursor);
             
@@ -179,6 +235,12 @@ public class ArtistListFragmentActivity extends FragmentActivity {
         @Override
         public void onLoaderReset(Loader<Cursor> arg0) {
             Log.d(TAG, "onLoaderReset() ran");
+
+            if (arg0.getId() == SECTIONS_LOADER) {
+                mAdapter.getSectionIndexer().setSectionCounts(null);
+                return;
+            }
+
             mAdapter.swapCursor(null);
         }
 
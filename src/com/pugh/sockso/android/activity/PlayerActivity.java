@@ -1,7 +1,5 @@
 package com.pugh.sockso.android.activity;
 
-import java.util.List;
-
 import android.app.Activity;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -13,6 +11,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.view.Menu;
@@ -29,8 +28,10 @@ import android.widget.Toast;
 import com.pugh.sockso.android.R;
 import com.pugh.sockso.android.data.CoverArtFetcher;
 import com.pugh.sockso.android.data.MusicManager;
-import com.pugh.sockso.android.music.Track;
+import com.pugh.sockso.android.data.MusicRepository;
 import com.pugh.sockso.android.player.MusicUtils;
+import com.pugh.sockso.android.player.PlaybackOrder;
+import com.pugh.sockso.android.player.PlaybackState;
 import com.pugh.sockso.android.player.PlayerService;
 
 public class PlayerActivity extends Activity {
@@ -65,15 +66,26 @@ public class PlayerActivity extends Activity {
     // Service that is playing music in the background
     private PlayerService mService;
 
+    // Latest player state, as broadcast by the PlayerService
+    private PlaybackState mState = PlaybackState.EMPTY;
+
+    // Track the cover art is currently shown for
+    private long mCoverTrackId = -1;
+
     // Is this activity bound to the PlayerService?
     private boolean mIsBound = false;
 
     // Is the activity paused?
     private boolean mIsActivityPaused = false;
     
-    private boolean mIsShuffling = false;
-    private boolean mIsRepeating = false;
     private boolean mProgressIsSeeking = false;
+
+    // What the progress views currently show, so they're only redrawn when that changes
+    private int mShownSecond   = -1;
+    private int mShownProgress = -1;
+
+    // Reused for formatting the current position
+    private final char[] mPositionChars = new char[MusicUtils.TIMER_BUFFER_SIZE];
     
     // Intent actions
     public static final String ACTION_PLAY_TRACK  = "com.pugh.sockso.android.player.ACTION_PLAY_TRACK";
@@ -242,6 +254,7 @@ public class PlayerActivity extends Activity {
                 Log.d(TAG, "onStopTrackingTouch() ran: " + seekBar.getProgress());
                 seekTo(seekBar.getProgress());
                 mProgressIsSeeking = false;
+                mShownProgress = -1;
             }
         });
         
@@ -255,7 +268,7 @@ public class PlayerActivity extends Activity {
         }
         
         // Seek position in msecs
-        int seekPos = MusicUtils.progressToTimer(progress, mService.getDuration());
+        int seekPos = MusicUtils.progressToTimer(progress, mState.getDuration());
         
         mService.seekTo(seekPos);
     }
@@ -305,8 +318,7 @@ public class PlayerActivity extends Activity {
 
                 case REFRESH:
                     
-                    long next = refreshTime();
-                    queueNextRefresh(next);
+                    queueNextRefresh(refreshTime());
                     
                     break;
                 default:
@@ -316,13 +328,14 @@ public class PlayerActivity extends Activity {
     };
 
     
+    // delay < 0 means nothing is moving, so no refresh is needed until the next broadcast
     private void queueNextRefresh( long delay ) {
         //Log.d(TAG, "queueNextRefresh() delay: " + delay);
         
-        if ( ! mIsActivityPaused ) {
-            Message message = mHandler.obtainMessage(REFRESH);
-            mHandler.removeMessages(REFRESH);
-            mHandler.sendMessageDelayed(message, delay);
+        mHandler.removeMessages(REFRESH);
+        
+        if ( ! mIsActivityPaused && delay >= 0 ) {
+            mHandler.sendEmptyMessageDelayed(REFRESH, delay);
         }
     }
     
@@ -335,9 +348,21 @@ public class PlayerActivity extends Activity {
             
             String action = intent.getAction();
             
+            // Everything needed to update the UI comes with the broadcast
+            PlaybackState state = intent.getParcelableExtra(PlaybackState.EXTRA);
+            if ( state != null ) {
+                mState = state;
+            }
+            
             if ( action.equals(PlayerService.PLAYSTATE_CHANGE) ) {
                 Log.d(TAG, "Track stopped/resumed");
                 setPlayButtonImage();
+                setShuffleButtonImage();
+                setRepeatButtonImage();
+                queueNextRefresh(refreshTime());
+            }
+            else if ( action.equals(PlayerService.TRACK_BUFFERING) ) {
+                mTrackProgressBar.setSecondaryProgress(mState.getBufferedPercent());
             }
             else if ( action.equals(PlayerService.TRACK_STARTED) 
                    || action.equals(PlayerService.TRACK_CHANGED) ) {
@@ -345,8 +370,7 @@ public class PlayerActivity extends Activity {
                 
                 setPlayButtonImage();
                 updateTrackInfo();
-                //long next = refreshTime();
-                //queueNextRefresh(next);
+                queueNextRefresh(refreshTime());
             }
             else if (action.equals(PlayerService.TRACK_ERROR)) {
                 Log.d(TAG, "Track error");
@@ -430,11 +454,13 @@ public class PlayerActivity extends Activity {
         }
            
         // Update the UI
+        mState = mService.getState();
         setPlayButtonImage();
+        setShuffleButtonImage();
+        setRepeatButtonImage();
         updateTrackInfo();
 
-        long next = refreshTime();
-        queueNextRefresh(next);
+        queueNextRefresh(refreshTime());
         
         // Reset the intent that started this activity
         // This is important: if the activity stops and then re-starts,
@@ -451,34 +477,21 @@ public class PlayerActivity extends Activity {
             return;
         }
         
-        Track serviceTrack = mService.getTrack();
-
         // Only start track if the track is different
-        if (serviceTrack == null || trackId != serviceTrack.getId()) {
+        if (trackId != mService.getTrackId()) {
             Log.d(TAG, "Playing track: " + trackId);
 
-            Track track = MusicManager.getTrack(getContentResolver(), trackId);
-
             mService.stop(); // stop whatever is currently playing
-            mService.open(track);
-            // updateTrackInfo();
+            mService.open(trackId);
             // Service starts playback asynchronously
             play();
         }
-        else {
-            // just update the UI
-            // setRepeatButtonImage();
-            // setShuffleButtonImage();
-            setPlayButtonImage();
-            updateTrackInfo();
-        }
         
-        long next = refreshTime();
-        queueNextRefresh(next);
+        queueNextRefresh(refreshTime());
     }  
     
     
-    private void playAlbum( long albumId, int trackPos ) {
+    private void playAlbum( long albumId, final int trackPos ) {
         Log.d(TAG, "playAlbum() called");
 
         if (mService == null) {
@@ -486,17 +499,25 @@ public class PlayerActivity extends Activity {
             return;
         }
 
-        List<Track> tracks = MusicManager.getTrackForAlbum(getContentResolver(), albumId);
+        MusicRepository.getInstance(this).getTrackIdsForAlbum(albumId, new MusicRepository.Callback<long[]>() {
 
-        mService.stop(); // stop whatever is currently playing
-        mService.open(tracks);
-        mService.setPlaylistPosition(trackPos);
-        // updateTrackInfo();
-        // Service starts playback asynchronously
-        play();
-        
-        long next = refreshTime();
-        queueNextRefresh(next);
+            @Override
+            public void onResult(long[] trackIds) {
+
+                // The service may have gone while the tracks were looked up
+                if (mService == null) {
+                    return;
+                }
+
+                mService.stop(); // stop whatever is currently playing
+                mService.open(trackIds);
+                mService.setPlaylistPosition(trackPos);
+                // Service starts playback asynchronously
+                play();
+
+                queueNextRefresh(refreshTime());
+            }
+        });
     }  
     
     
@@ -512,19 +533,15 @@ public class PlayerActivity extends Activity {
     private void updateTrackInfo() {
         Log.d(TAG, "updateTrackInfo() called");
         
-        if (mService == null) {
-            return;
-        }
-        
-        Track track = mService.getTrack();
+        PlaybackState state = mState;
         
-        if ( track != null ) {
+        if ( state.hasTrack() ) {
             
-            //mArtistNameLabel.setText(track.getArtist());
-            //mAlbumNameLabel.setText(track.getAlbum());
-            mTrackNameLabel.setText(track.getName());
+            //mArtistNameLabel.setText(state.getArtistName());
+            //mAlbumNameLabel.setText(state.getAlbumName());
+            mTrackNameLabel.setText(state.getTrackName());
             
-            int duration = mService.getDuration();
+            int duration = state.getDuration();
             Log.d(TAG, "duration: " + duration);
             
             String durationLabel = "--:--";
@@ -534,42 +551,52 @@ public class PlayerActivity extends Activity {
             }
 
             mTrackTotalDurationLabel.setText(durationLabel);
+            mTrackProgressBar.setSecondaryProgress(state.getBufferedPercent());
             
-            CoverArtFetcher coverFetcher = new CoverArtFetcher(this);
-            coverFetcher.setDimensions(300, 300);
-            coverFetcher.loadCoverArtTrack(track.getServerId(), mAlbumCover);
+            // The track info gets updated when the track changes and again when it starts,
+            // only fetch the cover once
+            if ( state.getTrackId() != mCoverTrackId ) {
+                mCoverTrackId = state.getTrackId();
+                
+                CoverArtFetcher coverFetcher = new CoverArtFetcher(this);
+                coverFetcher.setDimensions(300, 300);
+                coverFetcher.loadCoverArtTrack(state.getServerId(), mAlbumCover);
+            }
         }
     }
 
     // This should update the parts of the UI that need to change quickly and often:
     // * progress bar
     // * timers
+    // The position is extrapolated from the last state the service broadcast, and views are
+    // only touched when what they show changes. Nothing is allocated here.
+    // Returns the delay until the next refresh is needed (the next whole second), or -1
     private long refreshTime() {
         
-        long half = 500; // half a second
-        long whole = 1000; // whole second
-        
-        if ( mService == null ) {
-            return half;
-        }
+        PlaybackState state = mState;
+        int position = state.getPosition(SystemClock.elapsedRealtime());
         
-        int position = mService.getPosition();
-        int progress = 0;
+        int second = position / 1000;
         
-        if ( position > 0 ) {          
-
-            int duration = mService.getDuration();
-            progress = MusicUtils.getProgressPercentage(position, duration);
-            String currentTime = MusicUtils.millisToTimer(position);
-            mTrackCurrentDurationLabel.setText(currentTime);
+        if ( second != mShownSecond ) {
+            mShownSecond = second;
+            int length = MusicUtils.millisToTimer(position, mPositionChars);
+            mTrackCurrentDurationLabel.setText(mPositionChars, 0, length);
         }
         
+        int progress = MusicUtils.getProgressPercentage(position, state.getDuration());
+        
         //Log.d(TAG, "refreshTime() progress: " + progress);
-        if ( ! mProgressIsSeeking ) {
+        if ( ! mProgressIsSeeking && progress != mShownProgress ) {
+            mShownProgress = progress;
             mTrackProgressBar.setProgress(progress);
         }
         
-        return whole;
+        if ( state.getPlayState() != PlaybackState.STATE_PLAYING ) {
+            return -1;
+        }
+        
+        return 1000 - (position % 1000);
     }
     
     
@@ -597,6 +624,7 @@ public class PlayerActivity extends Activity {
         intentFilter.addAction(PlayerService.PLAYSTATE_CHANGE);
         intentFilter.addAction(PlayerService.TRACK_CHANGED);
         intentFilter.addAction(PlayerService.TRACK_ERROR);
+        intentFilter.addAction(PlayerService.TRACK_BUFFERING);
         LocalBroadcastManager.getInstance(this).registerReceiver(mStatusListener, new IntentFilter(intentFilter));
     }
 
@@ -644,7 +672,7 @@ public class PlayerActivity extends Activity {
 
     protected void togglePlayPause() {
 
-        if (mService == null || mService.getTrack() == null) {
+        if (mService == null || mService.getTrackId() == -1) {
             return;
         }
         
@@ -656,21 +684,18 @@ public class PlayerActivity extends Activity {
         } 
     }
 
+    // The UI gets updated once the service broadcasts the new state
     private void play() {
-        
         mService.play();
-        setPlayButtonImage();              
     }
     
     private void pause() {
-        
         mService.pause();
-        setPlayButtonImage();
     }
     
     protected void setPlayButtonImage() {
         
-        if (mService != null && mService.isPlaying()) {
+        if (mState.isPlaying()) {
             mPlayButton.setImageResource(R.drawable.btn_pause);
         }
         else {
@@ -679,32 +704,62 @@ public class PlayerActivity extends Activity {
     }
 
     protected void toggleShuffle() {
-        // TODO Auto-generated method stub
 
+        if (mService == null) {
+            return;
+        }
+
+        boolean shuffle = ! mService.isShuffling();
+        mService.setShuffle(shuffle);
+
+        Toast.makeText(this, shuffle ? R.string.shuffle_on : R.string.shuffle_off, Toast.LENGTH_SHORT).show();
     }
 
     protected void setShuffleButtonImage() {
 
-        if (mIsShuffling) {
-            mShuffleButton.setImageResource(R.drawable.btn_shuffle);
+        if (mState.isShuffling()) {
+            mShuffleButton.setImageResource(R.drawable.btn_shuffle_focused);
         }
         else {
-            mShuffleButton.setImageResource(R.drawable.btn_shuffle_focused);
+            mShuffleButton.setImageResource(R.drawable.btn_shuffle);
         }
     }
 
+    // Cycles through the repeat modes: off -> all -> one -> off
     protected void toggleRepeat() {
-        // TODO Auto-generated method stub
 
+        if (mService == null) {
+            return;
+        }
+
+        int message;
+
+        switch (mService.getRepeatMode()) {
+
+        case PlaybackOrder.REPEAT_NONE:
+            mService.setRepeatMode(PlaybackOrder.REPEAT_ALL);
+            message = R.string.repeat_all;
+            break;
+        case PlaybackOrder.REPEAT_ALL:
+            mService.setRepeatMode(PlaybackOrder.REPEAT_ONE);
+            message = R.string.repeat_one;
+            break;
+        default:
+            mService.setRepeatMode(PlaybackOrder.REPEAT_NONE);
+            message = R.string.repeat_off;
+            break;
+        }
+
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
     }
 
     protected void setRepeatButtonImage() {
 
-        if (mIsRepeating) {
-            mRepeatButton.setImageResource(R.drawable.btn_repeat);
+        if (mState.getRepeatMode() != PlaybackOrder.REPEAT_NONE) {
+            mRepeatButton.setImageResource(R.drawable.btn_repeat_focused);
         }
         else {
-            mRepeatButton.setImageResource(R.drawable.btn_repeat_focused);
+            mRepeatButton.setImageResource(R.drawable.btn_repeat);
         }
     }
 
@@ -1,33 +1,31 @@
 package com.pugh.sockso.android.activity;
 
-import java.util.Map;
-import java.util.TreeMap;
-
 import android.app.SearchManager;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.ListFragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.widget.SimpleCursorAdapter;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
-import android.util.SparseIntArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.pugh.sockso.android.R;
 import com.pugh.sockso.android.data.MusicManager;
-import com.pugh.sockso.android.data.SocksoProvider;
+import com.pugh.sockso.android.data.SearchLoader;
 import com.pugh.sockso.android.data.SocksoProvider.AlbumColumns;
 import com.pugh.sockso.android.data.SocksoProvider.ArtistColumns;
 import com.pugh.sockso.android.data.SocksoProvider.SearchColumns;
@@ -72,18 +70,28 @@ public class SearchActivity extends FragmentActivity {
 
         private int mLayout;
         private LayoutInflater mInflater;
-        private MusicItemIndexer mIndexer;
 
-        private int[] mUsedSectionNumbers = null; // List of sections "used" sections (ones with 1 or more list items)
-        private SparseIntArray mSectionToOffset; // The number to offset the section by in the list
-        private Map<Integer, Integer> mSectionToPosition; // The section to list position mapping
+        // Built once per cursor (see initIndexer()), indexed by list position:
+        private int[] mPositionToRow     = new int[0]; // cursor row, or ROW_HEADER/ROW_MORE
+        private int[] mPositionToSection = new int[0]; // section the list item is in
+
+        // List position of each section's header. Sections without results point at the next
+        // section's header (or the end of the list), as the FastScroller requires
+        private int[] mSectionToPosition = new int[SECTIONS.length];
+        
+        // Sections that have more results than shown, and so get a "show more" item
+        private boolean[] mMoreSections = new boolean[SECTIONS.length];
+        
+        private final static int ROW_HEADER = -1;
+        private final static int ROW_MORE   = -2;
     
-        // Types of list items (section separators and search result items)
+        // Types of list items (section separators, search result items and "show more" items)
         private final static int SEARCH_RESULT_VIEW = 0;
         private final static int SEARCH_SEPARATOR_VIEW = 1;
-        private final static int VIEW_TYPE_COUNT = 2;
+        private final static int SEARCH_MORE_VIEW = 2;
+        private final static int VIEW_TYPE_COUNT = 3;
 
-        // The sections (order is important!)
+        // The sections (order is important, it's the same as SearchLoader.GROUPS!)
         private final static String[] SECTIONS = { 
             ArtistColumns.MIME_TYPE, 
             AlbumColumns.MIME_TYPE,
@@ -102,31 +110,37 @@ public class SearchActivity extends FragmentActivity {
         public View getView(int position, View convertView, ViewGroup parent) {
             Log.d(TAG, "getView() ran: " + position);
 
-            final int type = getItemViewType(position);
+            final int row = mPositionToRow[position];
+            
+            // Show more results of the section
+            if (row == ROW_MORE) {
+                
+                if (convertView == null) {
+                    convertView = mInflater.inflate(mLayout, parent, false);
+                }
+                
+                TextView moreTextView = (TextView) convertView.findViewById(R.id.name_id);
+                moreTextView.setText(R.string.search_show_more);
+                
+                return convertView;
+            }
             
             // Section separators are inserted here
-            if (type == SEARCH_SEPARATOR_VIEW) {
+            if (row == ROW_HEADER) {
                 
                 if (convertView == null) {
                     convertView = mInflater.inflate(R.layout.search_result_section_header, parent, false);
                 }
                 
                 TextView sectionTextView = (TextView) convertView.findViewById(R.id.section_header);
-                
-                Object[] sections = getSections();
-                int sectionIndex  = getSectionForPosition(position);
-                String section    = (String) sections[sectionIndex];
-                sectionTextView.setText(section);
+                sectionTextView.setText(SECTIONS[mPositionToSection[position]]);
                 convertView.setClickable(false);
                 
                 return convertView;
             }
             
             // Regular search item (not a header):
-            int sectionIndex = getSectionForPosition(position);
-            int positionOffset = position - mSectionToOffset.get(sectionIndex) - 1;
-            
-            return super.getView(positionOffset, convertView, parent);
+            return super.getView(row, convertView, parent);
         }
 
         @Override
@@ -142,11 +156,16 @@ public class SearchActivity extends FragmentActivity {
             return view;
         }
 
+        @Override
+        public boolean areAllItemsEnabled() {
+            return false;
+        }
+
         @Override
         public boolean isEnabled(int position) {
             
             // Disable clicking section separators
-            if (position == getPositionForSection(getSectionForPosition(position))) {
+            if (mPositionToRow[position] == ROW_HEADER) {
                 return false;
             }
             
@@ -187,70 +206,121 @@ public class SearchActivity extends FragmentActivity {
 
             // After the loader is finished and we have Cursor, 
             // then we can initialize the section indexer:
-            if (cursor != null) {
-                initIndexer(cursor);
-            }
+            initIndexer(cursor);
 
             return super.swapCursor(cursor);
         }
+        
+        /**
+         * Swaps in a new cursor, along with which sections have more results than in the cursor
+         */
+        public Cursor swapCursor(Cursor cursor, boolean[] moreSections) {
+            
+            mMoreSections = (moreSections != null) ? moreSections : new boolean[SECTIONS.length];
+            
+            return swapCursor(cursor);
+        }
+        
+        public boolean isShowMore(int position) {
+            return mPositionToRow[position] == ROW_MORE;
+        }
 
-        // Setup all the data structures needed for handling section indexing the list
+        // Setup all the data structures needed for handling section indexing the list:
+        // every section with results gets a header in front of its rows, 
+        // and a "show more" item after them if it has more results
         private void initIndexer(Cursor cursor) {
             Log.d(TAG, "initIndexer() ran: " + cursor);
 
-            mIndexer = new MusicItemIndexer(cursor, cursor.getColumnIndexOrThrow(SearchColumns.MIME_TYPE), SECTIONS);
-
-            mSectionToPosition = new TreeMap<Integer, Integer>();
+            final int sectionCount = SECTIONS.length;
             
-            final int count = cursor.getCount(); 
-         
-            // Temporarily have a map alphabet section to first index where it appears i the list
-            // Iterate in reverse to get the first occurrence in the list
-            for (int i = count - 1; i >= 0; i--) {
-                mSectionToPosition.put(mIndexer.getSectionForPosition(i), i);
+            if (cursor == null) {
+                mPositionToRow     = new int[0];
+                mPositionToSection = new int[0];
+                mSectionToPosition = new int[sectionCount];
+                return;
             }
 
-            int i = 0;
-            int size = mSectionToPosition.keySet().size();
-            mSectionToOffset    = new SparseIntArray(size);
-            mUsedSectionNumbers = new int[size];
-
-            // For each section that appears before a position, we must offset the
-            // indices by 1, to make room for an section header in the list
-            for (Integer section : mSectionToPosition.keySet()) {
-                mSectionToOffset.put(section, i);
-                mUsedSectionNumbers[i] = section;
-                i++;
+            MusicItemIndexer indexer = new MusicItemIndexer(cursor, 
+                    cursor.getColumnIndexOrThrow(SearchColumns.MIME_TYPE), SECTIONS);
+            
+            final int rows = cursor.getCount();
+            
+            // First row of each section, plus the end of the list
+            int[] starts = new int[sectionCount + 1];
+            int usedSections = 0;
+            
+            for (int section = 0; section < sectionCount; section++) {
+                starts[section] = indexer.getPositionForSection(section);
             }
+            starts[sectionCount] = rows;
             
-            // Use offset to map each section to its actual index in the list
-            for (Integer section : mSectionToPosition.keySet()) {
-                mSectionToPosition.put(section, mSectionToPosition.get(section) + mSectionToOffset.get(section));
+            int moreItems = 0;
+            
+            for (int section = 0; section < sectionCount; section++) {
+                if (starts[section + 1] > starts[section]) {
+                    usedSections++;
+                    
+                    if (mMoreSections[section]) {
+                        moreItems++;
+                    }
+                }
+            }
+            
+            mPositionToRow     = new int[rows + usedSections + moreItems];
+            mPositionToSection = new int[rows + usedSections + moreItems];
+            mSectionToPosition = new int[sectionCount];
+            
+            int position = 0;
+            
+            for (int section = 0; section < sectionCount; section++) {
+                
+                mSectionToPosition[section] = position;
+                
+                if (starts[section + 1] == starts[section]) {
+                    continue;
+                }
+                
+                // Header
+                mPositionToRow[position]     = ROW_HEADER;
+                mPositionToSection[position] = section;
+                position++;
+                
+                for (int row = starts[section]; row < starts[section + 1]; row++) {
+                    mPositionToRow[position]     = row;
+                    mPositionToSection[position] = section;
+                    position++;
+                }
+                
+                if (mMoreSections[section]) {
+                    mPositionToRow[position]     = ROW_MORE;
+                    mPositionToSection[position] = section;
+                    position++;
+                }
             }
         }
         
         @Override
         public int getCount() {
             
-            int count = super.getCount();
-
-            if (count != 0) {
-                if (mUsedSectionNumbers != null) {
-                    count += mUsedSectionNumbers.length;
-                }
+            if (super.getCount() == 0) {
+                return 0;
             }
 
-            return count;
+            return mPositionToRow.length;
         }
 
         @Override
         public int getItemViewType(int position) {
             
-            if (position == getPositionForSection(getSectionForPosition(position))) {
-                return SEARCH_SEPARATOR_VIEW;
-            } 
+            switch (mPositionToRow[position]) {
             
-            return SEARCH_RESULT_VIEW;
+            case ROW_HEADER:
+                return SEARCH_SEPARATOR_VIEW;
+            case ROW_MORE:
+                return SEARCH_MORE_VIEW;
+            default:
+                return SEARCH_RESULT_VIEW;
+            }
         }
 
         @Override
@@ -261,10 +331,11 @@ public class SearchActivity extends FragmentActivity {
         @Override
         public Object getItem(int position) {
             
-            if (getItemViewType(position) == SEARCH_RESULT_VIEW) {
-                // If the list item is not a header, then we fetch the data set item with the same 
-                // position offsetted by the number of headers that appear before the item in the list
-                return super.getItem(position - mSectionToOffset.get(getSectionForPosition(position)) - 1);
+            final int row = mPositionToRow[position];
+            
+            if (row >= 0) {
+                // If the list item is not a header, then we fetch the data set item at its cursor row
+                return super.getItem(row);
             }
 
             return null;
@@ -273,10 +344,11 @@ public class SearchActivity extends FragmentActivity {
         @Override
         public long getItemId(int position) {
 
-            if (getItemViewType(position) == SEARCH_RESULT_VIEW) {
-                // If the list item is not a header, then we fetch the data set item id with the same 
-                // position offsetted by the number of headers that appear before the item in the list
-                return super.getItemId(position - mSectionToOffset.get(getSectionForPosition(position)) - 1);
+            final int row = mPositionToRow[position];
+            
+            if (row >= 0) {
+                // If the list item is not a header, then we fetch the data set item id at its cursor row
+                return super.getItemId(row);
             }
             
             return 0;
@@ -285,62 +357,72 @@ public class SearchActivity extends FragmentActivity {
         @Override
         public int getSectionForPosition(int position) {
             
-            int i = 0;      
-            int maxLength = mUsedSectionNumbers.length;
-    
-            // Linear scan over the used sections' positions to find where the given section fits in
-            while (i < maxLength && position >= mSectionToPosition.get(mUsedSectionNumbers[i])) {
-                i++;
+            if (mPositionToSection.length == 0 || position < 0) {
+                return 0;
+            }
+            
+            if (position >= mPositionToSection.length) {
+                position = mPositionToSection.length - 1;
             }
             
-            return mUsedSectionNumbers[i - 1];
+            return mPositionToSection[position];
         }
 
         @Override
         public int getPositionForSection(int section) {
             
-            if (mSectionToOffset.indexOfKey(section) >= 0) { 
-                // This is only the case when the FastScroller is scrolling,
-                // and this section doesn't appear in our data set. 
-                // The implementation of FastScroller requires that missing sections 
-                // have the same index as the beginning of the next non-missing section 
-                // (or the end of the list if the rest of the sections are missing).
-                int i = 0;
-                int maxLength = mUsedSectionNumbers.length;
-                
-                // Linear scan over the sections (constant number of these) that appear in the 
-                // data set to find the first used section that is greater than the given section
-                while (i < maxLength && section > mUsedSectionNumbers[i]) {
-                    i++;
-                }
-
-                // The given section is past all our data
-                if (i == maxLength) {
-                    return getCount(); 
-                }
-
-                int nextSection = mUsedSectionNumbers[i];
-                
-                return mIndexer.getPositionForSection(nextSection) + mSectionToOffset.get(nextSection);
+            if (section < 0) {
+                return 0;
+            }
+            
+            // The given section is past all our data
+            if (section >= mSectionToPosition.length) {
+                return getCount();
             }
 
-            return mIndexer.getPositionForSection(section) + mSectionToOffset.get(section);
+            return mSectionToPosition[section];
         }
         
         @Override
         public Object[] getSections() {         
-            return mIndexer.getSections();
+            return SECTIONS;
         }
     }
     
     
-    public static class SearchListFragment extends ListFragment implements LoaderManager.LoaderCallbacks<Cursor> {
+    public static class SearchListFragment extends ListFragment implements LoaderManager.LoaderCallbacks<SearchLoader.Result> {
 
         private final static String TAG = SearchListFragment.class.getSimpleName();
-        private static final String QUERY_STRING = "query";
         private static final int SEARCH_LIST_LOADER = 1;
+        
+        // How long to wait for the user to stop typing before searching
+        private static final int SEARCH_DELAY = 300; // msecs
 
         private SearchCursorAdapter mAdapter;
+        
+        private EditText mQueryText;
+        private TextView mEmptyText;
+        
+        private final Handler mHandler = new Handler();
+        
+        private final Runnable mSearchRunnable = new Runnable() {
+            
+            @Override
+            public void run() {
+                performSearch(mQueryText.getText().toString());
+            }
+        };
+
+        @Override
+        public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+            
+            View view = inflater.inflate(R.layout.search_results, container, false);
+            
+            mQueryText = (EditText) view.findViewById(R.id.search_query);
+            mEmptyText = (TextView) view.findViewById(android.R.id.empty);
+            
+            return view;
+        }
 
         @Override
         public void onActivityCreated(Bundle savedInstanceState) {
@@ -357,8 +439,34 @@ public class SearchActivity extends FragmentActivity {
 
             setListAdapter(mAdapter);
 
+            getLoaderManager().initLoader(SEARCH_LIST_LOADER, null, this);
+            
+            // Search as the user types, once they pause
+            mQueryText.addTextChangedListener(new TextWatcher() {
+                
+                @Override
+                public void afterTextChanged(Editable text) {
+                    mHandler.removeCallbacks(mSearchRunnable);
+                    mHandler.postDelayed(mSearchRunnable, SEARCH_DELAY);
+                }
+
+                @Override
+                public void beforeTextChanged(CharSequence text, int start, int count, int after) {
+                }
+
+                @Override
+                public void onTextChanged(CharSequence text, int start, int before, int count) {
+                }
+            });
+
             handleIntent(intent);
         }
+        
+        @Override
+        public void onDestroyView() {
+            mHandler.removeCallbacks(mSearchRunnable);
+            super.onDestroyView();
+        }
 
         private void handleIntent(Intent intent) {
             
@@ -366,16 +474,29 @@ public class SearchActivity extends FragmentActivity {
             if (Intent.ACTION_SEARCH.equals(intent.getAction())) {
                 String query = intent.getStringExtra(SearchManager.QUERY);
                 Log.d(TAG, "query: " + query);
+                
+                if (query != null) {
+                    mQueryText.setText(query);
+                    mQueryText.setSelection(query.length());
+                }
+                
+                // No need to wait, the user has finished typing this one
                 performSearch(query);
             }
         }
 
         private void performSearch(String query) {
 
-            Bundle queryBundle = new Bundle();
-            queryBundle.putString(QUERY_STRING, query);
-
-            getLoaderManager().restartLoader(SEARCH_LIST_LOADER, queryBundle, this);
+            mHandler.removeCallbacks(mSearchRunnable);
+            
+            getSearchLoader().search(query);
+        }
+        
+        private SearchLoader getSearchLoader() {
+            
+            Loader<SearchLoader.Result> loader = getLoaderManager().getLoader(SEARCH_LIST_LOADER);
+            
+            return (SearchLoader) loader;
         }
         
         @Override
@@ -383,8 +504,14 @@ public class SearchActivity extends FragmentActivity {
             Log.i(TAG, "onListItemClick() - id: " + id + ", position: " + position);
             Log.i(TAG, "onListItemClick() - listview: " + listView + ", view: " + view);
 
-            Object[] sections = mAdapter.getSections();
             int sectionIndex  = mAdapter.getSectionForPosition(position);
+            
+            if (mAdapter.isShowMore(position)) {
+                getSearchLoader().showMore(sectionIndex);
+                return;
+            }
+            
+            Object[] sections = mAdapter.getSections();
             String mimeType   = (String) sections[sectionIndex];
             
             Intent intent = new Intent();
@@ -409,35 +536,24 @@ public class SearchActivity extends FragmentActivity {
         }
 
         @Override
-        public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        public Loader<SearchLoader.Result> onCreateLoader(int id, Bundle args) {
             Log.i(TAG, "onCreateLoader() ran");
 
-            String query = args.getString(QUERY_STRING);
-            String[] projection = { 
-                    SearchColumns._ID, 
-                    SearchColumns.ARTIST_NAME, 
-                    SearchColumns.ALBUM_NAME,
-                    SearchColumns.TRACK_NAME, 
-                    SearchColumns.MIME_TYPE, 
-                    SearchColumns.GROUP_ORDER 
-                    };
-            Uri contentUri = Uri.parse(SocksoProvider.CONTENT_URI + "/" + SearchColumns.TABLE_NAME + "/" + query);
-
-            CursorLoader cursorLoader = new CursorLoader(getActivity(), contentUri, projection, null, null,
-                    SearchColumns.GROUP_ORDER);
-
-            return cursorLoader;
+            return new SearchLoader(getActivity());
         }
 
         @Override
-        public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-            Log.d(TAG, "onLoadFinished() ran: cursor.count: " + cursor.getCount());
+        public void onLoadFinished(Loader<SearchLoader.Result> loader, SearchLoader.Result result) {
+            Log.d(TAG, "onLoadFinished() ran: count: " + result.getCount());
 
-            if (cursor.getCount() == 0) {
-                setEmptyText(getString(R.string.no_search_results));
+            if (result.getCount() == 0 && result.getQuery().length() > 0) {
+                mEmptyText.setText(R.string.no_search_results);
+            }
+            else {
+                mEmptyText.setText(null);
             }
             
-            mAdapter.swapCursor(cursor);
+            mAdapter.swapCursor(result.getCursor(), result.getMoreFlags());
             // Enable FastScrolling
             ListView view = getListView();
             view.setScrollBarStyle(ListView.SCROLLBARS_INSIDE_OVERLAY);
@@ -472,8 +588,8 @@ public class SearchActivity extends FragmentActivity {
         }
         
         @Override
-        public void onLoaderReset(Loader<Cursor> loader) {
-            mAdapter.swapCursor(null);
+        public void onLoaderReset(Loader<SearchLoader.Result> loader) {
+            mAdapter.swapCursor(null, null);
         }
     }
 }
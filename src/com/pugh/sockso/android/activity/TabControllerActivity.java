@@ -2,14 +2,17 @@ package com.pugh.sockso.android.activity;
 
 import java.util.ArrayList;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentPagerAdapter;
+import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.view.ViewPager;
 import android.util.Log;
 import android.view.Menu;
@@ -19,9 +22,13 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TabHost;
 import android.widget.TabWidget;
+import android.widget.Toast;
 
 import com.pugh.sockso.android.R;
+import com.pugh.sockso.android.ServerFactory;
 import com.pugh.sockso.android.account.SocksoAccountAuthenticator;
+import com.pugh.sockso.android.data.LibrarySnapshot;
+import com.pugh.sockso.android.net.ServerEndpoints;
 
 /**
  * Demonstrates combining a TabHost with a ViewPager to implement a tab UI that
@@ -36,6 +43,19 @@ public class TabControllerActivity extends FragmentActivity {
 	ViewPager   mViewPager;
 	TabsAdapter mTabsAdapter;
 
+	// The lists come from the local library anyway, just tell the user when the server's gone
+	private final BroadcastReceiver mAvailabilityListener = new BroadcastReceiver() {
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+
+			boolean available = intent.getBooleanExtra(ServerEndpoints.EXTRA_AVAILABLE, true);
+
+			Toast.makeText(TabControllerActivity.this,
+					available ? R.string.server_available : R.string.server_unavailable, Toast.LENGTH_LONG).show();
+		}
+	};
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -49,6 +69,11 @@ public class TabControllerActivity extends FragmentActivity {
 			startActivity(intent);
 		}
 
+		loadLibrarySnapshot();
+
+		// Connected by the time the lists ask for covers
+		ServerFactory.warmUp(getApplicationContext());
+
 		setContentView(R.layout.tab_host);
 
 		mTabHost = (TabHost) findViewById(android.R.id.tabhost);
@@ -76,6 +101,36 @@ public class TabControllerActivity extends FragmentActivity {
 	}
 
 
+	// Reads the library into memory (if enabled) while the tabs do their first loads, 
+	// later loads and tab switches are then served from memory
+	private void loadLibrarySnapshot() {
+
+		final Context context = getApplicationContext();
+
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				LibrarySnapshot.load(context);
+			}
+		}, "LibrarySnapshot").start();
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+
+		LocalBroadcastManager.getInstance(this).registerReceiver(mAvailabilityListener,
+				new IntentFilter(ServerEndpoints.ACTION_AVAILABILITY_CHANGED));
+	}
+
+	@Override
+	protected void onPause() {
+		LocalBroadcastManager.getInstance(this).unregisterReceiver(mAvailabilityListener);
+
+		super.onPause();
+	}
+
 	@Override
 	protected void onSaveInstanceState(Bundle outState) {
 		super.onSaveInstanceState(outState);
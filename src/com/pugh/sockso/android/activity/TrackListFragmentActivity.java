@@ -21,14 +21,20 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.ListView;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.pugh.sockso.android.Preferences;
 import com.pugh.sockso.android.R;
 import com.pugh.sockso.android.data.CoverArtFetcher;
 import com.pugh.sockso.android.data.MusicManager;
+import com.pugh.sockso.android.data.PagedCursorLoader;
 import com.pugh.sockso.android.data.SocksoProvider;
 import com.pugh.sockso.android.data.SocksoProvider.TrackColumns;
+import com.pugh.sockso.android.data.SocksoProvider.SectionColumns;
+import com.pugh.sockso.android.data.SortKey;
+import com.pugh.sockso.android.widget.PagedSectionIndexer;
+import com.pugh.sockso.android.widget.PagingScrollListener;
 
 public class TrackListFragmentActivity extends FragmentActivity {
 
@@ -56,12 +62,15 @@ public class TrackListFragmentActivity extends FragmentActivity {
     }
 
     // Custom list view item (cover image | artist/album text)
-    public static class TrackCursorAdapter extends SimpleCursorAdapter {
+    public static class TrackCursorAdapter extends SimpleCursorAdapter implements SectionIndexer {
 
         private Context mContext;
         private int mLayout;
         CoverArtFetcher mCoverFetcher;
 
+        // Letter sections of the sort keys, for fast scrolling
+        private final PagedSectionIndexer mIndexer = new PagedSectionIndexer(SortKey.SECTIONS, TrackColumns.SORT_KEY);
+
         public TrackCursorAdapter(Context context, int layout, Cursor cursor, String[] from, int[] to, int flags) {
             super(context, layout, cursor, from, to, flags);
             this.mContext = context;
@@ -89,6 +98,31 @@ public class TrackListFragmentActivity extends FragmentActivity {
             return view;
         }
 
+        public PagedSectionIndexer getSectionIndexer() {
+            return mIndexer;
+        }
+
+        @Override
+        public Cursor swapCursor(Cursor newCursor) {
+            mIndexer.setCursor(newCursor);
+            return super.swapCursor(newCursor);
+        }
+
+        @Override
+        public Object[] getSections() {
+            return mIndexer.getSections();
+        }
+
+        @Override
+        public int getPositionForSection(int section) {
+            return mIndexer.getPositionForSection(section);
+        }
+
+        @Override
+        public int getSectionForPosition(int position) {
+            return mIndexer.getSectionForPosition(position);
+        }
+
         @Override
         public void bindView(View view, Context context, Cursor cursor) {
             Log.d(TAG, "bindView() ran");
@@ -117,6 +151,7 @@ public class TrackListFragmentActivity extends FragmentActivity {
         private final static String TAG = TrackListFragment.class.getSimpleName();
 
         private static final int TRACK_LIST_LOADER = 1;
+        private static final int SECTIONS_LOADER = 2;
 
         private TrackCursorAdapter mAdapter;
 
@@ -137,7 +172,16 @@ public class TrackListFragmentActivity extends FragmentActivity {
             // Start out with a progress indicator
             setListShown(false);
             
+            // The sections are tiny, so the fast scroller has them before the first page
+            getLoaderManager().initLoader(SECTIONS_LOADER, null, this);
             getLoaderManager().initLoader(TRACK_LIST_LOADER, null, this);
+            
+            // Load more of the list as it's scrolled (or fast scrolled)
+            PagingScrollListener pager = new PagingScrollListener(getLoaderManager(), TRACK_LIST_LOADER);
+            mAdapter.getSectionIndexer().setPagingListener(pager);
+            
+            getListView().setOnScrollListener(pager);
+            getListView().setFastScrollEnabled(true);
         }
 
         @Override
@@ -162,17 +206,29 @@ public class TrackListFragmentActivity extends FragmentActivity {
         public Loader<Cursor> onCreateLoader(int id, Bundle args) {
             Log.i(TAG, "onCreateLoader() ran");
 
-            String[] projection = { TrackColumns._ID, TrackColumns.SERVER_ID, TrackColumns.NAME,
+            if (id == SECTIONS_LOADER) {
+                String[] projection = { SectionColumns.SECTION, SectionColumns.ROW_COUNT };
+                Uri contentUri = Uri.parse(SocksoProvider.CONTENT_URI + "/" + SectionColumns.TABLE_NAME + "/"
+                        + TrackColumns.TABLE_NAME);
+                return new CursorLoader(getActivity(), contentUri, projection, null, null, null);
+            }
+
+            String[] projection = { TrackColumns._ID, TrackColumns.SERVER_ID, TrackColumns.NAME, TrackColumns.SORT_KEY,
                     TrackColumns.ARTIST_NAME, };
 
             Uri contentUri = Uri.parse(SocksoProvider.CONTENT_URI + "/" + TrackColumns.TABLE_NAME);
-            CursorLoader cursorLoader = new CursorLoader(getActivity(), contentUri, projection, null, null, TrackColumns.FULL_NAME + " ASC");
-
-            return cursorLoader;
+            // Sorted by sort key (then _id), one page at a time
+            return new PagedCursorLoader(getActivity(), contentUri, projection, TrackColumns.SORT_KEY);
         }
 
         @Override
         public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+
+            if (loader.getId() == SECTIONS_LOADER) {
+                mAdapter.getSectionIndexer().setSectionCounts(cursor);
+                return;
+            }
+
             Log.d(TAG, "onLoadFinished: " + cursor.getCount());
             mAdapter.swapCursor(cursor);
             
@@ -186,6 +242,12 @@ public class TrackListFragmentActivity extends FragmentActivity {
 
         @Override
         public void onLoaderReset(Loader<Cursor> loader) {
+
+            if (loader.getId() == SECTIONS_LOADER) {
+                mAdapter.getSectionIndexer().setSectionCounts(null);
+                return;
+            }
+
             mAdapter.swapCursor(null);
         }
 
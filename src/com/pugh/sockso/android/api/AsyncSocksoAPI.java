@@ -0,0 +1,126 @@
+package com.pugh.sockso.android.api;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import com.pugh.sockso.android.music.Album;
+import com.pugh.sockso.android.music.Artist;
+import com.pugh.sockso.android.music.Track;
+import com.pugh.sockso.android.net.RequestExecutor;
+import com.pugh.sockso.android.net.RequestExecutor.Callback;
+import com.pugh.sockso.android.net.RequestExecutor.Request;
+
+/**
+ * Non-blocking version of a {@link SocksoAPI}: each call is run on the shared
+ * {@link RequestExecutor} at the given priority, and its outcome is delivered to the callback
+ * on the main thread (or can be waited for on the returned request).
+ * <p/>
+ * Requests get a deadline that depends on their priority (see {@link #getTimeout(int)}),
+ * and can be cancelled with Request.cancel().
+ */
+public class AsyncSocksoAPI {
+
+	private static final long PLAYBACK_TIMEOUT = 10 * 1000;
+	private static final long UI_TIMEOUT       = 15 * 1000;
+	private static final long PREFETCH_TIMEOUT = 30 * 1000;
+
+	private final SocksoAPI mApi; // dependency
+	private final RequestExecutor mExecutor;
+
+	public AsyncSocksoAPI(SocksoAPI api) {
+		mApi      = api;
+		mExecutor = RequestExecutor.getInstance();
+	}
+
+	/**
+	 * Returns the deadline (from when it's submitted) of a request of the given priority
+	 */
+	public static long getTimeout(int priority) {
+
+		switch (priority) {
+		case RequestExecutor.PRIORITY_PLAYBACK:
+			return PLAYBACK_TIMEOUT;
+		case RequestExecutor.PRIORITY_UI:
+			return UI_TIMEOUT;
+		case RequestExecutor.PRIORITY_PREFETCH:
+			return PREFETCH_TIMEOUT;
+		default:
+			return RequestExecutor.NO_DEADLINE; // sync takes as long as it takes
+		}
+	}
+
+	public Request<ServerInfo> getServerInfo(int priority, Callback<ServerInfo> callback) {
+
+		return submit(new Callable<ServerInfo>() {
+
+			public ServerInfo call() throws Exception {
+				return mApi.getServerInfo();
+			}
+		}, priority, callback);
+	}
+
+	public Request<Album> getAlbum(final String id, int priority, Callback<Album> callback) {
+
+		return submit(new Callable<Album>() {
+
+			public Album call() throws Exception {
+				return mApi.getAlbum(id);
+			}
+		}, priority, callback);
+	}
+
+	public Request<List<Album>> getAlbums(final long from, int priority, Callback<List<Album>> callback) {
+
+		return submit(new Callable<List<Album>>() {
+
+			public List<Album> call() throws Exception {
+				return mApi.getAlbums(from);
+			}
+		}, priority, callback);
+	}
+
+	public Request<Artist> getArtist(final String id, int priority, Callback<Artist> callback) {
+
+		return submit(new Callable<Artist>() {
+
+			public Artist call() throws Exception {
+				return mApi.getArtist(id);
+			}
+		}, priority, callback);
+	}
+
+	public Request<List<Artist>> getArtists(final long from, int priority, Callback<List<Artist>> callback) {
+
+		return submit(new Callable<List<Artist>>() {
+
+			public List<Artist> call() throws Exception {
+				return mApi.getArtists(from);
+			}
+		}, priority, callback);
+	}
+
+	public Request<Track> getTrack(final String id, int priority, Callback<Track> callback) {
+
+		return submit(new Callable<Track>() {
+
+			public Track call() throws Exception {
+				return mApi.getTrack(id);
+			}
+		}, priority, callback);
+	}
+
+	public Request<List<Track>> getTracks(final long from, int priority, Callback<List<Track>> callback) {
+
+		return submit(new Callable<List<Track>>() {
+
+			public List<Track> call() throws Exception {
+				return mApi.getTracks(from);
+			}
+		}, priority, callback);
+	}
+
+	private <T> Request<T> submit(Callable<T> work, int priority, Callback<T> callback) {
+		return mExecutor.submit(work, priority, getTimeout(priority), callback);
+	}
+
+}
@@ -0,0 +1,204 @@
+package com.pugh.sockso.android.api;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+import org.json.JSONException;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.pugh.sockso.android.SocksoServer;
+
+/**
+ * What the server can do beyond the basic API, worked out from its server info (/api), so the
+ * client can use the fastest way the server supports and fall back on older ones.
+ * <p/>
+ * Newer servers list their optional features. For older ones that don't, only what can be
+ * told from the version is assumed, and everything else is off.
+ */
+public class ServerCapabilities {
+
+	private static final String TAG = ServerCapabilities.class.getSimpleName();
+
+	/**
+	 * The lists take limit and offset, so they can be synced a page at a time
+	 */
+	public static final String PAGED_SYNC = "pagedSync";
+
+	/**
+	 * The lists take fromDate, so only what's changed since the last sync is sent
+	 */
+	public static final String INCREMENTAL_SYNC = "incrementalSync";
+
+	/**
+	 * Streams answer Range requests, so playback can start part way through a track
+	 */
+	public static final String RANGE_STREAMING = "rangeStreaming";
+
+	/**
+	 * Covers take width and height, and are scaled down on the server
+	 */
+	public static final String SIZED_COVERS = "sizedCovers";
+
+	// Servers that don't list their features have taken fromDate since this version
+	private static final String INCREMENTAL_SYNC_VERSION = "1.6.0";
+
+	/**
+	 * What's assumed of a server that couldn't be asked: the basic API, plus fromDate as the
+	 * client has always sent it (servers that don't know it ignore it, and send everything)
+	 */
+	public static final ServerCapabilities UNKNOWN = new ServerCapabilities(null, Collections.singleton(INCREMENTAL_SYNC), false);
+
+	// How long a server that couldn't be asked is taken to be UNKNOWN before it's asked again
+	private static final long RETRY_INTERVAL = 60 * 1000;
+
+	// Capabilities of the server last asked, and when to ask again if they're UNKNOWN
+	private static SocksoServer sServer;
+	private static ServerCapabilities sCapabilities;
+	private static long sRetryAt;
+
+	private final String mVersion;
+	private final Set<String> mFeatures;
+	private final boolean mKnown;
+
+	private ServerCapabilities(String version, Set<String> features, boolean known) {
+		mVersion  = version;
+		mFeatures = features;
+		mKnown    = known;
+	}
+
+	public static ServerCapabilities fromServerInfo(ServerInfo info) {
+
+		Set<String> features = info.getFeatures();
+
+		if (features == null) {
+
+			// From before features were listed
+			features = (compareVersions(info.getVersion(), INCREMENTAL_SYNC_VERSION) >= 0)
+					? Collections.singleton(INCREMENTAL_SYNC)
+					: Collections.<String> emptySet();
+		}
+
+		return new ServerCapabilities(info.getVersion(), features, true);
+	}
+
+	/**
+	 * Returns the capabilities of the server, asking it the first time (so it blocks, don't call
+	 * it on the main thread). If the server can't be asked, it's taken to be {@link #UNKNOWN}
+	 * for a while (a minute) before it's asked again.
+	 */
+	public static ServerCapabilities get(SocksoServer server) {
+
+		ServerCapabilities capabilities = peek(server);
+
+		if (capabilities != null) {
+			return capabilities;
+		}
+
+		try {
+			capabilities = fromServerInfo(new SocksoAPIImpl(server).getServerInfo());
+			Log.i(TAG, "Server " + capabilities.mVersion + ", features: " + capabilities.mFeatures);
+		}
+		catch (IOException e) {
+			Log.w(TAG, "Couldn't get the server info: " + e.getMessage());
+			capabilities = UNKNOWN;
+		}
+		catch (JSONException e) {
+			Log.w(TAG, "Bad server info: " + e.getMessage());
+			capabilities = UNKNOWN;
+		}
+
+		// So every cover and list isn't held up asking again
+		synchronized (ServerCapabilities.class) {
+			sServer       = server;
+			sCapabilities = capabilities;
+			sRetryAt      = SystemClock.elapsedRealtime() + RETRY_INTERVAL;
+		}
+
+		return capabilities;
+	}
+
+	/**
+	 * Returns the capabilities of the server if they're known (or UNKNOWN and not due to be
+	 * asked again) already, else null
+	 */
+	public static synchronized ServerCapabilities peek(SocksoServer server) {
+
+		if (server != sServer || (sCapabilities == UNKNOWN && SystemClock.elapsedRealtime() >= sRetryAt)) {
+			return null;
+		}
+
+		return sCapabilities;
+	}
+
+	/**
+	 * Compares dotted version numbers ("1.5.3"), anything after the numbers is ignored
+	 * ("1.6.0-beta" is 1.6.0), a missing version is older than any other
+	 */
+	static int compareVersions(String a, String b) {
+
+		if (a == null || b == null) {
+			return (a == b) ? 0 : (a == null) ? -1 : 1;
+		}
+
+		String[] as = a.split("\\.");
+		String[] bs = b.split("\\.");
+
+		for (int i = 0; i < Math.max(as.length, bs.length); i++) {
+
+			int an = (i < as.length) ? leadingNumber(as[i]) : 0;
+			int bn = (i < bs.length) ? leadingNumber(bs[i]) : 0;
+
+			if (an != bn) {
+				return (an < bn) ? -1 : 1;
+			}
+		}
+
+		return 0;
+	}
+
+	private static int leadingNumber(String part) {
+
+		int number = 0;
+
+		for (int i = 0; i < part.length() && Character.isDigit(part.charAt(i)); i++) {
+			number = number * 10 + (part.charAt(i) - '0');
+		}
+
+		return number;
+	}
+
+	public String getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * Returns false if the server couldn't be asked, and these are only assumed (see UNKNOWN)
+	 */
+	public boolean isKnown() {
+		return mKnown;
+	}
+
+	public boolean has(String feature) {
+		return mFeatures.contains(feature);
+	}
+
+	public boolean supportsPagedSync() {
+		return has(PAGED_SYNC);
+	}
+
+	public boolean supportsIncrementalSync() {
+		return has(INCREMENTAL_SYNC);
+	}
+
+	public boolean supportsRangeStreaming() {
+		return has(RANGE_STREAMING);
+	}
+
+	public boolean supportsSizedCovers() {
+		return has(SIZED_COVERS);
+	}
+
+}
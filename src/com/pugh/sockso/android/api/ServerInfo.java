@@ -1,5 +1,10 @@
 package com.pugh.sockso.android.api;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -8,10 +13,12 @@ public class ServerInfo {
 	public static final String VERSION = "version";
 	public static final String TITLE   = "title";
 	public static final String TAGLINE = "tagline";
+	public static final String FEATURES = "features";
 	
 	private String title = "Sockso"; //default
 	private String tagline = "Personal Music Server";
 	private String version;  // server version (not client)
+	private Set<String> features = null; // null if the server doesn't list them
 	
 	public ServerInfo(String version){
 		this.setVersion(version);
@@ -46,21 +53,49 @@ public class ServerInfo {
 	public void setVersion(String version) {
 		this.version = version;
 	}
+
+	/**
+	 * Returns the optional features the server says it has (see ServerCapabilities),
+	 * or null if it's from before servers listed them
+	 */
+	public Set<String> getFeatures() {
+		return features;
+	}
+
+	public void setFeatures(Set<String> features) {
+		this.features = (features != null) ? Collections.unmodifiableSet(features) : null;
+	}
 	
 	/* {
 	 * "title":   "Sockso",
 	 * "tagline": "Personal Music Server",
 	 * "version": "1.5.3",
-	 * "requiresLogin": "0"
+	 * "requiresLogin": "0",
+	 * "features": [ "pagedSync", "incrementalSync", ... ]  (newer servers only)
 	 * }
 	 */
 	public static ServerInfo fromJSON(JSONObject jsonObj) throws JSONException {
 
 		String version = jsonObj.getString(VERSION);
-		String title   = jsonObj.getString(TITLE);
-		String tagline = jsonObj.getString(TAGLINE);
+		String title   = jsonObj.optString(TITLE, "Sockso");
+		String tagline = jsonObj.optString(TAGLINE, "Personal Music Server");
 		
-		return new ServerInfo(version, title, tagline);
+		ServerInfo info = new ServerInfo(version, title, tagline);
+
+		JSONArray jsonFeatures = jsonObj.optJSONArray(FEATURES);
+
+		if (jsonFeatures != null) {
+
+			Set<String> features = new HashSet<String>();
+
+			for (int i = 0; i < jsonFeatures.length(); i++) {
+				features.add(jsonFeatures.getString(i));
+			}
+
+			info.setFeatures(features);
+		}
+
+		return info;
 	}
 	
 }
@@ -0,0 +1,149 @@
+package com.pugh.sockso.android.api;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.json.JSONException;
+
+import android.os.SystemClock;
+
+import com.pugh.sockso.android.net.RequestContext;
+
+/**
+ * Coalesces identical API calls: while a call for a key (its URL) is in flight, other callers
+ * of the same key wait for it and get the same result instead of making their own.
+ * A result is also reused for a short while after it arrives, to absorb bursts of requests.
+ * If the call was cancelled, a waiting caller makes it again instead.
+ * <p/>
+ * Results are shared between callers, so they mustn't be modified.
+ */
+class SingleFlight {
+
+	interface Call<T> {
+		public T call() throws IOException, JSONException;
+	}
+
+	private static class Flight {
+
+		private final CountDownLatch mDone = new CountDownLatch(1);
+
+		private Object mResult;
+		private Exception mError;
+		private long mFinishedAt = -1; // -1 while in flight
+
+		// The leader failed because its request was cancelled (see RequestContext)
+		private boolean mCancelled = false;
+	}
+
+	private final long mMemoMillis;
+	private final Map<String, Flight> mFlights = new HashMap<String, Flight>();
+
+	/**
+	 * @param memoMillis how long a result is reused after it arrives
+	 */
+	SingleFlight(long memoMillis) {
+		mMemoMillis = memoMillis;
+	}
+
+	@SuppressWarnings("unchecked")
+	<T> T run(String key, Call<T> call) throws IOException, JSONException {
+
+		Flight flight;
+
+		for (;;) {
+
+			boolean leader = false;
+
+			synchronized (mFlights) {
+
+				removeExpired(SystemClock.elapsedRealtime());
+
+				flight = mFlights.get(key);
+
+				if (flight == null) {
+					flight = new Flight();
+					mFlights.put(key, flight);
+					leader = true;
+				}
+			}
+
+			if (leader) {
+				lead(key, flight, call);
+				break;
+			}
+
+			try {
+				flight.mDone.await();
+			}
+			catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted waiting for " + key);
+			}
+
+			// The leader's caller gave up, that's no answer for the others: one of them takes over
+			if (! flight.mCancelled) {
+				break;
+			}
+		}
+
+		if (flight.mError instanceof IOException) {
+			throw (IOException) flight.mError;
+		}
+		if (flight.mError instanceof JSONException) {
+			throw (JSONException) flight.mError;
+		}
+		if (flight.mError != null) {
+			throw (RuntimeException) flight.mError;
+		}
+
+		return (T) flight.mResult;
+	}
+
+	private void lead(String key, Flight flight, Call<?> call) {
+
+		try {
+			flight.mResult = call.call();
+		}
+		catch (IOException e) {
+			flight.mError = e;
+
+			RequestContext context = RequestContext.current();
+			flight.mCancelled = context != null && context.isCancelled();
+		}
+		catch (JSONException e) {
+			flight.mError = e;
+		}
+		catch (RuntimeException e) {
+			flight.mError = e;
+		}
+		finally {
+			synchronized (mFlights) {
+				flight.mFinishedAt = SystemClock.elapsedRealtime();
+
+				// Failures aren't reused, the next caller tries again
+				if (flight.mError != null) {
+					mFlights.remove(key);
+				}
+			}
+			flight.mDone.countDown();
+		}
+	}
+
+	private void removeExpired(long now) {
+
+		Iterator<Flight> flights = mFlights.values().iterator();
+
+		while (flights.hasNext()) {
+
+			Flight flight = flights.next();
+
+			if (flight.mFinishedAt != -1 && now - flight.mFinishedAt >= mMemoMillis) {
+				flights.remove();
+			}
+		}
+	}
+
+}
@@ -28,9 +28,23 @@ public class SocksoAPIImpl implements SocksoAPI {
 	public static final int DEFAULT_LIMIT = 100;
 	public static final int NO_LIMIT = -1;
 
+	// Items asked for at a time when syncing a list from a server that pages them
+	private static final int SYNC_PAGE_SIZE = 500;
+
+	// How long a single item's result is reused after it arrives
+	private static final long MEMO_MILLIS = 2000;
+
+	// Shared by all instances, so identical requests from anywhere in the app are coalesced
+	private static final SingleFlight sFlights = new SingleFlight(MEMO_MILLIS);
+
 	private String mBaseApiUrl;
 	private SocksoServer mServer; 	// dependency
 
+	private final ServerInfoAPI mServerInfoApi;
+	private final ArtistAPI mArtistApi;
+	private final AlbumAPI mAlbumApi;
+	private final TrackAPI mTrackApi;
+
 	public SocksoAPIImpl(SocksoServer server) {
 		
 		mBaseApiUrl = server.getRootUrl();
@@ -40,9 +54,13 @@ public class SocksoAPIImpl implements SocksoAPI {
 		
 		mServer = server;
 		
+		mServerInfoApi = new ServerInfoAPI(mBaseApiUrl);
+		mArtistApi     = new ArtistAPI(mBaseApiUrl);
+		mAlbumApi      = new AlbumAPI(mBaseApiUrl);
+		mTrackApi      = new TrackAPI(mBaseApiUrl);
 	}
 
-	// Will have to only support a minimum version of Sockso (1.6.0?) server
+	// What's supported beyond the basic API depends on the server (see ServerCapabilities)
 	private class ServerInfoAPI {
 		
 		private final String mBaseUri;
@@ -114,10 +132,6 @@ public class SocksoAPIImpl implements SocksoAPI {
 			return mBaseUri + "/" + id + "/" + TRACKS;
 		}
 
-        public String getArtistsFrom(long from) {
-            return buildUriString(NO_LIMIT, 0, from);
-        }
-
 	}
 
 	private class AlbumAPI extends BaseAPI {
@@ -134,10 +148,6 @@ public class SocksoAPIImpl implements SocksoAPI {
 			return mBaseUri + "/" + id;
 		}
 
-		public String getAlbumsFrom(long from) {
-            return buildUriString(NO_LIMIT, 0, from);
-		}
-		
 		// /api/albums?limit=<limit>&offset=<offset>&fromDate=<from>
 		public String getAlbums(int limit, int offset, long from) {
             return buildUriString(limit, offset, from);
@@ -178,10 +188,6 @@ public class SocksoAPIImpl implements SocksoAPI {
 			return getTracks(NO_LIMIT, 0, 0);
 		}
 
-        public String getTracksFrom(long from) {
-            return buildUriString(NO_LIMIT, 0, from);
-        }
-
 	}
 	// TODO - API method not currently supported
 	private class PlaylistAPI extends BaseAPI {
@@ -220,28 +226,66 @@ public class SocksoAPIImpl implements SocksoAPI {
 		}
 	}
 
+	private interface ListParser<T> {
+		public List<T> parse(JSONArray jsonArray) throws JSONException;
+	}
+
+	// Gets a whole list, or what's changed in it since from, the best way the server can do it:
+	// a page at a time if it pages lists, and all of it if it can't tell what's changed
+	private <T> List<T> getList(BaseAPI api, long from, ListParser<T> parser) throws IOException, JSONException {
+
+		ServerCapabilities capabilities = ServerCapabilities.get(mServer);
+
+		// Only for a server known not to take it, one that couldn't be asked is sent it anyway
+		if (! capabilities.supportsIncrementalSync()) {
+			from = 0;
+		}
+
+		if (! capabilities.supportsPagedSync()) {
+			return parser.parse(new JSONArray(mServer.doGet(api.buildUriString(NO_LIMIT, 0, from))));
+		}
+
+		List<T> items = new ArrayList<T>();
+
+		for (int offset = 0; ; offset += SYNC_PAGE_SIZE) {
+
+			String data = mServer.doGet(api.buildUriString(SYNC_PAGE_SIZE, offset, from));
+			List<T> page = parser.parse(new JSONArray(data));
+
+			items.addAll(page);
+
+			if (page.size() < SYNC_PAGE_SIZE) {
+				return items;
+			}
+		}
+	}
+
 	public ServerInfo getServerInfo() throws IOException, JSONException {
 		Log.d(TAG, "getServerInfo() ran");
 		
-		ServerInfo info = null;
-		ServerInfoAPI api = new ServerInfoAPI(mBaseApiUrl);
+		final String url = mServerInfoApi.getServerInfo();
 
-		String data = mServer.doGet(api.getServerInfo());
-		
-		info = ServerInfo.fromJSON(new JSONObject(data));
-		return info;
+		return sFlights.run(url, new SingleFlight.Call<ServerInfo>() {
+
+			public ServerInfo call() throws IOException, JSONException {
+				String data = mServer.doGet(url);
+				return ServerInfo.fromJSON(new JSONObject(data));
+			}
+		});
 	}
 
 	public Album getAlbum(final String id) throws IOException, JSONException {
 		Log.d(TAG, "getAlbum(id) ran");
 		
-		Album album = null;
-		AlbumAPI api = new AlbumAPI(mBaseApiUrl);
+		final String url = mAlbumApi.getAlbum(id);
 
-		String data = mServer.doGet(api.getAlbum(id));
-		
-		album = Album.fromJSON(new JSONObject(data));
-		return album;
+		return sFlights.run(url, new SingleFlight.Call<Album>() {
+
+			public Album call() throws IOException, JSONException {
+				String data = mServer.doGet(url);
+				return Album.fromJSON(new JSONObject(data));
+			}
+		});
 	}
 
     public List<Album> getAlbums() throws IOException, JSONException {
@@ -251,25 +295,26 @@ public class SocksoAPIImpl implements SocksoAPI {
 	public List<Album> getAlbums(long from) throws IOException, JSONException {
 		Log.d(TAG, "getAlbums() ran");
 		
-		List<Album> albums = new ArrayList<Album>();
-		AlbumAPI api = new AlbumAPI(mBaseApiUrl);
+		return getList(mAlbumApi, from, new ListParser<Album>() {
 
-		String data = mServer.doGet(api.getAlbumsFrom(from));
-		
-		albums = Album.fromJSONArray(new JSONArray(data));
-		return albums;
+			public List<Album> parse(JSONArray jsonArray) throws JSONException {
+				return Album.fromJSONArray(jsonArray);
+			}
+		});
 	}
 	
 	public Artist getArtist(final String id) throws IOException, JSONException {
 		Log.d(TAG, "getArtist(id) ran");
 		
-		Artist artist = null;
-		ArtistAPI api = new ArtistAPI(mBaseApiUrl);
+		final String url = mArtistApi.getArtist(id);
 
-		String data = mServer.doGet(api.getArtist(id));
+		return sFlights.run(url, new SingleFlight.Call<Artist>() {
 
-		artist = Artist.fromJSON(new JSONObject(data));
-		return artist;
+			public Artist call() throws IOException, JSONException {
+				String data = mServer.doGet(url);
+				return Artist.fromJSON(new JSONObject(data));
+			}
+		});
 	}
 
     public List<Artist> getArtists() throws IOException, JSONException {
@@ -279,25 +324,26 @@ public class SocksoAPIImpl implements SocksoAPI {
 	public List<Artist> getArtists(long from) throws IOException, JSONException {
 		Log.d(TAG, "getArtists() ran");
 		  
-		List<Artist> artists = new ArrayList<Artist>();
-		ArtistAPI api = new ArtistAPI(mBaseApiUrl);
-
-		String data = mServer.doGet(api.getArtistsFrom(from));
+		return getList(mArtistApi, from, new ListParser<Artist>() {
 
-		artists = Artist.fromJSONArray(new JSONArray(data));
-		return artists;
+			public List<Artist> parse(JSONArray jsonArray) throws JSONException {
+				return Artist.fromJSONArray(jsonArray);
+			}
+		});
 	}
 
 	public Track getTrack(final String id) throws IOException, JSONException {
 		Log.d(TAG, "getTrack(id) ran");
 		
-		Track track = null;
-		TrackAPI api = new TrackAPI(mBaseApiUrl);
+		final String url = mTrackApi.getTrack(id);
 
-		String data = mServer.doGet(api.getTrack(id));
+		return sFlights.run(url, new SingleFlight.Call<Track>() {
 
-		track = Track.fromJSON(new JSONObject(data));
-		return track;
+			public Track call() throws IOException, JSONException {
+				String data = mServer.doGet(url);
+				return Track.fromJSON(new JSONObject(data));
+			}
+		});
 	}
 	
 	public List<Track> getTracks() throws IOException, JSONException {
@@ -307,13 +353,12 @@ public class SocksoAPIImpl implements SocksoAPI {
 	public List<Track> getTracks(long from) throws IOException, JSONException {
 		Log.d(TAG, "getTracks() ran");
 		
-		List<Track> tracks = new ArrayList<Track>();
-		TrackAPI api = new TrackAPI(mBaseApiUrl);
-
-		String data = mServer.doGet(api.getTracksFrom(from));
+		return getList(mTrackApi, from, new ListParser<Track>() {
 
-		tracks = Track.fromJSONArray(new JSONArray(data));
-		return tracks;
+			public List<Track> parse(JSONArray jsonArray) throws JSONException {
+				return Track.fromJSONArray(jsonArray);
+			}
+		});
 	}
 
 }
@@ -1,8 +1,36 @@
 package com.pugh.sockso.android.api;
 
+import android.net.Uri;
+
 public class TrackStreamer {
 
 	// /stream/<TRACK.ID>
-	
-	
+	private static final String STREAM = "stream";
+
+	// Asks the server to transcode the stream to the given bitrate (kbps)
+	private static final String BITRATE = "bitrate";
+
+	private final String mBaseUri;
+
+	public TrackStreamer(final String rootUrl) {
+		mBaseUri = rootUrl + "/" + STREAM;
+	}
+
+	// /stream/<id>
+	public String getStreamUrl(long serverId) {
+		return mBaseUri + "/" + serverId;
+	}
+
+	// /stream/<id>?bitrate=<kbps>, a bitrate <= 0 streams the original file
+	public String getStreamUrl(long serverId, int bitrate) {
+
+		if (bitrate <= 0) {
+			return getStreamUrl(serverId);
+		}
+
+		return Uri.parse(getStreamUrl(serverId)).buildUpon()
+				.appendQueryParameter(BITRATE, Integer.toString(bitrate))
+				.build().toString();
+	}
+
 }
@@ -1,21 +1,24 @@
 package com.pugh.sockso.android.data;
 
+import java.io.InterruptedIOException;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.Callable;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.util.Log;
 import android.widget.ImageView;
 
 import com.pugh.sockso.android.ServerFactory;
 import com.pugh.sockso.android.SocksoServer;
+import com.pugh.sockso.android.api.ServerCapabilities;
 import com.pugh.sockso.android.music.Album;
 import com.pugh.sockso.android.music.Artist;
 import com.pugh.sockso.android.music.Track;
+import com.pugh.sockso.android.net.RequestExecutor;
 
 public class CoverArtFetcher {
 
@@ -58,25 +61,17 @@ public class CoverArtFetcher {
         download(musicItemId, imageView);
     }
     
-    public Bitmap downloadBitmap(String musicItemId) {
-        
-        SocksoServer mServer = ServerFactory.getServer(mContext);
-        
-        return mServer.downloadBitmap(musicItemId);
-    }
-
     public void download(String musicItemId, ImageView imageView) {
 
         if (cancelPotentialDownload(musicItemId, imageView)) {
             
-            BitmapDownloaderTask task = new BitmapDownloaderTask(imageView);
-            task.musicItemId = musicItemId;
+            CoverDownload download = new CoverDownload(musicItemId, imageView);
 
             // Set the ImageView to a default image while downloading
-            DownloadedDrawable downloadedDrawable = new DownloadedDrawable(task);
+            DownloadedDrawable downloadedDrawable = new DownloadedDrawable(download);
             imageView.setImageDrawable(downloadedDrawable);
 
-            task.execute(musicItemId);
+            download.start();
         }
     }
 
@@ -94,52 +89,81 @@ public class CoverArtFetcher {
     }
     
     /**
-     * The actual AsyncTask that will asynchronously download the image.
+     * Downloads a cover as prefetch traffic on the RequestExecutor, so it gives way to the audio
+     * stream and doesn't need a thread of its own, and sets it on the imageView (on the main thread).
      */
-    class BitmapDownloaderTask extends AsyncTask<String, Void, Bitmap> {
+    class CoverDownload implements RequestExecutor.Callback<Bitmap> {
 
-        private String musicItemId;
+        private final String musicItemId;
         private final WeakReference<ImageView> imageViewReference;
 
-        public BitmapDownloaderTask(ImageView imageView) {
+        private RequestExecutor.Request<Bitmap> request;
+
+        public CoverDownload(String musicItemId, ImageView imageView) {
+            this.musicItemId = musicItemId;
             imageViewReference = new WeakReference<ImageView>(imageView);
         }
 
-        /**
-         * Actual download method.
-         */
-        @Override
-        protected Bitmap doInBackground(String... params) {
-            musicItemId = params[0];
-            return downloadBitmap(musicItemId);
-        }
+        void start() {
 
-        /**
-         * Once the image is downloaded, associates it to the imageView
-         */  
-        @Override 
-        protected void onPostExecute(Bitmap bitmap) {
-            
-            if (isCancelled()) {
-                bitmap = null;
-            }
+            final SocksoServer server = ServerFactory.getServer(mContext);
+            final int width  = CoverArtFetcher.this.width;
+            final int height = CoverArtFetcher.this.height;
+
+            request = RequestExecutor.getInstance().submit(new Callable<Bitmap>() {
+
+                @Override
+                public Bitmap call() {
+
+                    Bitmap bitmap;
+
+                    // Scaled on the server if it can, so less comes down
+                    if (width > 0 && height > 0 && ServerCapabilities.get(server).supportsSizedCovers()) {
+                        bitmap = server.downloadBitmap(musicItemId, width, height);
+                    }
+                    else {
+                        bitmap = server.downloadBitmap(musicItemId);
+                    }
 
-            if (imageViewReference != null) {
-                ImageView imageView = imageViewReference.get();
-                BitmapDownloaderTask bitmapDownloaderTask = getBitmapDownloaderTask(imageView);
-                
-                // Change bitmap only if this process is still associated with it
-                if (this == bitmapDownloaderTask && bitmap != null) {
-                    if (width > 0 && height > 0) {
+                    if (bitmap != null && width > 0 && height > 0) {
                         // resize bitmap
                         bitmap = Bitmap.createScaledBitmap(bitmap, width, height, false);
                     }
 
-                    imageView.setImageBitmap(bitmap);
-
-                    // Now cache it in memory:
-                    mMemCache.addCover(musicItemId, bitmap);
+                    return bitmap;
                 }
+            }, RequestExecutor.PRIORITY_PREFETCH, RequestExecutor.NO_DEADLINE, this);
+        }
+
+        void cancel() {
+            request.cancel(true);
+        }
+
+        /**
+         * Once the image is downloaded, associates it to the imageView
+         */
+        @Override
+        public void onResult(Bitmap bitmap) {
+
+            ImageView imageView = imageViewReference.get();
+            CoverDownload download = getCoverDownload(imageView);
+
+            // Change bitmap only if this download is still associated with it
+            if (this == download && bitmap != null) {
+
+                imageView.setImageBitmap(bitmap);
+
+                // Now cache it in memory:
+                mMemCache.addCover(musicItemId, bitmap);
+            }
+        }
+
+        @Override
+        public void onError(Exception error) {
+
+            // Cancelled, the imageView has moved on to another cover
+            if (! (error instanceof InterruptedIOException)) {
+                Log.w(TAG, "Error downloading cover " + musicItemId, error);
             }
         }
     }
@@ -153,14 +177,14 @@ public class CoverArtFetcher {
      */
     private static boolean cancelPotentialDownload(String musicItemId, ImageView imageView) {
 
-        BitmapDownloaderTask bitmapDownloaderTask = getBitmapDownloaderTask(imageView);
+        CoverDownload download = getCoverDownload(imageView);
 
-        if (bitmapDownloaderTask != null) {
+        if (download != null) {
 
-            String bitmapUrl = bitmapDownloaderTask.musicItemId;
+            String bitmapUrl = download.musicItemId;
 
             if ((bitmapUrl == null) || (!bitmapUrl.equals(musicItemId))) {
-                bitmapDownloaderTask.cancel(true);
+                download.cancel();
             }
             else {
                 // The same URL is already being downloaded.
@@ -172,10 +196,10 @@ public class CoverArtFetcher {
 
     /**
      * @param imageView Any imageView
-     * @return Retrieve the currently active download task (if any) associated with this imageView.
-     *         null if there is no such task.
+     * @return Retrieve the currently active download (if any) associated with this imageView.
+     *         null if there is no such download.
      */
-    private static BitmapDownloaderTask getBitmapDownloaderTask(ImageView imageView) {
+    private static CoverDownload getCoverDownload(ImageView imageView) {
 
         if (imageView != null) {
             Drawable drawable = imageView.getDrawable();
@@ -183,7 +207,7 @@ public class CoverArtFetcher {
             if (drawable instanceof DownloadedDrawable) {
                 DownloadedDrawable downloadedDrawable = (DownloadedDrawable) drawable;
 
-                return downloadedDrawable.getBitmapDownloaderTask();
+                return downloadedDrawable.getCoverDownload();
             }
         }
         return null;
@@ -192,22 +216,22 @@ public class CoverArtFetcher {
     /**
      * A fake Drawable that will be attached to the imageView while the download is in progress.
      * <p>
-     * Contains a reference to the actual download task, so that a download task can be stopped if a
+     * Contains a reference to the actual download, so that a download can be stopped if a
      * new binding is required, and makes sure that only the last started download process can bind
      * its result, independently of the download finish order.
      * </p>
      */
     private static class DownloadedDrawable extends ColorDrawable {
 
-        private final WeakReference<BitmapDownloaderTask> bitmapDownloaderTaskReference;
+        private final WeakReference<CoverDownload> coverDownloadReference;
 
-        public DownloadedDrawable(BitmapDownloaderTask bitmapDownloaderTask) {
+        public DownloadedDrawable(CoverDownload coverDownload) {
             super(Color.YELLOW);
-            bitmapDownloaderTaskReference = new WeakReference<BitmapDownloaderTask>(bitmapDownloaderTask);
+            coverDownloadReference = new WeakReference<CoverDownload>(coverDownload);
         }
 
-        public BitmapDownloaderTask getBitmapDownloaderTask() {
-            return bitmapDownloaderTaskReference.get();
+        public CoverDownload getCoverDownload() {
+            return coverDownloadReference.get();
         }
     }
 
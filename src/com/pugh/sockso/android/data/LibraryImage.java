@@ -0,0 +1,572 @@
+package com.pugh.sockso.android.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.pugh.sockso.android.data.SocksoProvider.AlbumColumns;
+import com.pugh.sockso.android.data.SocksoProvider.ArtistColumns;
+import com.pugh.sockso.android.data.SocksoProvider.TrackColumns;
+
+/**
+ * A read-only binary image of the artist, album and track lists, written after each sync
+ * and memory-mapped at startup, so the lists can show their first page without opening
+ * the database (see {@link PagedCursorLoader}).
+ * <p/>
+ * Layout (big-endian):
+ * <pre>
+ * header:  magic, format version, generation (long), body length, CRC32 of the body
+ * body:    for each list (artists, albums, tracks): row count, offset of its records
+ *          offset of the strings
+ *          records, RECORD_SIZE bytes each, in list order:
+ *              _id, server_id, name, sort_key, artist name, album name, track_no
+ *              (strings are offsets into the strings, -1 for none)
+ *          strings: byte length then UTF-8 bytes
+ * </pre>
+ * The image is only used if its generation is the one the last sync recorded: a sync marks the
+ * image out of date before it touches the database, and writes the new one once it's done.
+ * An image that's out of date, of another format version or fails its checksum is ignored
+ * and the lists are read from the database.
+ */
+public final class LibraryImage {
+
+    private static final String TAG = LibraryImage.class.getSimpleName();
+
+    private static final String FILE_NAME = "library.img";
+
+    // SharedPreferences key of the generation the database is at
+    private static final String GENERATION = "library_image_generation";
+
+    private static final int MAGIC          = 0x534c4942; // "SLIB"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 24;
+    private static final int RECORD_SIZE = 28;
+
+    // Record fields (byte offsets)
+    private static final int REC_ID          = 0;
+    private static final int REC_SERVER_ID   = 4;
+    private static final int REC_NAME        = 8;
+    private static final int REC_SORT_KEY    = 12;
+    private static final int REC_ARTIST_NAME = 16;
+    private static final int REC_ALBUM_NAME  = 20;
+    private static final int REC_TRACK_NO    = 24;
+
+    // Lists, in the order they're stored
+    private static final String[] LISTS = { ArtistColumns.TABLE_NAME, AlbumColumns.TABLE_NAME, TrackColumns.TABLE_NAME };
+
+    private static final Object sLock = new Object();
+    private static volatile LibraryImage sImage;
+    private static volatile boolean sChecked = false;
+
+    private final ByteBuffer mBuffer;
+    private final int[] mRowCounts;
+    private final int[] mRecordOffsets;
+    private final int mStringsOffset;
+
+    private LibraryImage(ByteBuffer buffer) {
+
+        mBuffer = buffer;
+
+        int position = HEADER_SIZE;
+
+        mRowCounts     = new int[LISTS.length];
+        mRecordOffsets = new int[LISTS.length];
+
+        for (int i = 0; i < LISTS.length; i++) {
+            mRowCounts[i]     = buffer.getInt(position);
+            mRecordOffsets[i] = buffer.getInt(position + 4);
+            position += 8;
+        }
+
+        mStringsOffset = buffer.getInt(position);
+    }
+
+    /**
+     * Returns the image, mapping and checking it the first time, or null if there isn't
+     * a usable one. Don't call it on the main thread.
+     */
+    public static LibraryImage get(Context context) {
+
+        if (sChecked) {
+            return sImage;
+        }
+
+        synchronized (sLock) {
+
+            if (! sChecked) {
+                sImage   = open(context);
+                sChecked = true;
+            }
+
+            return sImage;
+        }
+    }
+
+    private static LibraryImage open(Context context) {
+
+        File file = new File(context.getFilesDir(), FILE_NAME);
+
+        if (! file.exists()) {
+            return null;
+        }
+
+        long generation = getGeneration(context);
+        FileInputStream in = null;
+
+        try {
+            in = new FileInputStream(file);
+
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                Log.w(TAG, "Bad image size: " + size);
+                return null;
+            }
+
+            // The mapping stays valid after the file is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+                Log.i(TAG, "Image is of another format, ignoring it");
+                return null;
+            }
+
+            if (buffer.getLong(8) != generation) {
+                Log.i(TAG, "Image is out of date, ignoring it");
+                return null;
+            }
+
+            int length = buffer.getInt(16);
+
+            if (length != size - HEADER_SIZE || crc(buffer, HEADER_SIZE, length) != buffer.getInt(20)) {
+                Log.w(TAG, "Image is corrupt, ignoring it");
+                return null;
+            }
+
+            Log.d(TAG, "Mapped image: " + size + " bytes");
+
+            return new LibraryImage(buffer);
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Couldn't map image: " + e.getMessage());
+            return null;
+        }
+        finally {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(offset);
+
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+
+        while (length > 0) {
+            int count = Math.min(length, chunk.length);
+            body.get(chunk, 0, count);
+            crc.update(chunk, 0, count);
+            length -= count;
+        }
+
+        return (int) crc.getValue();
+    }
+
+    private static long getGeneration(Context context) {
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        return prefs.getLong(GENERATION, 0);
+    }
+
+    /**
+     * Marks the image out of date: the database is about to change to the given generation
+     */
+    public static void invalidate(Context context, long generation) {
+
+        synchronized (sLock) {
+
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            prefs.edit().putLong(GENERATION, generation).commit();
+
+            sImage   = null;
+            sChecked = true; // no image until the new one is written
+        }
+    }
+
+    /**
+     * Writes the image of the database as it is now, for the given generation
+     * (the one passed to invalidate()). Don't call it on the main thread.
+     */
+    public static void write(Context context, long generation) {
+
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        File temp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+        File strings = new File(context.getFilesDir(), FILE_NAME + ".strings.tmp");
+
+        try {
+            writeImage(context.getContentResolver(), generation, temp, strings);
+
+            // Replaced in one go, so a half written image is never read
+            if (! temp.renameTo(file)) {
+                throw new IOException("Couldn't rename " + temp);
+            }
+
+            Log.d(TAG, "Wrote image: " + file.length() + " bytes");
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Couldn't write image: " + e.getMessage());
+            temp.delete();
+        }
+        finally {
+            strings.delete();
+        }
+
+        // Map the new image the next time it's asked for
+        synchronized (sLock) {
+            sImage   = null;
+            sChecked = false;
+        }
+    }
+
+    private static String[] columns(int list) {
+
+        switch (list) {
+        case 0:
+            return new String[] { ArtistColumns._ID, ArtistColumns.SERVER_ID, ArtistColumns.NAME,
+                    ArtistColumns.SORT_KEY };
+        case 1:
+            return new String[] { AlbumColumns._ID, AlbumColumns.SERVER_ID, AlbumColumns.NAME, AlbumColumns.SORT_KEY,
+                    AlbumColumns.ARTIST_NAME };
+        default:
+            return new String[] { TrackColumns._ID, TrackColumns.SERVER_ID, TrackColumns.NAME, TrackColumns.SORT_KEY,
+                    TrackColumns.ARTIST_NAME, TrackColumns.ALBUM_NAME, TrackColumns.TRACK_NO };
+        }
+    }
+
+    /**
+     * Streams the image to the file, so it's never all in memory: the records go straight to
+     * it, the strings to a file of their own that's appended after them, and the checksum is
+     * worked out as the body is written. The header is filled in last.
+     */
+    private static void writeImage(ContentResolver resolver, long generation, File file, File stringsFile)
+            throws IOException {
+
+        Cursor[] cursors = new Cursor[LISTS.length];
+
+        try {
+            // Row counts first, so the offsets can be written before the records
+            for (int i = 0; i < LISTS.length; i++) {
+
+                String table = LISTS[i];
+                String order = table + "." + ArtistColumns.SORT_KEY + " ASC, " + table + "." + ArtistColumns._ID + " ASC";
+
+                cursors[i] = resolver.query(Uri.parse(SocksoProvider.CONTENT_URI + "/" + table), columns(i), null, null,
+                        order);
+
+                if (cursors[i] == null) {
+                    throw new IOException("No cursor for " + table);
+                }
+            }
+
+            CRC32 crc = new CRC32();
+            int length;
+
+            FileOutputStream out = new FileOutputStream(file);
+
+            try {
+                // Room for the header
+                out.write(new byte[HEADER_SIZE]);
+
+                DataOutputStream body = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(out, crc)));
+
+                // Offsets are from the start of the file
+                int offset = HEADER_SIZE + LISTS.length * 8 + 4;
+
+                for (int i = 0; i < LISTS.length; i++) {
+                    body.writeInt(cursors[i].getCount());
+                    body.writeInt(offset);
+                    offset += cursors[i].getCount() * RECORD_SIZE;
+                }
+                body.writeInt(offset); // the strings follow the records
+
+                writeRecords(cursors, body, stringsFile);
+                body.flush();
+
+                length = body.size();
+            }
+            finally {
+                out.close();
+            }
+
+            RandomAccessFile image = new RandomAccessFile(file, "rw");
+
+            try {
+                image.writeInt(MAGIC);
+                image.writeInt(FORMAT_VERSION);
+                image.writeLong(generation);
+                image.writeInt(length);
+                image.writeInt((int) crc.getValue());
+
+                image.getFD().sync();
+            }
+            finally {
+                image.close();
+            }
+        }
+        finally {
+            for (Cursor cursor : cursors) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    // Writes the records of the lists, then their strings
+    private static void writeRecords(Cursor[] cursors, DataOutputStream body, File stringsFile) throws IOException {
+
+        DataOutputStream strings = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stringsFile)));
+        Map<String, Integer> stringOffsets = new HashMap<String, Integer>();
+
+        try {
+            for (Cursor cursor : cursors) {
+
+                final int columns = cursor.getColumnCount();
+                int rows = 0;
+
+                while (cursor.moveToNext()) {
+
+                    body.writeInt(cursor.getInt(0));
+                    body.writeInt(cursor.getInt(1));
+                    body.writeInt(addString(cursor.getString(2), strings, stringOffsets));
+                    body.writeInt(addString(cursor.getString(3), strings, stringOffsets));
+                    body.writeInt(columns > 4 ? addString(cursor.getString(4), strings, stringOffsets) : -1);
+                    body.writeInt(columns > 5 ? addString(cursor.getString(5), strings, stringOffsets) : -1);
+                    body.writeInt(columns > 6 ? cursor.getInt(6) : 0);
+
+                    rows++;
+                }
+
+                // The offsets already written depend on it
+                if (rows != cursor.getCount()) {
+                    throw new IOException("List changed while it was written");
+                }
+            }
+        }
+        finally {
+            strings.close();
+        }
+
+        FileInputStream in = new FileInputStream(stringsFile);
+
+        try {
+            byte[] chunk = new byte[8192];
+            int count;
+
+            while ((count = in.read(chunk)) != -1) {
+                body.write(chunk, 0, count);
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static int addString(String string, DataOutputStream strings, Map<String, Integer> offsets)
+            throws IOException {
+
+        if (string == null) {
+            return -1;
+        }
+
+        Integer offset = offsets.get(string);
+
+        if (offset == null) {
+            byte[] bytes = string.getBytes("UTF-8");
+
+            offset = strings.size();
+            strings.writeInt(bytes.length);
+            strings.write(bytes);
+
+            offsets.put(string, offset);
+        }
+
+        return offset;
+    }
+
+    /**
+     * Returns rows of a list, like the provider's list URIs do with the paging parameters,
+     * or null if the image can't answer the query (unknown list or columns).
+     *
+     * @param list the list's table name
+     * @param afterKey only rows after this sort key/_id pair, or null to start at the top
+     * @param limit at most this many rows, 0 for all of them
+     */
+    public Cursor query(String list, String[] projection, String afterKey, long afterId, int limit) {
+
+        int index = Arrays.asList(LISTS).indexOf(list);
+
+        if (index == -1) {
+            return null;
+        }
+
+        int[] fields = new int[projection.length];
+
+        for (int i = 0; i < projection.length; i++) {
+
+            fields[i] = fieldFor(index, projection[i]);
+
+            if (fields[i] == -1) {
+                return null;
+            }
+        }
+
+        // Each query reads strings through its own view of the buffer
+        ByteBuffer buffer = mBuffer.duplicate();
+        byte[] scratch = new byte[256];
+
+        int rows = mRowCounts[index];
+        int row  = (afterKey == null) ? 0 : firstRowAfter(buffer, index, afterKey, afterId);
+        int end  = (limit > 0) ? Math.min(rows, row + limit) : rows;
+
+        MatrixCursor cursor = new MatrixCursor(projection, Math.max(end - row, 0));
+        Object[] values = new Object[projection.length];
+
+        for (; row < end; row++) {
+
+            int record = mRecordOffsets[index] + row * RECORD_SIZE;
+
+            for (int i = 0; i < fields.length; i++) {
+
+                int field = fields[i];
+
+                switch (field) {
+                case REC_ID:
+                    values[i] = Long.valueOf(buffer.getInt(record + REC_ID));
+                    break;
+                case REC_SERVER_ID:
+                case REC_TRACK_NO:
+                    values[i] = Integer.valueOf(buffer.getInt(record + field));
+                    break;
+                default:
+                    values[i] = readString(buffer, buffer.getInt(record + field), scratch);
+                    break;
+                }
+            }
+
+            cursor.addRow(values);
+        }
+
+        return cursor;
+    }
+
+    private static int fieldFor(int list, String column) {
+
+        if (ArtistColumns._ID.equals(column)) {
+            return REC_ID;
+        }
+        if (ArtistColumns.SERVER_ID.equals(column)) {
+            return REC_SERVER_ID;
+        }
+        if (ArtistColumns.NAME.equals(column)) {
+            return REC_NAME;
+        }
+        if (ArtistColumns.SORT_KEY.equals(column)) {
+            return REC_SORT_KEY;
+        }
+        if (list > 0 && AlbumColumns.ARTIST_NAME.equals(column)) {
+            return REC_ARTIST_NAME;
+        }
+        if (list > 1 && TrackColumns.ALBUM_NAME.equals(column)) {
+            return REC_ALBUM_NAME;
+        }
+        if (list > 1 && TrackColumns.TRACK_NO.equals(column)) {
+            return REC_TRACK_NO;
+        }
+
+        return -1;
+    }
+
+    private String readString(ByteBuffer buffer, int offset, byte[] scratch) {
+
+        if (offset < 0) {
+            return null;
+        }
+
+        int position = mStringsOffset + offset;
+        int length = buffer.getInt(position);
+        byte[] bytes = (length <= scratch.length) ? scratch : new byte[length];
+
+        buffer.position(position + 4);
+        buffer.get(bytes, 0, length);
+
+        try {
+            return new String(bytes, 0, length, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // UTF-8 is always there
+        }
+    }
+
+    // Binary search for the first row after the sort key/_id pair
+    private int firstRowAfter(ByteBuffer buffer, int list, String afterKey, long afterId) {
+
+        byte[] scratch = new byte[256];
+
+        int low  = 0;
+        int high = mRowCounts[list];
+
+        while (low < high) {
+
+            int mid = (low + high) >>> 1;
+            int record = mRecordOffsets[list] + mid * RECORD_SIZE;
+
+            String key = readString(buffer, buffer.getInt(record + REC_SORT_KEY), scratch);
+            int result = (key == null) ? -1 : key.compareTo(afterKey);
+
+            if (result < 0 || (result == 0 && buffer.getInt(record + REC_ID) <= afterId)) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+}
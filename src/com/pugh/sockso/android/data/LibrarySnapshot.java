@@ -0,0 +1,847 @@
+package com.pugh.sockso.android.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.pugh.sockso.android.Preferences;
+import com.pugh.sockso.android.data.SocksoProvider.AlbumColumns;
+import com.pugh.sockso.android.data.SocksoProvider.ArtistColumns;
+import com.pugh.sockso.android.data.SocksoProvider.TrackColumns;
+
+/**
+ * An in-memory copy of the artist, album and track lists, so browsing them doesn't have to
+ * go through SQLite (see {@link PagedCursorLoader}).
+ * <p/>
+ * The snapshot is columnar: every list is a set of parallel int arrays (local and server ids,
+ * foreign keys as server ids) with the rows stored in list order, so a row's index is its
+ * sort rank. Names and sort keys are indexes into one pool of distinct strings, shared by all
+ * the lists. Artist and album names of albums and tracks are looked up through the foreign keys,
+ * so they're only stored once.
+ * <p/>
+ * It's optional (see {@link Preferences#LIBRARY_SNAPSHOT}) and never bigger than {@link #MAX_BYTES}:
+ * a library that doesn't fit isn't kept in memory at all and the lists are read from the database.
+ * The size is tracked while the library is read, so reading stops as soon as it's too big, and
+ * it isn't read again until the number of rows changes. After each sync only the synced rows
+ * are read back and merged in.
+ * <p/>
+ * Snapshots are immutable, a refresh builds a new one and swaps it in.
+ */
+public final class LibrarySnapshot {
+
+    private static final String TAG = LibrarySnapshot.class.getSimpleName();
+
+    /**
+     * Upper bound of the (estimated) memory used by a snapshot, in bytes
+     */
+    public static final long MAX_BYTES = 4 * 1024 * 1024;
+
+    // Server ids per "IN (...)" when reading back synced rows (SQLite allows 999 arguments)
+    private static final int IN_CHUNK = 500;
+
+    // Rough size of a String with no chars, for the memory estimate
+    private static final int STRING_OVERHEAD = 40;
+
+    private static final Object sLock = new Object();
+    private static volatile LibrarySnapshot sSnapshot;
+
+    // Rows in the lists when the library was last found too big, -1 if it hasn't been
+    private static int sTooBigRows = -1;
+
+    /**
+     * The estimated size of a snapshot being built, which stops the build once it's too big
+     */
+    private static final class Budget {
+
+        long bytes = 0;
+
+        void spend(long amount) {
+
+            bytes += amount;
+
+            if (bytes > MAX_BYTES) {
+                throw new TooBigException();
+            }
+        }
+    }
+
+    private static final class TooBigException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * One list, in list order (by sort key, then _id)
+     */
+    private static final class Table {
+
+        final int size;
+
+        final int[] ids;
+        final int[] serverIds;
+        final int[] names;     // string pool indexes
+        final int[] sortKeys;  // string pool indexes
+        final int[] artistIds; // artist server ids (albums and tracks, otherwise null)
+        final int[] albumIds;  // album server ids (tracks, otherwise null)
+        final int[] trackNos;  // tracks, otherwise null
+
+        // Row indexes ordered by server id, to look rows up by foreign key
+        final int[] byServerId;
+
+        Table(int size, int[] ids, int[] serverIds, int[] names, int[] sortKeys, int[] artistIds, int[] albumIds,
+                int[] trackNos) {
+
+            this.size      = size;
+            this.ids       = ids;
+            this.serverIds = serverIds;
+            this.names     = names;
+            this.sortKeys  = sortKeys;
+            this.artistIds = artistIds;
+            this.albumIds  = albumIds;
+            this.trackNos  = trackNos;
+
+            byServerId = sortedRows(serverIds, size);
+        }
+
+        // Row with the given server id, -1 if there isn't one
+        int findServerId(int serverId) {
+
+            int low  = 0;
+            int high = size - 1;
+
+            while (low <= high) {
+
+                int mid = (low + high) >>> 1;
+                int value = serverIds[byServerId[mid]];
+
+                if (value < serverId) {
+                    low = mid + 1;
+                }
+                else if (value > serverId) {
+                    high = mid - 1;
+                }
+                else {
+                    return byServerId[mid];
+                }
+            }
+
+            return -1;
+        }
+
+        long bytes() {
+
+            int columns = 5 + (artistIds != null ? 1 : 0) + (albumIds != null ? 1 : 0) + (trackNos != null ? 1 : 0);
+
+            return 4L * columns * size;
+        }
+    }
+
+    /**
+     * Rows being read in, grown as needed
+     */
+    private static final class TableBuilder {
+
+        final boolean hasArtist;
+        final boolean hasAlbum;
+        final boolean hasTrackNo;
+
+        // Rows end up in the snapshot if there's a budget, else they're only temporary
+        final Budget budget;
+        final int rowBytes;
+
+        int size = 0;
+        int[] ids, serverIds, names, sortKeys, artistIds, albumIds, trackNos;
+
+        TableBuilder(boolean hasArtist, boolean hasAlbum, boolean hasTrackNo, int capacity, Budget budget) {
+
+            this.hasArtist  = hasArtist;
+            this.hasAlbum   = hasAlbum;
+            this.hasTrackNo = hasTrackNo;
+            this.budget     = budget;
+            this.rowBytes   = 4 * (4 + (hasArtist ? 1 : 0) + (hasAlbum ? 1 : 0) + (hasTrackNo ? 1 : 0));
+
+            capacity  = Math.max(capacity, 16);
+            ids       = new int[capacity];
+            serverIds = new int[capacity];
+            names     = new int[capacity];
+            sortKeys  = new int[capacity];
+            artistIds = hasArtist  ? new int[capacity] : null;
+            albumIds  = hasAlbum   ? new int[capacity] : null;
+            trackNos  = hasTrackNo ? new int[capacity] : null;
+        }
+
+        // Adds row "row" of the table
+        void add(Table table, int row) {
+            add(table.ids[row], table.serverIds[row], table.names[row], table.sortKeys[row],
+                    hasArtist  ? table.artistIds[row] : 0,
+                    hasAlbum   ? table.albumIds[row]  : 0,
+                    hasTrackNo ? table.trackNos[row]  : 0);
+        }
+
+        void add(int id, int serverId, int name, int sortKey, int artistId, int albumId, int trackNo) {
+
+            if (budget != null) {
+                budget.spend(rowBytes);
+            }
+
+            if (size == ids.length) {
+                int capacity = size * 2;
+                ids       = copyOf(ids, capacity);
+                serverIds = copyOf(serverIds, capacity);
+                names     = copyOf(names, capacity);
+                sortKeys  = copyOf(sortKeys, capacity);
+                artistIds = hasArtist  ? copyOf(artistIds, capacity) : null;
+                albumIds  = hasAlbum   ? copyOf(albumIds, capacity)  : null;
+                trackNos  = hasTrackNo ? copyOf(trackNos, capacity)  : null;
+            }
+
+            ids[size]       = id;
+            serverIds[size] = serverId;
+            names[size]     = name;
+            sortKeys[size]  = sortKey;
+
+            if (hasArtist) {
+                artistIds[size] = artistId;
+            }
+            if (hasAlbum) {
+                albumIds[size] = albumId;
+            }
+            if (hasTrackNo) {
+                trackNos[size] = trackNo;
+            }
+
+            size++;
+        }
+
+        Table build() {
+            return new Table(size, copyOf(ids, size), copyOf(serverIds, size), copyOf(names, size),
+                    copyOf(sortKeys, size),
+                    hasArtist  ? copyOf(artistIds, size) : null,
+                    hasAlbum   ? copyOf(albumIds, size)  : null,
+                    hasTrackNo ? copyOf(trackNos, size)  : null);
+        }
+    }
+
+    // Arrays.copyOf() isn't available before Gingerbread
+    private static int[] copyOf(int[] array, int length) {
+
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+
+        return copy;
+    }
+
+    /**
+     * Distinct strings, referred to by index
+     */
+    private static final class StringPoolBuilder {
+
+        final List<String> strings;
+        final Map<String, Integer> indexes;
+        final Budget budget;
+
+        StringPoolBuilder(String[] existing, Budget budget) {
+
+            this.budget = budget;
+
+            strings = new ArrayList<String>(existing.length + 64);
+            indexes = new HashMap<String, Integer>(existing.length * 2 + 64);
+
+            for (String string : existing) {
+                add(string);
+            }
+        }
+
+        int add(String string) {
+
+            if (string == null) {
+                string = "";
+            }
+
+            Integer index = indexes.get(string);
+
+            if (index == null) {
+                budget.spend(4 + STRING_OVERHEAD + 2 * string.length());
+                index = strings.size();
+                strings.add(string);
+                indexes.put(string, index);
+            }
+
+            return index;
+        }
+    }
+
+    // Lists, in the order of mTables
+    private static final String[] LISTS = { ArtistColumns.TABLE_NAME, AlbumColumns.TABLE_NAME, TrackColumns.TABLE_NAME };
+
+    private static final int ARTISTS = 0;
+    private static final int ALBUMS  = 1;
+    private static final int TRACKS  = 2;
+
+    private final String[] mStrings;
+    private final Table[] mTables;
+    private final long mBytes;
+
+    private LibrarySnapshot(String[] strings, Table[] tables) {
+
+        mStrings = strings;
+        mTables  = tables;
+
+        long bytes = 4L * strings.length;
+
+        for (String string : strings) {
+            bytes += STRING_OVERHEAD + 2 * string.length();
+        }
+        for (Table table : tables) {
+            bytes += table.bytes();
+        }
+
+        mBytes = bytes;
+    }
+
+    /**
+     * Returns the current snapshot, or null if there isn't one (yet)
+     */
+    public static LibrarySnapshot peek() {
+        return sSnapshot;
+    }
+
+    public static boolean isEnabled(Context context) {
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        return prefs.getBoolean(Preferences.LIBRARY_SNAPSHOT, true);
+    }
+
+    /**
+     * Builds the snapshot from the database if it's enabled and there isn't one yet.
+     * Reads the whole library, so don't call it on the main thread.
+     */
+    public static void load(Context context) {
+
+        synchronized (sLock) {
+
+            if (! isEnabled(context)) {
+                sSnapshot = null;
+                return;
+            }
+
+            if (sSnapshot == null) {
+                swapIn(context, buildAll(context.getContentResolver()));
+            }
+        }
+    }
+
+    /**
+     * Merges in the rows that were just synced (given by server id). Builds the whole snapshot
+     * if there isn't one. Don't call it on the main thread.
+     */
+    public static void refresh(Context context, int[] artistIds, int[] albumIds, int[] trackIds) {
+
+        synchronized (sLock) {
+
+            if (! isEnabled(context)) {
+                sSnapshot = null;
+                return;
+            }
+
+            LibrarySnapshot previous = sSnapshot;
+            ContentResolver resolver = context.getContentResolver();
+
+            if (previous == null) {
+                swapIn(context, buildAll(resolver));
+                return;
+            }
+
+            int[][] changed = { artistIds, albumIds, trackIds };
+            LibrarySnapshot snapshot = build(resolver, previous, changed);
+
+            if (snapshot == null) {
+                sTooBigRows = countRows(resolver);
+            }
+
+            swapIn(context, snapshot);
+        }
+    }
+
+    // Builds the snapshot from the whole library, unless it was too big and hasn't changed size
+    private static LibrarySnapshot buildAll(ContentResolver resolver) {
+
+        int rows = countRows(resolver);
+
+        if (rows == sTooBigRows) {
+            Log.d(TAG, "Library still too big to keep in memory");
+            return null;
+        }
+
+        LibrarySnapshot snapshot = build(resolver, null, null);
+
+        sTooBigRows = (snapshot == null) ? rows : -1;
+
+        return snapshot;
+    }
+
+    // Rows in all the lists
+    private static int countRows(ContentResolver resolver) {
+
+        int rows = 0;
+
+        for (String list : LISTS) {
+
+            Cursor cursor = resolver.query(Uri.parse(SocksoProvider.CONTENT_URI + "/" + list),
+                    new String[] { ArtistColumns._ID }, null, null, null);
+
+            if (cursor != null) {
+                rows += cursor.getCount();
+                cursor.close();
+            }
+        }
+
+        return rows;
+    }
+
+    // Keeps the snapshot (null if there isn't one), and tells the lists to reload from it
+    private static void swapIn(Context context, LibrarySnapshot snapshot) {
+
+        sSnapshot = snapshot;
+
+        if (snapshot != null) {
+            Log.d(TAG, "Snapshot: " + snapshot.mTables[ARTISTS].size + " artists, " + snapshot.mTables[ALBUMS].size
+                    + " albums, " + snapshot.mTables[TRACKS].size + " tracks, " + snapshot.mStrings.length
+                    + " strings, ~" + snapshot.mBytes + " bytes");
+        }
+
+        ContentResolver resolver = context.getContentResolver();
+
+        for (String list : LISTS) {
+            resolver.notifyChange(Uri.parse(SocksoProvider.CONTENT_URI + "/" + list), null);
+        }
+    }
+
+    /**
+     * Builds a snapshot, reading either the whole library (changed == null)
+     * or just the changed rows of each list and merging them into the previous snapshot.
+     * Returns null if it's too big, as soon as that's found out.
+     */
+    private static LibrarySnapshot build(ContentResolver resolver, LibrarySnapshot previous, int[][] changed) {
+
+        Budget budget = new Budget();
+
+        try {
+            StringPoolBuilder pool = new StringPoolBuilder(previous != null ? previous.mStrings : new String[0], budget);
+            Table[] tables = new Table[LISTS.length];
+
+            for (int i = 0; i < LISTS.length; i++) {
+
+                if (changed == null) {
+                    TableBuilder rows = newBuilder(i, 0, budget);
+                    readRows(resolver, i, null, null, rows, pool);
+                    tables[i] = rows.build();
+                }
+                else {
+                    int[] serverIds = (changed[i] != null) ? changed[i] : new int[0];
+
+                    tables[i] = merge(i, previous.mTables[i], readChangedRows(resolver, i, serverIds, pool), serverIds,
+                            pool.strings, budget);
+                }
+            }
+
+            return compact(pool.strings.toArray(new String[pool.strings.size()]), tables);
+        }
+        catch (TooBigException e) {
+            Log.w(TAG, "Library too big to keep in memory: over " + budget.bytes + " bytes");
+            return null;
+        }
+    }
+
+    private static TableBuilder newBuilder(int list, int capacity, Budget budget) {
+        return new TableBuilder(list != ARTISTS, list == TRACKS, list == TRACKS, capacity, budget);
+    }
+
+    private static String[] columns(int list) {
+
+        switch (list) {
+        case ARTISTS:
+            return new String[] { ArtistColumns._ID, ArtistColumns.SERVER_ID, ArtistColumns.NAME,
+                    ArtistColumns.SORT_KEY };
+        case ALBUMS:
+            return new String[] { AlbumColumns._ID, AlbumColumns.SERVER_ID, AlbumColumns.NAME, AlbumColumns.SORT_KEY,
+                    AlbumColumns.ARTIST_ID };
+        default:
+            return new String[] { TrackColumns._ID, TrackColumns.SERVER_ID, TrackColumns.NAME, TrackColumns.SORT_KEY,
+                    TrackColumns.ARTIST_ID, TrackColumns.ALBUM_ID, TrackColumns.TRACK_NO };
+        }
+    }
+
+    private static String fullServerId(int list) {
+
+        switch (list) {
+        case ARTISTS:
+            return ArtistColumns.FULL_SERVER_ID;
+        case ALBUMS:
+            return AlbumColumns.FULL_SERVER_ID;
+        default:
+            return TrackColumns.FULL_SERVER_ID;
+        }
+    }
+
+    // Reads rows of the list (all, or those matching the selection) in list order
+    private static void readRows(ContentResolver resolver, int list, String selection, String[] selectionArgs,
+            TableBuilder rows, StringPoolBuilder pool) {
+
+        String table = LISTS[list];
+        String order = table + "." + ArtistColumns.SORT_KEY + " ASC, " + table + "." + ArtistColumns._ID + " ASC";
+
+        Cursor cursor = resolver.query(Uri.parse(SocksoProvider.CONTENT_URI + "/" + table), columns(list), selection,
+                selectionArgs, order);
+
+        if (cursor == null) {
+            return;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                rows.add(cursor.getInt(0), cursor.getInt(1), pool.add(cursor.getString(2)),
+                        pool.add(cursor.getString(3)),
+                        rows.hasArtist  ? cursor.getInt(4) : 0,
+                        rows.hasAlbum   ? cursor.getInt(5) : 0,
+                        rows.hasTrackNo ? cursor.getInt(6) : 0);
+            }
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    // Reads the rows with the given server ids, sorted into list order
+    private static Table readChangedRows(ContentResolver resolver, int list, int[] serverIds, StringPoolBuilder pool) {
+
+        TableBuilder rows = newBuilder(list, serverIds.length, null);
+
+        for (int start = 0; start < serverIds.length; start += IN_CHUNK) {
+
+            int end = Math.min(start + IN_CHUNK, serverIds.length);
+
+            StringBuilder selection = new StringBuilder(fullServerId(list)).append(" IN (");
+            String[] args = new String[end - start];
+
+            for (int i = start; i < end; i++) {
+                selection.append(i > start ? ",?" : "?");
+                args[i - start] = String.valueOf(serverIds[i]);
+            }
+            selection.append(")");
+
+            readRows(resolver, list, selection.toString(), args, rows, pool);
+        }
+
+        Table table = rows.build();
+
+        // Each chunk came back sorted, but not the chunks as a whole
+        Integer[] order = new Integer[table.size];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new RowComparator(table, pool.strings));
+
+        TableBuilder sorted = newBuilder(list, table.size, null);
+        for (Integer row : order) {
+            sorted.add(table, row);
+        }
+
+        return sorted.build();
+    }
+
+    /**
+     * Replaces the changed rows of the previous table by the ones read back, keeping list order.
+     * Both tables are in list order, so it's one pass over them.
+     */
+    private static Table merge(int list, Table previous, Table changedRows, int[] changed, List<String> strings,
+            Budget budget) {
+
+        int[] changedIds = changed.clone();
+        Arrays.sort(changedIds);
+
+        TableBuilder rows = newBuilder(list, previous.size + changedRows.size, budget);
+
+        int next = 0; // next changed row
+
+        for (int row = 0; row < previous.size; row++) {
+
+            // Left out, it's replaced (or gone)
+            if (Arrays.binarySearch(changedIds, previous.serverIds[row]) >= 0) {
+                continue;
+            }
+
+            while (next < changedRows.size && compare(changedRows, next, previous, row, strings) < 0) {
+                rows.add(changedRows, next++);
+            }
+
+            rows.add(previous, row);
+        }
+
+        while (next < changedRows.size) {
+            rows.add(changedRows, next++);
+        }
+
+        return rows.build();
+    }
+
+    // List order: by sort key, then _id
+    private static int compare(Table a, int rowA, Table b, int rowB, List<String> strings) {
+
+        int result = strings.get(a.sortKeys[rowA]).compareTo(strings.get(b.sortKeys[rowB]));
+
+        if (result == 0) {
+            result = (a.ids[rowA] < b.ids[rowB]) ? -1 : (a.ids[rowA] == b.ids[rowB] ? 0 : 1);
+        }
+
+        return result;
+    }
+
+    private static final class RowComparator implements Comparator<Integer> {
+
+        private final Table mTable;
+        private final List<String> mStrings;
+
+        RowComparator(Table table, List<String> strings) {
+            mTable   = table;
+            mStrings = strings;
+        }
+
+        @Override
+        public int compare(Integer a, Integer b) {
+            return LibrarySnapshot.compare(mTable, a, mTable, b, mStrings);
+        }
+    }
+
+    /**
+     * Drops strings no longer used by any row (renamed or removed items), once they make up
+     * a good part of the pool, so refreshes don't make the pool grow forever
+     */
+    private static LibrarySnapshot compact(String[] strings, Table[] tables) {
+
+        boolean[] used = new boolean[strings.length];
+        int usedCount = 0;
+
+        for (Table table : tables) {
+            for (int row = 0; row < table.size; row++) {
+                if (! used[table.names[row]]) {
+                    used[table.names[row]] = true;
+                    usedCount++;
+                }
+                if (! used[table.sortKeys[row]]) {
+                    used[table.sortKeys[row]] = true;
+                    usedCount++;
+                }
+            }
+        }
+
+        if (usedCount > strings.length * 3 / 4) {
+            return new LibrarySnapshot(strings, tables);
+        }
+
+        int[] remap = new int[strings.length];
+        String[] compacted = new String[usedCount];
+        int next = 0;
+
+        for (int i = 0; i < strings.length; i++) {
+            if (used[i]) {
+                remap[i] = next;
+                compacted[next++] = strings[i];
+            }
+        }
+
+        // The tables are private to this snapshot until it's swapped in, so they can be changed
+        for (Table table : tables) {
+            for (int row = 0; row < table.size; row++) {
+                table.names[row]    = remap[table.names[row]];
+                table.sortKeys[row] = remap[table.sortKeys[row]];
+            }
+        }
+
+        return new LibrarySnapshot(compacted, tables);
+    }
+
+    // Rows indexes ordered by the given values
+    private static int[] sortedRows(int[] values, int size) {
+
+        long[] pairs = new long[size];
+
+        for (int row = 0; row < size; row++) {
+            pairs[row] = ((long) values[row] << 32) | row;
+        }
+
+        Arrays.sort(pairs);
+
+        int[] rows = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            rows[i] = (int) pairs[i];
+        }
+
+        return rows;
+    }
+
+    /**
+     * Returns rows of a list, like the provider's list URIs do with the paging parameters,
+     * or null if the snapshot can't answer the query (unknown list or columns).
+     *
+     * @param list the list's table name
+     * @param afterKey only rows after this sort key/_id pair, or null to start at the top
+     * @param limit at most this many rows, 0 for all of them
+     */
+    public Cursor query(String list, String[] projection, String afterKey, long afterId, int limit) {
+
+        int index = Arrays.asList(LISTS).indexOf(list);
+
+        if (index == -1) {
+            return null;
+        }
+
+        Table table = mTables[index];
+
+        int[] columns = new int[projection.length];
+
+        for (int i = 0; i < projection.length; i++) {
+
+            columns[i] = columnFor(index, projection[i]);
+
+            if (columns[i] == -1) {
+                return null;
+            }
+        }
+
+        int row = (afterKey == null) ? 0 : firstRowAfter(table, afterKey, afterId);
+
+        MatrixCursor cursor = new MatrixCursor(projection, limit > 0 ? limit : table.size);
+        Object[] values = new Object[projection.length];
+
+        for (int count = 0; row < table.size && (limit <= 0 || count < limit); row++) {
+
+            // Like the joins in the provider, rows whose artist or album is missing aren't listed
+            int artistRow = (table.artistIds != null) ? mTables[ARTISTS].findServerId(table.artistIds[row]) : 0;
+            int albumRow  = (table.albumIds != null) ? mTables[ALBUMS].findServerId(table.albumIds[row]) : 0;
+
+            if (artistRow == -1 || albumRow == -1) {
+                continue;
+            }
+
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = value(table, row, columns[i], artistRow, albumRow);
+            }
+
+            cursor.addRow(values);
+            count++;
+        }
+
+        return cursor;
+    }
+
+    // Columns the snapshot can return
+    private static final int COL_ID          = 0;
+    private static final int COL_SERVER_ID   = 1;
+    private static final int COL_NAME        = 2;
+    private static final int COL_SORT_KEY    = 3;
+    private static final int COL_ARTIST_ID   = 4;
+    private static final int COL_ALBUM_ID    = 5;
+    private static final int COL_TRACK_NO    = 6;
+    private static final int COL_ARTIST_NAME = 7;
+    private static final int COL_ALBUM_NAME  = 8;
+
+    private static int columnFor(int list, String column) {
+
+        if (ArtistColumns._ID.equals(column)) {
+            return COL_ID;
+        }
+        if (ArtistColumns.SERVER_ID.equals(column)) {
+            return COL_SERVER_ID;
+        }
+        if (ArtistColumns.NAME.equals(column)) {
+            return COL_NAME;
+        }
+        if (ArtistColumns.SORT_KEY.equals(column)) {
+            return COL_SORT_KEY;
+        }
+
+        if (list != ARTISTS) {
+            if (AlbumColumns.ARTIST_ID.equals(column)) {
+                return COL_ARTIST_ID;
+            }
+            if (AlbumColumns.ARTIST_NAME.equals(column)) {
+                return COL_ARTIST_NAME;
+            }
+        }
+
+        if (list == TRACKS) {
+            if (TrackColumns.ALBUM_ID.equals(column)) {
+                return COL_ALBUM_ID;
+            }
+            if (TrackColumns.ALBUM_NAME.equals(column)) {
+                return COL_ALBUM_NAME;
+            }
+            if (TrackColumns.TRACK_NO.equals(column)) {
+                return COL_TRACK_NO;
+            }
+        }
+
+        return -1;
+    }
+
+    private Object value(Table table, int row, int column, int artistRow, int albumRow) {
+
+        switch (column) {
+        case COL_ID:
+            return Long.valueOf(table.ids[row]);
+        case COL_SERVER_ID:
+            return Integer.valueOf(table.serverIds[row]);
+        case COL_NAME:
+            return mStrings[table.names[row]];
+        case COL_SORT_KEY:
+            return mStrings[table.sortKeys[row]];
+        case COL_ARTIST_ID:
+            return Integer.valueOf(table.artistIds[row]);
+        case COL_ALBUM_ID:
+            return Integer.valueOf(table.albumIds[row]);
+        case COL_TRACK_NO:
+            return Integer.valueOf(table.trackNos[row]);
+        case COL_ARTIST_NAME:
+            return mStrings[mTables[ARTISTS].names[artistRow]];
+        default: // COL_ALBUM_NAME
+            return mStrings[mTables[ALBUMS].names[albumRow]];
+        }
+    }
+
+    // Binary search for the first row after the sort key/_id pair
+    private int firstRowAfter(Table table, String afterKey, long afterId) {
+
+        int low  = 0;
+        int high = table.size;
+
+        while (low < high) {
+
+            int mid = (low + high) >>> 1;
+            int result = mStrings[table.sortKeys[mid]].compareTo(afterKey);
+
+            if (result < 0 || (result == 0 && table.ids[mid] <= afterId)) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+}
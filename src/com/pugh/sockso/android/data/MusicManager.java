@@ -1,7 +1,6 @@
 package com.pugh.sockso.android.data;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
 import org.json.JSONException;
@@ -18,6 +17,7 @@ import com.pugh.sockso.android.api.SocksoAPI;
 import com.pugh.sockso.android.api.SocksoAPIImpl;
 import com.pugh.sockso.android.data.SocksoProvider.AlbumColumns;
 import com.pugh.sockso.android.data.SocksoProvider.ArtistColumns;
+import com.pugh.sockso.android.data.SocksoProvider.SectionColumns;
 import com.pugh.sockso.android.data.SocksoProvider.TrackColumns;
 import com.pugh.sockso.android.music.Album;
 import com.pugh.sockso.android.music.Artist;
@@ -48,21 +48,47 @@ public class MusicManager {
         
         long newSyncMarker = System.currentTimeMillis();
         
-        syncArtists(artists, resolver);
-        syncAlbums(albums, resolver);
-        syncTracks(tracks, resolver);
+        // The library image is out of date as soon as the database starts changing
+        LibraryImage.invalidate(context, newSyncMarker);
+        
+        int[] artistIds = syncArtists(artists, resolver);
+        int[] albumIds  = syncAlbums(albums, resolver);
+        int[] trackIds  = syncTracks(tracks, resolver);
+        
+        updateSections(resolver);
+        
+        // Only the synced rows need reading back into the in-memory library
+        LibrarySnapshot.refresh(context, artistIds, albumIds, trackIds);
+        
+        LibraryImage.write(context, newSyncMarker);
         
         return newSyncMarker;
     }
 
-    private static void syncArtists(List<Artist> artists, ContentResolver resolver) {
+    // Rebuilds the letter sections of the lists, now that their rows are all in
+    private static void updateSections(ContentResolver resolver) {
+        Log.d(TAG, "updateSections() ran");
+
+        final String[] lists = { ArtistColumns.TABLE_NAME, AlbumColumns.TABLE_NAME, TrackColumns.TABLE_NAME };
+
+        for (String list : lists) {
+            Uri uri = Uri.parse(SocksoProvider.CONTENT_URI + "/" + SectionColumns.TABLE_NAME + "/" + list);
+            resolver.update(uri, new ContentValues(), null, null);
+        }
+    }
+
+    // Returns the server ids of the artists
+    private static int[] syncArtists(List<Artist> artists, ContentResolver resolver) {
         Log.d(TAG, "syncArtists() ran");
 
         final Uri uri = Uri.parse(SocksoProvider.CONTENT_URI + "/" + ArtistColumns.TABLE_NAME);
         final BatchOperation batchOperation = new BatchOperation(uri, resolver);
+        final int[] serverIds = new int[artists.size()];
+        int i = 0;
 
         for (final Artist artist : artists) {
             addArtist(artist, batchOperation);
+            serverIds[i++] = (int) artist.getServerId();
 
             if (batchOperation.size() >= BATCH_MAX) {
                 Log.d(TAG, "syncArtists(): " + BATCH_MAX + " batched. Executing current batch...");
@@ -74,16 +100,22 @@ public class MusicManager {
         if (batchOperation.size() >= 0) {
             batchOperation.execute();
         }
+
+        return serverIds;
     }
 
-    private static void syncAlbums(List<Album> albums, ContentResolver resolver) {
+    // Returns the server ids of the albums
+    private static int[] syncAlbums(List<Album> albums, ContentResolver resolver) {
         Log.d(TAG, "syncAlbums() ran");
         
         final Uri uri = Uri.parse(SocksoProvider.CONTENT_URI + "/" + AlbumColumns.TABLE_NAME);
         final BatchOperation batchOperation = new BatchOperation(uri, resolver);
+        final int[] serverIds = new int[albums.size()];
+        int i = 0;
 
         for (final Album album : albums) {
             addAlbum(album, batchOperation);
+            serverIds[i++] = (int) album.getServerId();
 
             if (batchOperation.size() >= BATCH_MAX) {
                 Log.d(TAG, "syncAlbums(): " + BATCH_MAX + " batched. Executing current batch...");
@@ -95,16 +127,22 @@ public class MusicManager {
         if (batchOperation.size() >= 0) {
             batchOperation.execute();
         }
+
+        return serverIds;
     }
 
-    private static void syncTracks(List<Track> tracks, ContentResolver resolver) {
+    // Returns the server ids of the tracks
+    private static int[] syncTracks(List<Track> tracks, ContentResolver resolver) {
         Log.d(TAG, "syncTracks() ran");
         
         final Uri uri = Uri.parse(SocksoProvider.CONTENT_URI + "/" + TrackColumns.TABLE_NAME);
         final BatchOperation batchOperation = new BatchOperation(uri, resolver);
+        final int[] serverIds = new int[tracks.size()];
+        int i = 0;
 
         for (final Track track : tracks) {
             addTrack(track, batchOperation);
+            serverIds[i++] = (int) track.getServerId();
 
             if (batchOperation.size() >= BATCH_MAX) {
                 Log.d(TAG, "syncTracks(): " + BATCH_MAX + " batched. Executing current batch...");
@@ -116,6 +154,8 @@ public class MusicManager {
         if (batchOperation.size() >= 0) {
             batchOperation.execute();
         }
+
+        return serverIds;
     }
 
     private static void addArtist(Artist artist, BatchOperation batchOperation) {
@@ -125,6 +165,7 @@ public class MusicManager {
 
         contentValues.put(ArtistColumns.SERVER_ID, artist.getServerId());
         contentValues.put(ArtistColumns.NAME, artist.getName());
+        contentValues.put(ArtistColumns.SORT_KEY, SortKey.forName(artist.getName()));
 
         batchOperation.add(contentValues);
     }
@@ -136,6 +177,7 @@ public class MusicManager {
 
         contentValues.put(AlbumColumns.SERVER_ID, album.getServerId());
         contentValues.put(AlbumColumns.NAME, album.getName());
+        contentValues.put(AlbumColumns.SORT_KEY, SortKey.forName(album.getName()));
         contentValues.put(AlbumColumns.ARTIST_ID, album.getArtistId());
         // TODO .AlbumColumns.YEAR;
 
@@ -149,6 +191,7 @@ public class MusicManager {
 
         contentValues.put(TrackColumns.SERVER_ID, track.getServerId());
         contentValues.put(TrackColumns.NAME, track.getName());
+        contentValues.put(TrackColumns.SORT_KEY, SortKey.forName(track.getName()));
         contentValues.put(TrackColumns.TRACK_NO, track.getTrackNumber());
         contentValues.put(TrackColumns.ARTIST_ID, track.getArtistId());
         contentValues.put(TrackColumns.ALBUM_ID, track.getAlbumId());
@@ -156,8 +199,13 @@ public class MusicManager {
         batchOperation.add(contentValues);
     }
 
+    /**
+     * Returns the track, or null if it isn't in the library. Don't call it on the main thread,
+     * MusicRepository does the lookups for the UI.
+     */
     public static Track getTrack( final ContentResolver contentResolver, long trackId ) {
         Log.d(TAG, "getTrack() called");
+        MusicRepository.checkNotMainThread("getTrack()");
         
         Track track = null;
         
@@ -171,8 +219,14 @@ public class MusicManager {
         
         Cursor cursor = contentResolver.query(uri, projection, null, null, null);
         
-        // TODO check return value (if false, return null)
-        cursor.moveToNext();
+        if (cursor == null) {
+            return null;
+        }
+        
+        if (! cursor.moveToNext()) {
+            cursor.close();
+            return null;
+        }
         
         long serverTrackId = cursor.getLong(0);
         String artistName = cursor.getString(1);
@@ -193,8 +247,12 @@ public class MusicManager {
         return track;
     }
 
+    /**
+     * Returns the album, or null if it isn't in the library
+     */
     public static Album getAlbum( final ContentResolver contentResolver, long albumId ) {
         Log.d(TAG, "getAlbum() called");
+        MusicRepository.checkNotMainThread("getAlbum()");
 
         Album album = null;
 
@@ -207,7 +265,14 @@ public class MusicManager {
 
         Cursor cursor = contentResolver.query(uri, projection, null, null, null);
 
-        cursor.moveToNext();
+        if (cursor == null) {
+            return null;
+        }
+
+        if (! cursor.moveToNext()) {
+            cursor.close();
+            return null;
+        }
 
         long serverAlbumId = cursor.getLong(0);
         String artistName = cursor.getString(1);
@@ -226,52 +291,41 @@ public class MusicManager {
         return album;
     }
 
-    public static List<Track> getTrackForAlbum(ContentResolver contentResolver, long albumId) {       
-        Log.d(TAG, "getTrackForAlbum() called");
-        
-        List<Track> tracks = new ArrayList<Track>(10);
+    /**
+     * Returns the local ids of an album's tracks (in track number order).
+     * Only the ids are loaded, the player hydrates the Track objects as it needs them.
+     */
+    public static long[] getTrackIdsForAlbum(ContentResolver contentResolver, long albumId) {       
+        Log.d(TAG, "getTrackIdsForAlbum() called");
+        MusicRepository.checkNotMainThread("getTrackIdsForAlbum()");
         
-        String[] projection = {
-                TrackColumns._ID,
-                TrackColumns.SERVER_ID, 
-                TrackColumns.ARTIST_NAME,
-                TrackColumns.ALBUM_NAME,
-                TrackColumns.NAME,
-                TrackColumns.TRACK_NO
-                };
+        String[] projection = { TrackColumns._ID };
         Uri uri = Uri.parse(SocksoProvider.CONTENT_URI + "/" + AlbumColumns.TABLE_NAME + "/" + albumId
                 + "/" + TrackColumns.TABLE_NAME);        
         Cursor cursor = contentResolver.query(uri, projection, null, null,  TrackColumns.TRACK_NO + " ASC");
         
+        if (cursor == null) {
+            return new long[0];
+        }
+        
+        long[] trackIds = new long[cursor.getCount()];
+        int i = 0;
+        
         while (cursor.moveToNext()) {
-
-            long trackId = cursor.getLong(0);
-            long serverTrackId = cursor.getLong(1);
-            String artistName = cursor.getString(2);
-            String albumName = cursor.getString(3);
-            String trackName = cursor.getString(4);
-            int trackNumber = cursor.getInt(5);
-
-            Log.d(TAG, "serverTrackId: " + serverTrackId);
-
-            Track track = new Track();
-            track.setId(trackId);
-            track.setServerId(serverTrackId);
-            track.setName(trackName);
-            track.setArtist(artistName);
-            track.setAlbum(albumName);
-            track.setTrackNumber(trackNumber);
-            
-            tracks.add(track);
+            trackIds[i++] = cursor.getLong(0);
         }
         
         cursor.close();
         
-        return tracks;
+        return trackIds;
     }
 
+    /**
+     * Returns the artist, or null if it isn't in the library
+     */
     public static Artist getArtist(ContentResolver contentResolver, long artistId) {
         Log.d(TAG, "getArtist() called");
+        MusicRepository.checkNotMainThread("getArtist()");
 
         Artist artist = null;
 
@@ -283,7 +337,14 @@ public class MusicManager {
 
         Cursor cursor = contentResolver.query(uri, projection, null, null, null);
 
-        cursor.moveToNext();
+        if (cursor == null) {
+            return null;
+        }
+
+        if (! cursor.moveToNext()) {
+            cursor.close();
+            return null;
+        }
 
         long serverArtistId = cursor.getLong(0);
         String artistName = cursor.getString(1);
@@ -0,0 +1,276 @@
+package com.pugh.sockso.android.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.pugh.sockso.android.music.Album;
+import com.pugh.sockso.android.music.Artist;
+import com.pugh.sockso.android.music.Track;
+
+/**
+ * Looks up single artists, albums and tracks off the main thread.
+ * <p/>
+ * Lookups run on a small background executor and the results are delivered to a {@link Callback}
+ * on the main thread. Items are kept in small LRU caches (emptied whenever the library changes),
+ * and lookups of an item that's already being loaded wait for that load instead of querying again.
+ * <p/>
+ * The {@link MusicManager} lookups it uses must not be called on the main thread: in debuggable
+ * builds they log a warning with the caller's stack trace when they are.
+ */
+public final class MusicRepository {
+
+    private static final String TAG = MusicRepository.class.getSimpleName();
+
+    private static final int THREAD_COUNT = 2;
+
+    private static final int TRACK_CACHE_SIZE  = 64;
+    private static final int ALBUM_CACHE_SIZE  = 32;
+    private static final int ARTIST_CACHE_SIZE = 32;
+
+    /**
+     * Receives the result of a lookup, on the main thread
+     */
+    public interface Callback<T> {
+
+        /**
+         * @param result the item, or null if it isn't in the library
+         */
+        public void onResult(T result);
+    }
+
+    private static MusicRepository sInstance;
+
+    // Warn about database lookups on the main thread (debuggable builds only)
+    private static volatile boolean sCheckThread = false;
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler;
+    private final ExecutorService mExecutor;
+
+    private final Store<Track> mTracks;
+    private final Store<Album> mAlbums;
+    private final Store<Artist> mArtists;
+
+    public static synchronized MusicRepository getInstance(Context context) {
+
+        if (sInstance == null) {
+            sInstance = new MusicRepository(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private MusicRepository(Context context) {
+
+        mResolver    = context.getContentResolver();
+        mMainHandler = new Handler(Looper.getMainLooper());
+
+        mExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+
+                return new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, TAG);
+            }
+        });
+
+        mTracks = new Store<Track>(TRACK_CACHE_SIZE) {
+
+            @Override
+            protected Track query(long id) {
+                return MusicManager.getTrack(mResolver, id);
+            }
+        };
+
+        mAlbums = new Store<Album>(ALBUM_CACHE_SIZE) {
+
+            @Override
+            protected Album query(long id) {
+                return MusicManager.getAlbum(mResolver, id);
+            }
+        };
+
+        mArtists = new Store<Artist>(ARTIST_CACHE_SIZE) {
+
+            @Override
+            protected Artist query(long id) {
+                return MusicManager.getArtist(mResolver, id);
+            }
+        };
+
+        // Synced rows may have changed, so anything cached could be out of date
+        mResolver.registerContentObserver(SocksoProvider.CONTENT_URI, true, new ContentObserver(mMainHandler) {
+
+            @Override
+            public void onChange(boolean selfChange) {
+                mTracks.evictAll();
+                mAlbums.evictAll();
+                mArtists.evictAll();
+            }
+        });
+
+        sCheckThread = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+    }
+
+    public void getTrack(long trackId, Callback<Track> callback) {
+        mTracks.get(trackId, callback);
+    }
+
+    public void getAlbum(long albumId, Callback<Album> callback) {
+        mAlbums.get(albumId, callback);
+    }
+
+    public void getArtist(long artistId, Callback<Artist> callback) {
+        mArtists.get(artistId, callback);
+    }
+
+    /**
+     * Looks up the local ids of an album's tracks (see MusicManager.getTrackIdsForAlbum())
+     */
+    public void getTrackIdsForAlbum(final long albumId, final Callback<long[]> callback) {
+
+        mExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                deliver(callback, MusicManager.getTrackIdsForAlbum(mResolver, albumId));
+            }
+        });
+    }
+
+    /**
+     * Loads the track into the cache in the background, if it isn't there already
+     */
+    public void prefetchTrack(long trackId) {
+        mTracks.get(trackId, null);
+    }
+
+    private <T> void deliver(final Callback<T> callback, final T result) {
+
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                callback.onResult(result);
+            }
+        });
+    }
+
+    /**
+     * Logs a warning if called on the main thread, in debuggable builds
+     */
+    static void checkNotMainThread(String method) {
+
+        if (sCheckThread && Looper.myLooper() == Looper.getMainLooper()) {
+            Log.w(TAG, method + " called on the main thread", new Throwable());
+        }
+    }
+
+    // The cache and the loads in progress for one kind of item
+    private abstract class Store<T> {
+
+        private final LruCache<Long, T> mCache;
+
+        // Callbacks waiting for each item that's being loaded
+        private final Map<Long, List<Callback<T>>> mLoading = new HashMap<Long, List<Callback<T>>>();
+
+        Store(int cacheSize) {
+            mCache = new LruCache<Long, T>(cacheSize);
+        }
+
+        protected abstract T query(long id);
+
+        void get(final long id, Callback<T> callback) {
+
+            T item = mCache.get(id);
+
+            if (item != null) {
+                if (callback != null) {
+                    deliver(callback, item);
+                }
+                return;
+            }
+
+            synchronized (mLoading) {
+
+                List<Callback<T>> waiting = mLoading.get(id);
+
+                if (waiting != null) {
+                    // Already being loaded, just wait for it
+                    if (callback != null) {
+                        waiting.add(callback);
+                    }
+                    return;
+                }
+
+                waiting = new ArrayList<Callback<T>>(1);
+                if (callback != null) {
+                    waiting.add(callback);
+                }
+                mLoading.put(id, waiting);
+            }
+
+            mExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    T result = null;
+
+                    try {
+                        result = load(id);
+                    }
+                    finally {
+                        List<Callback<T>> waiting;
+
+                        synchronized (mLoading) {
+                            waiting = mLoading.remove(id);
+                        }
+
+                        for (Callback<T> callback : waiting) {
+                            deliver(callback, result);
+                        }
+                    }
+                }
+            });
+        }
+
+        void evictAll() {
+            mCache.evictAll();
+        }
+
+        private T load(long id) {
+
+            T item = query(id);
+
+            if (item != null) {
+                mCache.put(id, item);
+            }
+
+            return item;
+        }
+    }
+
+}
@@ -0,0 +1,342 @@
+package com.pugh.sockso.android.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.support.v4.content.AsyncTaskLoader;
+import android.util.Log;
+
+/**
+ * Loads a list (artists, albums or tracks) one page at a time, using the keyset paging
+ * parameters of {@link SocksoProvider}.
+ * <p/>
+ * Only the first page is loaded to start with, and {@link #loadNextPage()} appends the next one,
+ * so opening a list costs the same however big the library is. Each page is its own cursor and
+ * the loader delivers them all joined together in a {@link PagedCursor}.
+ * <p/>
+ * When the data changes, the list is reloaded from the start with as many rows as were loaded.
+ * <p/>
+ * Pages come from the in-memory {@link LibrarySnapshot} when there is one, or else from the
+ * memory-mapped {@link LibraryImage}, so the first page after a cold start doesn't wait for the
+ * database to be opened.
+ */
+public class PagedCursorLoader extends AsyncTaskLoader<Cursor> {
+
+    private static final String TAG = PagedCursorLoader.class.getSimpleName();
+
+    public static final int PAGE_SIZE = 100;
+
+    /**
+     * The pages loaded so far, joined together
+     */
+    public static class PagedCursor extends MergeCursor {
+
+        private final Cursor[] mPages;
+        private final int mRowCount;
+        private final boolean mHasMore;
+
+        // Key and _id of the last row, where the next page starts after
+        private final String mLastKey;
+        private final long mLastId;
+
+        // The changes it's a reload for (see mChanges), -1 if pages were appended
+        private final int mReloadedChanges;
+
+        private PagedCursor(Cursor[] pages, int rowCount, boolean hasMore, String lastKey, long lastId,
+                int reloadedChanges) {
+            super(pages);
+
+            mPages    = pages;
+            mRowCount = rowCount;
+            mHasMore  = hasMore;
+            mLastKey  = lastKey;
+            mLastId   = lastId;
+            mReloadedChanges = reloadedChanges;
+        }
+
+        // Are there (possibly) more rows after the ones loaded?
+        public boolean hasMore() {
+            return mHasMore;
+        }
+    }
+
+    private final ForceLoadContentObserver mObserver;
+
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mKeyColumn;
+
+    private volatile PagedCursor mCursor;
+
+    // Counts the data changes, the whole list has to be loaded again until a reload that saw
+    // the latest one has been delivered (a cancelled reload doesn't count)
+    private volatile int mChanges = 0;
+    private volatile int mLoadedChanges = -1;
+
+    // Set while the next page is being loaded
+    private volatile boolean mLoadingPage = false;
+
+    // Keep loading pages until this row is loaded (see loadThrough())
+    private volatile int mLoadThrough = 0;
+
+    /**
+     * @param uri list URI (artists, albums or tracks)
+     * @param keyColumn the column of the projection the list is sorted on (e.g. SORT_KEY),
+     *                  the projection must also contain _ID
+     */
+    public PagedCursorLoader(Context context, Uri uri, String[] projection, String keyColumn) {
+        super(context);
+
+        mObserver   = new ForceLoadContentObserver();
+        mUri        = uri;
+        mProjection = projection;
+        mKeyColumn  = keyColumn;
+    }
+
+    /**
+     * Loads the next page, if there is one and it isn't already being loaded
+     */
+    public void loadNextPage() {
+
+        PagedCursor cursor = mCursor;
+
+        // A reload is due, it loads as far as loadThrough() asked for anyway
+        if (mLoadingPage || cursor == null || ! cursor.hasMore() || mChanges != mLoadedChanges) {
+            return;
+        }
+
+        Log.d(TAG, "loadNextPage() after: " + cursor.mLastKey + "/" + cursor.mLastId);
+
+        mLoadingPage = true;
+        forceLoad();
+    }
+
+    /**
+     * Loads the next page if the last visible item is getting close to the end of what's loaded
+     */
+    public void loadNextPageIfNeeded(int lastVisiblePosition, int count) {
+
+        if (lastVisiblePosition >= count - PAGE_SIZE / 4) {
+            loadNextPage();
+        }
+    }
+
+    /**
+     * Loads pages until the row at the given position is loaded, in as few queries as possible.
+     * Used to jump somewhere further down the list than has been loaded (e.g. by fast scrolling)
+     */
+    public void loadThrough(int position) {
+
+        if (position > mLoadThrough) {
+            mLoadThrough = position;
+        }
+
+        // Before the first load, that load will pick it up
+        PagedCursor cursor = mCursor;
+
+        if (cursor != null && position >= cursor.mRowCount) {
+            loadNextPage();
+        }
+    }
+
+    @Override
+    public void onContentChanged() {
+        mChanges++;
+        super.onContentChanged();
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+
+        final PagedCursor previous = mCursor;
+        final int changes = mChanges;
+        final boolean reload = changes != mLoadedChanges || previous == null;
+
+        Uri.Builder uri = mUri.buildUpon();
+        Cursor[] pages;
+        int limit = PAGE_SIZE;
+
+        if (reload) {
+            // Load as much as was shown before, so the list doesn't jump back to the top
+            if (previous != null) {
+                limit = Math.max(previous.mRowCount, PAGE_SIZE);
+            }
+            limit = Math.max(limit, mLoadThrough + 1);
+
+            uri.appendQueryParameter(SocksoProvider.PARAM_LIMIT, String.valueOf(limit));
+            pages = new Cursor[1];
+        }
+        else {
+            limit = Math.max(limit, mLoadThrough + 1 - previous.mRowCount);
+
+            uri.appendQueryParameter(SocksoProvider.PARAM_LIMIT, String.valueOf(limit));
+            uri.appendQueryParameter(SocksoProvider.PARAM_AFTER_KEY, previous.mLastKey);
+            uri.appendQueryParameter(SocksoProvider.PARAM_AFTER_ID, String.valueOf(previous.mLastId));
+
+            pages = new Cursor[previous.mPages.length + 1];
+            System.arraycopy(previous.mPages, 0, pages, 0, previous.mPages.length);
+        }
+
+        Cursor page = querySnapshot(reload ? null : previous, limit);
+
+        if (page == null) {
+            page = getContext().getContentResolver().query(uri.build(), mProjection, null, null, null);
+        }
+
+        if (page == null) {
+            return null;
+        }
+
+        // Fill the window here, and remember where the next page starts
+        int count = page.getCount();
+        page.registerContentObserver(mObserver);
+        pages[pages.length - 1] = page;
+
+        String lastKey = null;
+        long lastId = -1;
+
+        if (page.moveToLast()) {
+            lastKey = page.getString(page.getColumnIndexOrThrow(mKeyColumn));
+            lastId  = page.getLong(page.getColumnIndexOrThrow(BaseColumns._ID));
+        }
+        else if (! reload) {
+            lastKey = previous.mLastKey;
+            lastId  = previous.mLastId;
+        }
+
+        int rowCount = reload ? count : previous.mRowCount + count;
+
+        // A short page means the end of the list was reached
+        return new PagedCursor(pages, rowCount, count == limit, lastKey, lastId, reload ? changes : -1);
+    }
+
+    // The page from the in-memory library or the library image, or null if neither can answer the query
+    private Cursor querySnapshot(PagedCursor previous, int limit) {
+
+        final String list     = mUri.getLastPathSegment();
+        final String afterKey = (previous == null) ? null : previous.mLastKey;
+        final long afterId    = (previous == null) ? -1 : previous.mLastId;
+
+        Cursor page = null;
+        LibrarySnapshot snapshot = LibrarySnapshot.peek();
+
+        if (snapshot != null) {
+            page = snapshot.query(list, mProjection, afterKey, afterId, limit);
+        }
+
+        if (page == null) {
+            LibraryImage image = LibraryImage.get(getContext());
+
+            if (image != null) {
+                page = image.query(list, mProjection, afterKey, afterId, limit);
+            }
+        }
+
+        if (page != null) {
+            // So the page gets the same change notifications as a database one
+            page.setNotificationUri(getContext().getContentResolver(), mUri);
+        }
+
+        return page;
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+
+        mLoadingPage = false;
+
+        if (isReset()) {
+            // An async query came in while the loader is stopped
+            if (cursor != null) {
+                releasePages(cursor, mCursor);
+            }
+            return;
+        }
+
+        PagedCursor old = mCursor;
+        mCursor = (PagedCursor) cursor;
+
+        if (mCursor != null && mCursor.mReloadedChanges != -1) {
+            mLoadedChanges = mCursor.mReloadedChanges;
+        }
+
+        if (isStarted()) {
+            super.deliverResult(cursor);
+        }
+
+        // A jump further down came in while the page was loading
+        if (mCursor != null && mCursor.mRowCount <= mLoadThrough) {
+            loadNextPage();
+        }
+
+        // Appended results share the old pages, only the ones no longer used get closed
+        if (old != null && old != cursor) {
+            releasePages(old, cursor);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+
+        if (takeContentChanged() || mCursor == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+
+        mLoadingPage = false;
+
+        if (cursor != null) {
+            releasePages(cursor, mCursor);
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        onStopLoading();
+
+        if (mCursor != null) {
+            releasePages(mCursor, null);
+            mCursor = null;
+        }
+    }
+
+    // Closes the pages of the cursor that aren't also pages of the cursor still in use
+    private static void releasePages(Cursor cursor, Cursor inUse) {
+
+        Cursor[] pages = ((PagedCursor) cursor).mPages;
+        Cursor[] keep = (inUse != null) ? ((PagedCursor) inUse).mPages : new Cursor[0];
+
+        for (Cursor page : pages) {
+
+            boolean shared = false;
+
+            for (Cursor kept : keep) {
+                if (kept == page) {
+                    shared = true;
+                    break;
+                }
+            }
+
+            if (! shared && ! page.isClosed()) {
+                page.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,400 @@
+package com.pugh.sockso.android.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.support.v4.content.AsyncTaskLoader;
+import android.util.Log;
+
+import com.pugh.sockso.android.data.SocksoProvider.SearchColumns;
+
+/**
+ * Loads search results for search-as-you-type.
+ * <p/>
+ * A single loader is kept for the lifetime of the search screen and is handed each new query
+ * with {@link #search(String)}. Starting a new search cancels the one in progress (which gives up
+ * between queries), and only the latest request ever runs next, so fast typing can't queue up
+ * stale SQL work.
+ * <p/>
+ * Each group (artists, albums, tracks) is queried separately and capped at a number of results,
+ * with {@link #showMore(int)} raising the cap of one group. When a new query extends the
+ * previous one (e.g. "bea" -> "beat"), groups that weren't cut off are filtered in memory
+ * instead of hitting the database again.
+ */
+public class SearchLoader extends AsyncTaskLoader<SearchLoader.Result> {
+
+    private static final String TAG = SearchLoader.class.getSimpleName();
+
+    // Groups, in display order (the values of SearchColumns.GROUP_ORDER)
+    public static final int[] GROUPS = {
+        SearchColumns.GROUP_ARTISTS,
+        SearchColumns.GROUP_ALBUMS,
+        SearchColumns.GROUP_TRACKS
+        };
+
+    // Results shown per group, and how many more each "show more" adds
+    public static final int GROUP_LIMIT = 10;
+    public static final int GROUP_LIMIT_STEP = 50;
+
+    public static final String[] PROJECTION = {
+        SearchColumns._ID,
+        SearchColumns.ARTIST_NAME,
+        SearchColumns.ALBUM_NAME,
+        SearchColumns.TRACK_NAME,
+        SearchColumns.MIME_TYPE,
+        SearchColumns.GROUP_ORDER,
+        SearchColumns.MATCH
+        };
+
+    private static final int MATCH_COLUMN = 6;
+
+    /**
+     * The results for one group. Immutable once loaded, so it can be reused
+     * by later loads running on other threads.
+     */
+    private static class Group {
+
+        final String query;
+        final int limit;
+        final Object[][] rows;
+        final boolean truncated; // there are more results than the limit
+
+        Group(String query, int limit, Object[][] rows, boolean truncated) {
+            this.query = query;
+            this.limit = limit;
+            this.rows = rows;
+            this.truncated = truncated;
+        }
+    }
+
+    /**
+     * The results of a search: a cursor over all groups (in GROUPS order)
+     * and which of the groups have more results to show.
+     */
+    public static class Result {
+
+        private final String mQuery;
+        private final Group[] mGroups;
+        private final Cursor mCursor;
+
+        private Result(String query, Group[] groups) {
+
+            mQuery  = query;
+            mGroups = groups;
+
+            Cursor[] cursors = new Cursor[groups.length];
+
+            for (int i = 0; i < groups.length; i++) {
+
+                MatrixCursor cursor = new MatrixCursor(PROJECTION, groups[i].rows.length);
+
+                for (Object[] row : groups[i].rows) {
+                    cursor.addRow(row);
+                }
+
+                cursors[i] = cursor;
+            }
+
+            mCursor = new MergeCursor(cursors);
+        }
+
+        public String getQuery() {
+            return mQuery;
+        }
+
+        public Cursor getCursor() {
+            return mCursor;
+        }
+
+        public int getCount() {
+            return mCursor.getCount();
+        }
+
+        // Whether the group at the given index (of GROUPS) has more results than shown
+        public boolean hasMore(int groupIndex) {
+            return mGroups[groupIndex].truncated;
+        }
+
+        public boolean[] getMoreFlags() {
+
+            boolean[] more = new boolean[mGroups.length];
+
+            for (int i = 0; i < mGroups.length; i++) {
+                more[i] = mGroups[i].truncated;
+            }
+
+            return more;
+        }
+    }
+
+    /**
+     * What to load, replaced as a whole whenever the query or a limit changes
+     */
+    private static class Request {
+
+        final String query;
+        final int[] limits;
+
+        Request(String query, int[] limits) {
+            this.query = query;
+            this.limits = limits;
+        }
+    }
+
+    private final ContentResolver mResolver;
+
+    // Latest request, any load that sees a newer one gives up
+    private volatile Request mRequest;
+
+    // Last delivered result, reused by the next load
+    private volatile Result mResult;
+
+    public SearchLoader(Context context) {
+        super(context);
+
+        mResolver = context.getContentResolver();
+        mRequest  = new Request("", defaultLimits());
+    }
+
+    /**
+     * Starts searching for the given query, cancelling the search in progress
+     */
+    public void search(String query) {
+        Log.d(TAG, "search(): " + query);
+
+        query = (query == null) ? "" : query.trim();
+
+        if (query.equals(mRequest.query)) {
+            return;
+        }
+
+        mRequest = new Request(query, defaultLimits());
+        onContentChanged();
+    }
+
+    /**
+     * Shows more results for the group at the given index (of GROUPS)
+     */
+    public void showMore(int groupIndex) {
+        Log.d(TAG, "showMore(): " + groupIndex);
+
+        Request request = mRequest;
+
+        int[] limits = request.limits.clone();
+        limits[groupIndex] += GROUP_LIMIT_STEP;
+
+        mRequest = new Request(request.query, limits);
+        onContentChanged();
+    }
+
+    @Override
+    public Result loadInBackground() {
+
+        final Request request = mRequest;
+        final Result previous = mResult;
+
+        Group[] groups = new Group[GROUPS.length];
+
+        for (int i = 0; i < GROUPS.length; i++) {
+
+            // A newer search came in, don't waste any more time on this one
+            if (request != mRequest) {
+                Log.d(TAG, "Abandoning search: " + request.query);
+                return null;
+            }
+
+            Group old = (previous != null) ? previous.mGroups[i] : null;
+
+            if (request.query.length() == 0) {
+                groups[i] = new Group(request.query, request.limits[i], new Object[0][], false);
+            }
+            else if (canFilter(old, request.query, request.limits[i])) {
+                groups[i] = filter(old, request.query, request.limits[i]);
+            }
+            else {
+                groups[i] = query(request, i);
+            }
+        }
+
+        if (request != mRequest) {
+            return null;
+        }
+
+        return new Result(request.query, groups);
+    }
+
+    // Can the group's previous results be reused for the new query?
+    private static boolean canFilter(Group old, String query, int limit) {
+
+        // Nothing was searched for (and so loaded) for an empty query
+        if (old == null || old.query.length() == 0 || ! containsIgnoreCase(query, old.query)) {
+            return false;
+        }
+
+        // A cut off group may be missing rows that match the new query,
+        // unless it's exactly the same search
+        if (old.truncated) {
+            return old.query.equals(query) && old.limit == limit;
+        }
+
+        return true;
+    }
+
+    private static Group filter(Group old, String query, int limit) {
+
+        if (old.query.equals(query) && old.limit == limit) {
+            return old;
+        }
+
+        List<Object[]> rows = new ArrayList<Object[]>();
+        boolean truncated = false;
+
+        for (Object[] row : old.rows) {
+
+            Object match = row[MATCH_COLUMN];
+
+            if (match != null && containsIgnoreCase(match.toString(), query)) {
+
+                if (rows.size() == limit) {
+                    truncated = true;
+                    break;
+                }
+
+                rows.add(row);
+            }
+        }
+
+        return new Group(query, limit, rows.toArray(new Object[rows.size()][]), truncated);
+    }
+
+    private Group query(Request request, int groupIndex) {
+
+        int limit = request.limits[groupIndex];
+
+        // One extra row tells us whether there are more results
+        Uri uri = Uri.withAppendedPath(Uri.parse(SocksoProvider.CONTENT_URI + "/" + SearchColumns.TABLE_NAME),
+                request.query).buildUpon()
+                .appendQueryParameter(SocksoProvider.PARAM_GROUP, String.valueOf(GROUPS[groupIndex]))
+                .appendQueryParameter(SocksoProvider.PARAM_LIMIT, String.valueOf(limit + 1))
+                .build();
+
+        Cursor cursor = mResolver.query(uri, PROJECTION, null, null, null);
+
+        List<Object[]> rows = new ArrayList<Object[]>();
+        boolean truncated = false;
+
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext() && request == mRequest) {
+
+                    if (rows.size() == limit) {
+                        truncated = true;
+                        break;
+                    }
+
+                    rows.add(new Object[] {
+                            cursor.getLong(0),
+                            cursor.getString(1),
+                            cursor.getString(2),
+                            cursor.getString(3),
+                            cursor.getString(4),
+                            cursor.getInt(5),
+                            cursor.getString(6)
+                    });
+                }
+            }
+            finally {
+                cursor.close();
+            }
+        }
+
+        return new Group(request.query, limit, rows.toArray(new Object[rows.size()][]), truncated);
+    }
+
+    @Override
+    public void deliverResult(Result result) {
+
+        if (isReset()) {
+            return;
+        }
+
+        Result old = mResult;
+        mResult = result;
+
+        if (isStarted()) {
+            super.deliverResult(result);
+        }
+
+        if (old != null && old != result) {
+            old.getCursor().close();
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+
+        if (mResult != null) {
+            deliverResult(mResult);
+        }
+
+        if (takeContentChanged() || mResult == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Result result) {
+
+        if (result != null && result != mResult) {
+            result.getCursor().close();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        onStopLoading();
+
+        if (mResult != null) {
+            mResult.getCursor().close();
+            mResult = null;
+        }
+    }
+
+    private static int[] defaultLimits() {
+
+        int[] limits = new int[GROUPS.length];
+
+        for (int i = 0; i < limits.length; i++) {
+            limits[i] = GROUP_LIMIT;
+        }
+
+        return limits;
+    }
+
+    private static boolean containsIgnoreCase(String text, String part) {
+
+        final int max = text.length() - part.length();
+
+        for (int i = 0; i <= max; i++) {
+            if (text.regionMatches(true, i, part, 0, part.length())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+}
@@ -3,18 +3,22 @@ package com.pugh.sockso.android.data;
 import com.pugh.sockso.android.data.SocksoProvider.AlbumColumns;
 import com.pugh.sockso.android.data.SocksoProvider.ArtistColumns;
 import com.pugh.sockso.android.data.SocksoProvider.SearchColumns;
+import com.pugh.sockso.android.data.SocksoProvider.SectionColumns;
 import com.pugh.sockso.android.data.SocksoProvider.TrackColumns;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
 import android.util.Log;
 
 public class SocksoDB extends SQLiteOpenHelper {
 
 	private static final String TAG = SocksoDB.class.getSimpleName();
 	
-	private static final int    DB_VERSION = 1;
+	private static final int    DB_VERSION = 4;
 	private static final String DB_NAME    = "sockso.db";
 	
 	public SocksoDB(Context context) {
@@ -37,7 +41,8 @@ public class SocksoDB extends SQLiteOpenHelper {
 		            .append(" (")
 				    .append(ArtistColumns._ID).append(" INTEGER PRIMARY KEY AUTOINCREMENT, ")
 					.append(ArtistColumns.SERVER_ID).append(" INTEGER NOT NULL, ")					 
-					.append(ArtistColumns.NAME).append(" TEXT NOT NULL")
+					.append(ArtistColumns.NAME).append(" TEXT NOT NULL, ")
+					.append(ArtistColumns.SORT_KEY).append(" TEXT")
 					.append(")");
 		
 		artistsIndex.append("CREATE UNIQUE INDEX ").append(ArtistColumns.TABLE_NAME).append("_")
@@ -50,6 +55,7 @@ public class SocksoDB extends SQLiteOpenHelper {
 		           .append(AlbumColumns._ID).append(" INTEGER PRIMARY KEY AUTOINCREMENT, ")
 		           .append(ArtistColumns.SERVER_ID).append(" INTEGER NOT NULL, ")
 		           .append(AlbumColumns.NAME).append(" TEXT NOT NULL, ")
+		           .append(AlbumColumns.SORT_KEY).append(" TEXT, ")
 		           .append(AlbumColumns.YEAR).append(" INTEGER, ")
 		           .append(AlbumColumns.ARTIST_ID).append(" INTEGER, ")
 		           .append("FOREIGN KEY(").append(AlbumColumns.ARTIST_ID).append(") REFERENCES ")
@@ -66,6 +72,7 @@ public class SocksoDB extends SQLiteOpenHelper {
 		           .append(TrackColumns._ID).append(" INTEGER PRIMARY KEY AUTOINCREMENT, ")
 		           .append(ArtistColumns.SERVER_ID).append(" INTEGER NOT NULL, ")
 		           .append(TrackColumns.NAME).append(" TEXT NOT NULL, ")
+		           .append(TrackColumns.SORT_KEY).append(" TEXT, ")
 		           .append(TrackColumns.TRACK_NO).append(" INTEGER, ")
 		           .append(TrackColumns.ARTIST_ID).append(" INTEGER, ")
 		           .append(TrackColumns.ALBUM_ID).append(" INTEGER, ")
@@ -134,10 +141,80 @@ public class SocksoDB extends SQLiteOpenHelper {
 	    db.execSQL(tracksTable.toString());
 	    db.execSQL(tracksIndex.toString());
         db.execSQL(searchView.toString());
+        
+        createSortKeyIndexes(db);
+        createSectionsTable(db);
+	}
+	
+	// Version 4: letter sections of the lists, rebuilt by the provider after each sync
+	private static void createSectionsTable(SQLiteDatabase db) {
+		
+		db.execSQL("CREATE TABLE " + SectionColumns.TABLE_NAME + " ("
+				+ SectionColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+				+ SectionColumns.LIST + " TEXT NOT NULL, "
+				+ SectionColumns.SECTION + " TEXT NOT NULL, "
+				+ SectionColumns.FIRST_ROW + " INTEGER NOT NULL, "
+				+ SectionColumns.ROW_COUNT + " INTEGER NOT NULL"
+				+ ")");
+	}
+	
+	// Version 3: indexes for paging through the lists in sort key order (rowid is implicitly the last column)
+	private void createSortKeyIndexes(SQLiteDatabase db) {
+		
+		createIndex(db, ArtistColumns.TABLE_NAME, ArtistColumns.SORT_KEY);
+		createIndex(db, AlbumColumns.TABLE_NAME, AlbumColumns.SORT_KEY);
+		createIndex(db, TrackColumns.TABLE_NAME, TrackColumns.SORT_KEY);
+	}
+	
+	private static void createIndex(SQLiteDatabase db, String table, String column) {
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + table + "_" + column + "_i ON " + table + " (" + column + ")");
+	}
+	
+	// Adds the sort key column to an existing table and fills it in from the names
+	private static void addSortKeys(SQLiteDatabase db, String table) {
+		
+		db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + ArtistColumns.SORT_KEY + " TEXT");
+		
+		SQLiteStatement update = db.compileStatement("UPDATE " + table + " SET " + ArtistColumns.SORT_KEY 
+				+ "=? WHERE " + BaseColumns._ID + "=?");
+		Cursor cursor = db.query(table, new String[] { BaseColumns._ID, ArtistColumns.NAME }, 
+				null, null, null, null, null);
+		
+		try {
+			while (cursor.moveToNext()) {
+				update.bindString(1, SortKey.forName(cursor.getString(1)));
+				update.bindLong(2, cursor.getLong(0));
+				update.execute();
+			}
+		}
+		finally {
+			cursor.close();
+			update.close();
+		}
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		Log.i(TAG, "Upgrading database [" + oldVersion + "]->[" + newVersion + "]");
+		
+		// Version 2 indexed the names, version 3 sorts on sort keys instead
+		if (oldVersion < 3) {
+			
+			addSortKeys(db, ArtistColumns.TABLE_NAME);
+			addSortKeys(db, AlbumColumns.TABLE_NAME);
+			addSortKeys(db, TrackColumns.TABLE_NAME);
+			
+			db.execSQL("DROP INDEX IF EXISTS " + ArtistColumns.TABLE_NAME + "_" + ArtistColumns.NAME + "_i");
+			db.execSQL("DROP INDEX IF EXISTS " + AlbumColumns.TABLE_NAME + "_" + AlbumColumns.NAME + "_i");
+			db.execSQL("DROP INDEX IF EXISTS " + TrackColumns.TABLE_NAME + "_" + TrackColumns.NAME + "_i");
+			
+			createSortKeyIndexes(db);
+		}
+		
+		// Empty until the next sync, the lists work out their sections themselves until then
+		if (oldVersion < 4) {
+			createSectionsTable(db);
+		}
 		
 	    //Log.w(TAG, "Upgrading database. Existing contents will be lost. ["
 	    //        + oldVersion + "]->[" + newVersion + "]");
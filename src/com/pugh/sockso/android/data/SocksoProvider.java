@@ -45,6 +45,19 @@ public class SocksoProvider extends ContentProvider {
     public static final int PLAYLISTS_USER_ID_CODE = 404;
 
     public static final int SEARCH_CODE            = 500;
+
+    public static final int SECTIONS_CODE          = 600;
+
+    // Optional query parameters of the search URI:
+    // only return results of one group (SearchColumns.GROUP_ORDER), and at most this many rows
+    public static final String PARAM_GROUP = "group";
+    public static final String PARAM_LIMIT = "limit";
+
+    // Optional query parameters of the artists, albums and tracks URIs for keyset paging:
+    // with PARAM_LIMIT set, rows are sorted by sort key then _id, and only rows after the
+    // given sort key/_id pair (the last row of the previous page) are returned
+    public static final String PARAM_AFTER_KEY = "after_key";
+    public static final String PARAM_AFTER_ID  = "after_id";
     
     // MIME-types:
     public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + AUTHORITY;
@@ -73,6 +86,8 @@ public class SocksoProvider extends ContentProvider {
         sURIMatcher.addURI(AUTHORITY, Playlist.TABLE_NAME + "/" + Playlist.USER_PATH + "/#", PLAYLISTS_USER_ID_CODE);
         
         sURIMatcher.addURI(AUTHORITY, SearchColumns.TABLE_NAME + "/*", SEARCH_CODE);
+
+        sURIMatcher.addURI(AUTHORITY, SectionColumns.TABLE_NAME + "/*", SECTIONS_CODE);
     }
 
     private static final Map<String, String> sArtistProjectionMap = new HashMap<String, String>();
@@ -83,18 +98,24 @@ public class SocksoProvider extends ContentProvider {
     static {
         sArtistProjectionMap.put(ArtistColumns.SERVER_ID, ArtistColumns.FULL_SERVER_ID);
         sArtistProjectionMap.put(ArtistColumns.NAME, ArtistColumns.FULL_NAME);
+        sArtistProjectionMap.put(ArtistColumns.SORT_KEY, ArtistColumns.FULL_SORT_KEY);
         sArtistProjectionMap.put(ArtistColumns._ID, ArtistColumns.FULL_ID);
         
         sAlbumProjectionMap.put(AlbumColumns.ARTIST_NAME, ArtistColumns.FULL_NAME + " AS " + AlbumColumns.ARTIST_NAME);
         sAlbumProjectionMap.put(AlbumColumns.TRACK_COUNT, "COUNT(" + TrackColumns.FULL_ALBUM_ID + ") AS " + AlbumColumns.TRACK_COUNT);
         sAlbumProjectionMap.put(AlbumColumns.SERVER_ID, AlbumColumns.FULL_SERVER_ID);
         sAlbumProjectionMap.put(AlbumColumns.NAME, AlbumColumns.FULL_NAME);
+        sAlbumProjectionMap.put(AlbumColumns.SORT_KEY, AlbumColumns.FULL_SORT_KEY);
+        sAlbumProjectionMap.put(AlbumColumns.ARTIST_ID, AlbumColumns.FULL_ARTIST_ID);
         sAlbumProjectionMap.put(AlbumColumns._ID, AlbumColumns.FULL_ID);
 
         sTrackProjectionMap.put(TrackColumns.ARTIST_NAME, ArtistColumns.FULL_NAME + " AS " + TrackColumns.ARTIST_NAME);
         sTrackProjectionMap.put(TrackColumns.ALBUM_NAME, AlbumColumns.FULL_NAME + " AS " + TrackColumns.ALBUM_NAME);
         sTrackProjectionMap.put(TrackColumns.SERVER_ID, TrackColumns.FULL_SERVER_ID);
         sTrackProjectionMap.put(TrackColumns.NAME, TrackColumns.FULL_NAME);
+        sTrackProjectionMap.put(TrackColumns.SORT_KEY, TrackColumns.FULL_SORT_KEY);
+        sTrackProjectionMap.put(TrackColumns.ARTIST_ID, TrackColumns.FULL_ARTIST_ID);
+        sTrackProjectionMap.put(TrackColumns.ALBUM_ID, TrackColumns.FULL_ALBUM_ID);
         sTrackProjectionMap.put(TrackColumns.TRACK_NO, TrackColumns.FULL_TRACK_NO);
         sTrackProjectionMap.put(TrackColumns._ID, TrackColumns.FULL_ID);
     }
@@ -110,11 +131,13 @@ public class SocksoProvider extends ContentProvider {
         // Columns:
         public static final String SERVER_ID = "server_id";
         public static final String NAME      = "name";
+        public static final String SORT_KEY  = "sort_key"; // see SortKey
 
         // Fully qualified columns (non-public)
         static final String FULL_ID        = TABLE_NAME + "." + _ID;
         static final String FULL_SERVER_ID = TABLE_NAME + "." + SERVER_ID;
         public static final String FULL_NAME = TABLE_NAME + "." + NAME;
+        public static final String FULL_SORT_KEY = TABLE_NAME + "." + SORT_KEY;
     }
 
     public final static class AlbumColumns implements BaseColumns {
@@ -128,6 +151,7 @@ public class SocksoProvider extends ContentProvider {
         // Columns:
         public static final String SERVER_ID = "server_id";
         public static final String NAME      = "name";
+        public static final String SORT_KEY  = "sort_key"; // see SortKey
         public static final String ARTIST_ID = "artist_id";
         public static final String YEAR      = "year";
 
@@ -140,6 +164,7 @@ public class SocksoProvider extends ContentProvider {
         static final String FULL_YEAR        = TABLE_NAME + "." + YEAR;
         static final String FULL_ID          = TABLE_NAME + "." + _ID;
         public static final String FULL_NAME = TABLE_NAME + "." + NAME;
+        public static final String FULL_SORT_KEY = TABLE_NAME + "." + SORT_KEY;
         static final String FULL_ARTIST_ID   = TABLE_NAME + "." + ARTIST_ID;
     }
 
@@ -154,6 +179,7 @@ public class SocksoProvider extends ContentProvider {
         // Columns:
         public static final String SERVER_ID = "server_id";
         public static final String NAME      = "name";
+        public static final String SORT_KEY  = "sort_key"; // see SortKey
         public static final String ARTIST_ID = "artist_id";
         public static final String ALBUM_ID  = "album_id";
         public static final String TRACK_NO  = "track_no";
@@ -165,6 +191,7 @@ public class SocksoProvider extends ContentProvider {
         // Fully qualified columns (non-public)
         static final String FULL_SERVER_ID = TABLE_NAME + "." + SERVER_ID;
         public static final String FULL_NAME = TABLE_NAME + "." + NAME;
+        public static final String FULL_SORT_KEY = TABLE_NAME + "." + SORT_KEY;
         static final String FULL_ARTIST_ID = TABLE_NAME + "." + ARTIST_ID;
         static final String FULL_ALBUM_ID  = TABLE_NAME + "." + ALBUM_ID;
         static final String FULL_TRACK_NO  = TABLE_NAME + "." + TRACK_NO;
@@ -202,6 +229,30 @@ public class SocksoProvider extends ContentProvider {
         public static final String TRACK_NAME  = "track";
         public static final String GROUP_ORDER = "group_order";
         public static final String MATCH       = "match";
+
+        // Values of GROUP_ORDER
+        public static final int GROUP_ARTISTS = 1;
+        public static final int GROUP_ALBUMS  = 2;
+        public static final int GROUP_TRACKS  = 3;
+    }
+
+    /**
+     * The letter sections (see SortKey) of the artist, album and track lists: where each one
+     * starts in the list and how many rows it has. Queried (and rebuilt, with an update) 
+     * through sections/<list>, where <list> is the table name of the list.
+     */
+    public final static class SectionColumns implements BaseColumns {
+
+        private SectionColumns() {}
+
+        // Table:
+        public static final String TABLE_NAME = "sections";
+
+        // Columns:
+        public static final String LIST      = "list";
+        public static final String SECTION   = "section";
+        public static final String FIRST_ROW = "first_row";
+        public static final String ROW_COUNT = "row_count";
     }
     
     
@@ -228,6 +279,7 @@ public class SocksoProvider extends ContentProvider {
         case PLAYLISTS_SITE_CODE:
         case PLAYLISTS_USER_CODE:
         case SEARCH_CODE:
+        case SECTIONS_CODE:
             return CONTENT_TYPE;
 
         case ARTISTS_ID_CODE:
@@ -288,6 +340,7 @@ public class SocksoProvider extends ContentProvider {
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
         String groupBy = null;
         String having  = null;
+        String limit   = null;
 
         int uriType = sURIMatcher.match(uri);
 
@@ -295,7 +348,12 @@ public class SocksoProvider extends ContentProvider {
         
         case ARTISTS_CODE:
             Log.d(TAG, "In ARTISTS_CODE");
-            queryBuilder.setTables(ArtistColumns.TABLE_NAME);
+            queryBuilder.setTables(listTables(ArtistColumns.TABLE_NAME));
+            
+            limit = appendPage(queryBuilder, uri, ArtistColumns.FULL_SORT_KEY, ArtistColumns.FULL_ID);
+            if (limit != null) {
+                sortOrder = pageOrder(ArtistColumns.FULL_SORT_KEY, ArtistColumns.FULL_ID);
+            }
             break;
         case ARTISTS_ID_CODE:
             Log.d(TAG, "In ARTISTS_ID_CODE");
@@ -313,7 +371,7 @@ public class SocksoProvider extends ContentProvider {
              *     JOIN tracks ON albums.server_id = tracks.album_id
              * WHERE artists._id=<id>
              * GROUP BY albums.name
-             * ORDER BY albums.name ASC;
+             * ORDER BY albums.sort_key ASC;
              */
             
             List<String> artistSegments = uri.getPathSegments();
@@ -332,8 +390,12 @@ public class SocksoProvider extends ContentProvider {
             Log.d(TAG, "In ALBUMS_CODE");
             // Gets all albums and the artists associated with them
             queryBuilder.setProjectionMap(sAlbumProjectionMap);
-            queryBuilder.setTables(AlbumColumns.TABLE_NAME + " JOIN " + ArtistColumns.TABLE_NAME + " ON "
-                    + AlbumColumns.FULL_ARTIST_ID + "=" + ArtistColumns.FULL_SERVER_ID);
+            queryBuilder.setTables(listTables(AlbumColumns.TABLE_NAME));
+            
+            limit = appendPage(queryBuilder, uri, AlbumColumns.FULL_SORT_KEY, AlbumColumns.FULL_ID);
+            if (limit != null) {
+                sortOrder = pageOrder(AlbumColumns.FULL_SORT_KEY, AlbumColumns.FULL_ID);
+            }
             break;
         case ALBUMS_ID_CODE:
             Log.d(TAG, "In ALBUMS_ID_CODE");
@@ -375,12 +437,12 @@ public class SocksoProvider extends ContentProvider {
             Log.d(TAG, "In TRACKS_CODE");
 
             queryBuilder.setProjectionMap(sTrackProjectionMap);
-            queryBuilder.setTables(TrackColumns.TABLE_NAME 
-                    + " JOIN " + ArtistColumns.TABLE_NAME 
-                    + " ON " + TrackColumns.FULL_ARTIST_ID + "=" + ArtistColumns.FULL_SERVER_ID 
-                    + " JOIN " + AlbumColumns.TABLE_NAME 
-                    + " ON " + TrackColumns.FULL_ALBUM_ID + "=" + AlbumColumns.FULL_SERVER_ID);
+            queryBuilder.setTables(listTables(TrackColumns.TABLE_NAME));
 
+            limit = appendPage(queryBuilder, uri, TrackColumns.FULL_SORT_KEY, TrackColumns.FULL_ID);
+            if (limit != null) {
+                sortOrder = pageOrder(TrackColumns.FULL_SORT_KEY, TrackColumns.FULL_ID);
+            }
             break;
         case TRACKS_ID_CODE:
             Log.d(TAG, "In TRACKS_ID_CODE");
@@ -397,8 +459,9 @@ public class SocksoProvider extends ContentProvider {
             Log.d(TAG, "In SEARCH_CODE");
             /* SELECT _id, mime_type, artist, album, track 
              * FROM search
-             * WHERE match LIKE '%<query>%'
-             * ORDER BY group_order;
+             * WHERE match LIKE '%<query>%' [AND group_order=<group>]
+             * ORDER BY group_order
+             * [LIMIT <limit>];
              */
 
             String searchString = uri.getLastPathSegment();
@@ -406,23 +469,170 @@ public class SocksoProvider extends ContentProvider {
             queryBuilder.setTables(SearchColumns.TABLE_NAME);
             queryBuilder.appendWhere(SearchColumns.MATCH + " LIKE ");
             queryBuilder.appendWhereEscapeString("%" + searchString + "%");
+            
+            String group = uri.getQueryParameter(PARAM_GROUP);
+            if (group != null) {
+                queryBuilder.appendWhere(" AND " + SearchColumns.GROUP_ORDER + "=" + Integer.parseInt(group));
+            }
+            
+            // Without an ORDER BY, SQLite can stop scanning as soon as it has enough rows
+            String searchLimit = uri.getQueryParameter(PARAM_LIMIT);
+            if (searchLimit != null) {
+                limit = String.valueOf(Integer.parseInt(searchLimit));
+            }
+            break;
+        case SECTIONS_CODE:
+            Log.d(TAG, "In SECTIONS_CODE");
+
+            queryBuilder.setTables(SectionColumns.TABLE_NAME);
+            queryBuilder.appendWhere(SectionColumns.LIST + "=");
+            queryBuilder.appendWhereEscapeString(uri.getLastPathSegment());
+
+            if (sortOrder == null) {
+                sortOrder = SectionColumns.FIRST_ROW + " ASC";
+            }
             break;
         default:
             throw new IllegalArgumentException("Unknown URI");
         }
 
         Cursor cursor = queryBuilder.query(mDB.getReadableDatabase(), projection, selection, selectionArgs, groupBy, having,
-                sortOrder);
+                sortOrder, limit);
         
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         
         return cursor;
     }
 
+    /**
+     * Restricts the query to one page of rows if the URI asks for it (PARAM_LIMIT), starting 
+     * after the row given by PARAM_AFTER_KEY/PARAM_AFTER_ID. Seeking past the previous page 
+     * like this (rather than using OFFSET) costs the same however deep into the list the page is.
+     * 
+     * @return the LIMIT for the query, or null if the URI doesn't ask for a page
+     */
+    private static String appendPage(SQLiteQueryBuilder queryBuilder, Uri uri, String keyColumn, String idColumn) {
+        
+        String pageSize = uri.getQueryParameter(PARAM_LIMIT);
+        
+        if (pageSize == null) {
+            return null;
+        }
+        
+        String afterKey = uri.getQueryParameter(PARAM_AFTER_KEY);
+        String afterId  = uri.getQueryParameter(PARAM_AFTER_ID);
+        
+        if (afterKey != null && afterId != null) {
+            
+            // (key > afterKey) OR (key = afterKey AND _id > afterId)
+            queryBuilder.appendWhere("(" + keyColumn + ">");
+            queryBuilder.appendWhereEscapeString(afterKey);
+            queryBuilder.appendWhere(" OR (" + keyColumn + "=");
+            queryBuilder.appendWhereEscapeString(afterKey);
+            queryBuilder.appendWhere(" AND " + idColumn + ">" + Long.parseLong(afterId) + "))");
+        }
+        
+        return String.valueOf(Integer.parseInt(pageSize));
+    }
+    
+    // Pages need a total order, so ties on the key are broken by _id
+    private static String pageOrder(String keyColumn, String idColumn) {
+        return keyColumn + " ASC, " + idColumn + " ASC";
+    }
+
+    // Tables (joins) behind the artist, album and track lists, the sections have to count the same rows
+    private static String listTables(String list) {
+
+        if (ArtistColumns.TABLE_NAME.equals(list)) {
+            return ArtistColumns.TABLE_NAME;
+        }
+        else if (AlbumColumns.TABLE_NAME.equals(list)) {
+            return AlbumColumns.TABLE_NAME + " JOIN " + ArtistColumns.TABLE_NAME + " ON "
+                    + AlbumColumns.FULL_ARTIST_ID + "=" + ArtistColumns.FULL_SERVER_ID;
+        }
+        else if (TrackColumns.TABLE_NAME.equals(list)) {
+            return TrackColumns.TABLE_NAME 
+                    + " JOIN " + ArtistColumns.TABLE_NAME 
+                    + " ON " + TrackColumns.FULL_ARTIST_ID + "=" + ArtistColumns.FULL_SERVER_ID 
+                    + " JOIN " + AlbumColumns.TABLE_NAME 
+                    + " ON " + TrackColumns.FULL_ALBUM_ID + "=" + AlbumColumns.FULL_SERVER_ID;
+        }
+
+        throw new IllegalArgumentException("Unknown list " + list);
+    }
+
+    /**
+     * Only the sections can be updated: updating sections/<list> rebuilds the list's sections 
+     * from its sort keys (the values are ignored). Returns the number of sections.
+     */
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        // TODO Auto-generated method stub
-        return 0;
+        Log.d(TAG, "update() ran");
+
+        int uriType = sURIMatcher.match(uri);
+
+        switch (uriType) {
+
+        case SECTIONS_CODE:
+            int sections = rebuildSections(uri.getLastPathSegment());
+            getContext().getContentResolver().notifyChange(uri, null);
+            return sections;
+        default:
+            throw new IllegalArgumentException("Unknown or Invalid URI " + uri);
+        }
+    }
+
+    // One grouped scan of the sort key index, done once after each sync rather than by every list
+    private int rebuildSections(String list) {
+
+        String table   = listTables(list);
+        String section = "IFNULL(UPPER(SUBSTR(" + list + "." + ArtistColumns.SORT_KEY + ", 1, 1)), '" 
+                + SortKey.OTHER + "')";
+
+        SQLiteDatabase sqlDB = mDB.getWritableDatabase();
+        sqlDB.beginTransaction();
+
+        int sections = 0;
+
+        try {
+            sqlDB.delete(SectionColumns.TABLE_NAME, SectionColumns.LIST + "=?", new String[] { list });
+
+            // Sections sort in the same order as the keys they're the first letter of
+            Cursor cursor = sqlDB.rawQuery("SELECT " + section + " AS " + SectionColumns.SECTION + ", COUNT(*)"
+                    + " FROM " + table + " GROUP BY " + SectionColumns.SECTION 
+                    + " ORDER BY " + SectionColumns.SECTION, null);
+
+            try {
+                ContentValues cv = new ContentValues();
+                int firstRow = 0;
+
+                while (cursor.moveToNext()) {
+
+                    int count = cursor.getInt(1);
+
+                    cv.put(SectionColumns.LIST, list);
+                    cv.put(SectionColumns.SECTION, cursor.getString(0));
+                    cv.put(SectionColumns.FIRST_ROW, firstRow);
+                    cv.put(SectionColumns.ROW_COUNT, count);
+                    sqlDB.insert(SectionColumns.TABLE_NAME, null, cv);
+
+                    firstRow += count;
+                    sections++;
+                }
+            }
+            finally {
+                cursor.close();
+            }
+
+            sqlDB.setTransactionSuccessful();
+        }
+        finally {
+            sqlDB.endTransaction();
+        }
+
+        Log.d(TAG, "rebuildSections(): " + list + " has " + sections + " sections");
+
+        return sections;
     }
 
     @Override
@@ -0,0 +1,131 @@
+package com.pugh.sockso.android.data;
+
+/**
+ * Builds the keys that artists, albums and tracks are sorted on (the SORT_KEY columns).
+ * <p/>
+ * The names themselves don't sort well with SQLite's plain binary comparison, so a key is
+ * computed once when the name is synced: folded to lower case, accents stripped (for the Latin-1
+ * and Latin Extended-A letters), and a leading "The", "A" or "An" moved to the end, so
+ * "The Beatles" sorts as "beatles, the". Names that don't start with a letter get a '#' in front,
+ * which keeps them together at the top of the list.
+ * <p/>
+ * The first character of every key is therefore one of {@link #SECTIONS} (ignoring case).
+ */
+public final class SortKey {
+
+    /**
+     * Sections (for fast scrolling) the keys fall into, in sort order
+     */
+    public static final String[] SECTIONS = {
+        "#", "A", "B", "C", "D", "E", "F", "G", "H", "I", "J", "K", "L", "M",
+        "N", "O", "P", "Q", "R", "S", "T", "U", "V", "W", "X", "Y", "Z"
+        };
+
+    public static final char OTHER = '#';
+
+    private static final String[] ARTICLES = { "the ", "an ", "a " };
+
+    // Base letter of each character from U+00C0 to U+017F,
+    // '*' for ones that fold to two letters and '.' for ones that aren't letters
+    private static final String FOLD =
+        "aaaaaa*ceeeeiiiidnooooo.ouuuuy**aaaaaa*ceeeeiiiidnooooo.ouuuuy*y" +
+        "aaaaaaccccccccddddeeeeeeeeeegggggggghhhhiiiiiiiiii**jjkkklllllll" +
+        "lllnnnnnnnnnoooooo**rrrrrrssssssssttttttuuuuuuuuuuuuwwyyyzzzzzzs";
+
+    private static final char FOLD_FIRST = '\u00C0';
+
+    private SortKey() {}
+
+    /**
+     * Returns the sort key for the given name
+     */
+    public static String forName(String name) {
+
+        String key = (name == null) ? "" : fold(name);
+
+        // Leading punctuation doesn't count ("'Til Tuesday", "(Untitled)")
+        int start = 0;
+        while (start < key.length() && ! Character.isLetterOrDigit(key.charAt(start))) {
+            start++;
+        }
+        if (start < key.length()) {
+            key = key.substring(start);
+        }
+
+        for (String article : ARTICLES) {
+            if (key.length() > article.length() && key.startsWith(article)) {
+                key = key.substring(article.length()) + ", " + article.trim();
+                break;
+            }
+        }
+
+        if (key.length() == 0 || key.charAt(0) < 'a' || key.charAt(0) > 'z') {
+            key = OTHER + key;
+        }
+
+        return key;
+    }
+
+    // Lower case, accents stripped and runs of whitespace collapsed to one space
+    private static String fold(String name) {
+
+        final int length = name.length();
+        StringBuilder folded = new StringBuilder(length + 4);
+        boolean space = false;
+
+        for (int i = 0; i < length; i++) {
+
+            char c = name.charAt(i);
+
+            if (Character.isWhitespace(c)) {
+                space = folded.length() > 0;
+                continue;
+            }
+
+            if (space) {
+                folded.append(' ');
+                space = false;
+            }
+
+            if (c >= FOLD_FIRST && c < FOLD_FIRST + FOLD.length()) {
+
+                char base = FOLD.charAt(c - FOLD_FIRST);
+
+                if (base == '*') {
+                    folded.append(expand(c));
+                }
+                else if (base == '.') {
+                    folded.append(c);
+                }
+                else {
+                    folded.append(base);
+                }
+            }
+            else {
+                folded.append(Character.toLowerCase(c));
+            }
+        }
+
+        return folded.toString();
+    }
+
+    private static String expand(char c) {
+
+        switch (c) {
+        case '\u00C6': // AE
+        case '\u00E6':
+            return "ae";
+        case '\u00DF':
+            return "ss";
+        case '\u00DE':
+        case '\u00FE':
+            return "th";
+        case '\u0132':
+        case '\u0133':
+            return "ij";
+        default: // U+0152, U+0153
+            return "oe";
+        }
+    }
+
+}
@@ -0,0 +1,482 @@
+package com.pugh.sockso.android.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Disk cache of the JSON responses of the /api endpoints, with HTTP revalidation.
+ * <p/>
+ * A response is stored with its validators (ETag and Last-Modified) and stays fresh for its
+ * endpoint's TTL (see {@link #setTtl(String, long)}) or, if there's no TTL set, the response's
+ * Cache-Control max-age. Fresh responses are used without asking the server, stale ones are
+ * revalidated with If-None-Match/If-Modified-Since and a 304 reply is answered from the cache.
+ * <p/>
+ * The cache is bounded in size, the least recently used responses are dropped first.
+ * Hits, revalidations and misses are counted per endpoint (see {@link Endpoint}).
+ */
+public final class ApiResponseCache {
+
+    private static final String TAG = ApiResponseCache.class.getSimpleName();
+
+    private static final String DIR_NAME = "api";
+
+    private static final long MAX_BYTES       = 1024 * 1024;  // 1 MB
+    private static final long MAX_ENTRY_BYTES = MAX_BYTES / 8;
+
+    /**
+     * TTL of endpoints whose responses aren't cached at all
+     */
+    public static final long NO_STORE = -1;
+
+    private static final long MINUTE = 60 * 1000;
+
+    private static ApiResponseCache sInstance;
+
+    /**
+     * A cached response
+     */
+    public static class Entry {
+
+        private final String mEtag;
+        private final String mLastModified;
+        private final long mExpires;
+        private final String mBody;
+
+        private Entry(String etag, String lastModified, long expires, String body) {
+            mEtag         = etag;
+            mLastModified = lastModified;
+            mExpires      = expires;
+            mBody         = body;
+        }
+
+        // Can it be used without asking the server?
+        public boolean isFresh() {
+            return System.currentTimeMillis() < mExpires;
+        }
+
+        public String getBody() {
+            return mBody;
+        }
+    }
+
+    /**
+     * Counters of an endpoint
+     */
+    public static class Stats {
+
+        public int hits;          // answered from the cache
+        public int revalidations; // answered from the cache after a 304
+        public int misses;        // downloaded
+
+        @Override
+        public String toString() {
+            return "hits: " + hits + ", revalidations: " + revalidations + ", misses: " + misses;
+        }
+    }
+
+    private final File mDir;
+    private long mSize = -1; // bytes on disk, counted when first needed
+
+    // Endpoint template -> TTL in milliseconds
+    private final Map<String, Long> mTtls = new HashMap<String, Long>();
+
+    private final Map<String, Stats> mStats = new HashMap<String, Stats>();
+
+    public static synchronized ApiResponseCache getInstance(Context context) {
+
+        if (sInstance == null) {
+            sInstance = new ApiResponseCache(new File(context.getCacheDir(), DIR_NAME));
+        }
+
+        return sInstance;
+    }
+
+    private ApiResponseCache(File dir) {
+
+        mDir = dir;
+
+        // Server info rarely changes, single items are revalidated after a few minutes
+        setTtl("/api", 60 * MINUTE);
+        setTtl("/api/artists/*", 10 * MINUTE);
+        setTtl("/api/albums/*", 10 * MINUTE);
+        setTtl("/api/tracks/*", 10 * MINUTE);
+
+        // The lists are only fetched by sync, each time from a different date
+        setTtl("/api/artists", NO_STORE);
+        setTtl("/api/albums", NO_STORE);
+        setTtl("/api/tracks", NO_STORE);
+    }
+
+    /**
+     * Sets how long the responses of an endpoint are used without revalidating them,
+     * 0 to always revalidate or NO_STORE to not cache them.
+     *
+     * @param endpoint endpoint template, e.g. "/api/albums/*"
+     */
+    public synchronized void setTtl(String endpoint, long ttl) {
+        mTtls.put(endpoint, ttl);
+    }
+
+    /**
+     * Is the URL one of the API's, with responses that are cached?
+     */
+    public synchronized boolean isCacheable(String url) {
+
+        String endpoint = Endpoint.templateOf(url);
+        Long ttl = mTtls.get(endpoint);
+
+        return (endpoint.equals("/api") || endpoint.startsWith("/api/")) && (ttl == null || ttl != NO_STORE);
+    }
+
+    /**
+     * Returns the cached response for the URL, or null if there isn't one
+     */
+    public synchronized Entry get(String url) {
+
+        File file = fileFor(url);
+
+        if (! file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (! in.readUTF().equals(url)) {
+                return null; // a hash collision
+            }
+
+            String etag         = emptyToNull(in.readUTF());
+            String lastModified = emptyToNull(in.readUTF());
+            long expires        = in.readLong();
+
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+
+            // Most recently used (for eviction)
+            file.setLastModified(System.currentTimeMillis());
+
+            return new Entry(etag, lastModified, expires, new String(body, "UTF-8"));
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable entry for " + url + ": " + e.getMessage());
+            remove(file);
+            return null;
+        }
+        finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Returns the body of a fresh cached response, counting the hit
+     */
+    public synchronized String hit(String url, Entry entry) {
+
+        statsFor(url).hits++;
+
+        return entry.mBody;
+    }
+
+    /**
+     * Adds the entry's validators to a request, so the server can reply 304 if it's unchanged
+     */
+    public void addConditionalHeaders(HttpGet request, Entry entry) {
+
+        if (entry.mEtag != null) {
+            request.addHeader("If-None-Match", entry.mEtag);
+        }
+
+        if (entry.mLastModified != null) {
+            request.addHeader("If-Modified-Since", entry.mLastModified);
+        }
+    }
+
+    /**
+     * The server replied 304 to a conditional request: returns the cached body and
+     * keeps it fresh for another TTL
+     */
+    public synchronized String revalidated(String url, Entry entry, HttpResponse response) {
+
+        statsFor(url).revalidations++;
+
+        String etag         = headerValue(response, "ETag", entry.mEtag);
+        String lastModified = headerValue(response, "Last-Modified", entry.mLastModified);
+        long ttl            = ttlFor(url, response);
+
+        write(url, new Entry(etag, lastModified, System.currentTimeMillis() + Math.max(ttl, 0), entry.mBody));
+
+        return entry.mBody;
+    }
+
+    /**
+     * Stores a downloaded response (if it can be cached), counting the miss
+     */
+    public synchronized void put(String url, HttpResponse response, String body) {
+
+        statsFor(url).misses++;
+
+        long ttl = ttlFor(url, response);
+
+        if (ttl == NO_STORE || body == null) {
+            return;
+        }
+
+        String etag         = headerValue(response, "ETag", null);
+        String lastModified = headerValue(response, "Last-Modified", null);
+
+        // Nothing to gain from an entry that's always stale and can't be revalidated
+        if (ttl == 0 && etag == null && lastModified == null) {
+            return;
+        }
+
+        write(url, new Entry(etag, lastModified, System.currentTimeMillis() + ttl, body));
+    }
+
+    /**
+     * Returns a copy of the counters, by endpoint template
+     */
+    public synchronized Map<String, Stats> getStats() {
+
+        Map<String, Stats> copy = new HashMap<String, Stats>();
+
+        for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+
+            Stats stats = new Stats();
+            stats.hits          = entry.getValue().hits;
+            stats.revalidations = entry.getValue().revalidations;
+            stats.misses        = entry.getValue().misses;
+
+            copy.put(entry.getKey(), stats);
+        }
+
+        return copy;
+    }
+
+    private Stats statsFor(String url) {
+
+        String endpoint = Endpoint.templateOf(url);
+        Stats stats = mStats.get(endpoint);
+
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(endpoint, stats);
+        }
+
+        return stats;
+    }
+
+    // The endpoint's TTL if one is set, else the response's max-age (else 0)
+    private long ttlFor(String url, HttpResponse response) {
+
+        Long ttl = mTtls.get(Endpoint.templateOf(url));
+
+        if (ttl != null) {
+            return ttl;
+        }
+
+        for (Header header : response.getHeaders("Cache-Control")) {
+            for (String directive : header.getValue().split(",")) {
+
+                directive = directive.trim().toLowerCase();
+
+                if (directive.equals("no-store")) {
+                    return NO_STORE;
+                }
+
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return Long.parseLong(directive.substring(8)) * 1000;
+                    }
+                    catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+
+        return 0;
+    }
+
+    private void write(String url, Entry entry) {
+
+        byte[] body;
+
+        try {
+            body = entry.mBody.getBytes("UTF-8");
+        }
+        catch (IOException e) {
+            return;
+        }
+
+        if (body.length > MAX_ENTRY_BYTES) {
+            return;
+        }
+
+        if (! mDir.exists() && ! mDir.mkdirs()) {
+            Log.w(TAG, "Couldn't create " + mDir);
+            return;
+        }
+
+        File file = fileFor(url);
+        remove(file);
+
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeUTF(url);
+            out.writeUTF(nullToEmpty(entry.mEtag));
+            out.writeUTF(nullToEmpty(entry.mLastModified));
+            out.writeLong(entry.mExpires);
+            out.writeInt(body.length);
+            out.write(body);
+            out.close();
+            out = null;
+
+            mSize = getSize() + file.length();
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Couldn't cache " + url + ": " + e.getMessage());
+            close(out);
+            file.delete();
+            return;
+        }
+
+        trimToSize();
+    }
+
+    // Drops the least recently used entries until the cache fits
+    private void trimToSize() {
+
+        if (getSize() <= MAX_BYTES) {
+            return;
+        }
+
+        File[] files = mDir.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+            }
+        });
+
+        for (File file : files) {
+
+            if (mSize <= MAX_BYTES) {
+                break;
+            }
+
+            remove(file);
+        }
+    }
+
+    private long getSize() {
+
+        if (mSize == -1) {
+
+            mSize = 0;
+            File[] files = mDir.listFiles();
+
+            if (files != null) {
+                for (File file : files) {
+                    mSize += file.length();
+                }
+            }
+        }
+
+        return mSize;
+    }
+
+    private void remove(File file) {
+
+        long length = file.length();
+
+        if (file.delete() && mSize != -1) {
+            mSize -= length;
+        }
+    }
+
+    private File fileFor(String url) {
+        return new File(mDir, hash(url));
+    }
+
+    private static String hash(String url) {
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(url.getBytes("UTF-8"));
+
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+        catch (IOException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    private static String headerValue(HttpResponse response, String name, String defaultValue) {
+
+        Header header = response.getFirstHeader(name);
+
+        return (header != null) ? header.getValue() : defaultValue;
+    }
+
+    private static String emptyToNull(String value) {
+        return (value.length() == 0) ? null : value;
+    }
+
+    private static String nullToEmpty(String value) {
+        return (value == null) ? "" : value;
+    }
+
+    private static void close(Closeable stream) {
+
+        if (stream != null) {
+            try {
+                stream.close();
+            }
+            catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.pugh.sockso.android.net;
+
+/**
+ * Stops requests going to a server endpoint that keeps failing.
+ * <p/>
+ * Closed, requests go through. After {@link #FAILURE_THRESHOLD} failures in a row it opens,
+ * and requests fail straight away instead of waiting on a dead host. Once it has been open for
+ * a while, the endpoint is due a health probe; if that succeeds the breaker is half-open and
+ * lets one trial request through, which closes it again (or re-opens it, for twice as long).
+ * A trial that ends without an answer either way (e.g. it was cancelled) lets the next request
+ * be the trial, as does one that hasn't ended after {@link #TRIAL_TIMEOUT}.
+ * <p/>
+ * Not thread safe, {@link ServerEndpoints} guards it.
+ */
+class CircuitBreaker {
+
+    public static final int STATE_CLOSED    = 0;
+    public static final int STATE_OPEN      = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    private static final int FAILURE_THRESHOLD = 3;
+
+    private static final long MIN_OPEN_MILLIS = 15 * 1000;
+    private static final long MAX_OPEN_MILLIS = 5 * 60 * 1000;
+
+    // Longer than a request can wait without an answer (see SharedHttpClient's timeouts)
+    private static final long TRIAL_TIMEOUT = 60 * 1000;
+
+    private int mState = STATE_CLOSED;
+    private int mFailures = 0;
+
+    private long mOpenMillis = MIN_OPEN_MILLIS;
+    private long mOpenUntil = 0;
+
+    // When the half-open trial request was let through, -1 if it hasn't been
+    private long mTrialSent = -1;
+
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Returns true if a request may go to the endpoint now, it must then be followed by
+     * onSuccess(), onFailure() or onAbandoned()
+     */
+    public boolean allowRequest(long now) {
+
+        switch (mState) {
+
+        case STATE_CLOSED:
+            return true;
+        case STATE_HALF_OPEN:
+            if (mTrialSent != -1 && now - mTrialSent < TRIAL_TIMEOUT) {
+                return false;
+            }
+            mTrialSent = now;
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the breaker is open and has been long enough for a health probe
+     */
+    public boolean isProbeDue(long now) {
+        return mState == STATE_OPEN && now >= mOpenUntil;
+    }
+
+    public void onSuccess() {
+        mState      = STATE_CLOSED;
+        mFailures   = 0;
+        mOpenMillis = MIN_OPEN_MILLIS;
+    }
+
+    /**
+     * A request ended without finding out whether the endpoint works (e.g. it was cancelled)
+     */
+    public void onAbandoned() {
+
+        // Another request gets to be the trial
+        if (mState == STATE_HALF_OPEN) {
+            mTrialSent = -1;
+        }
+    }
+
+    public void onFailure(long now) {
+
+        if (mState != STATE_CLOSED) {
+            // The trial (or a request that was already under way) failed, stay away for longer
+            open(now, Math.min(mOpenMillis * 2, MAX_OPEN_MILLIS));
+            return;
+        }
+
+        if (++mFailures >= FAILURE_THRESHOLD) {
+            open(now, MIN_OPEN_MILLIS);
+        }
+    }
+
+    public void onProbe(boolean healthy, long now) {
+
+        if (mState != STATE_OPEN) {
+            return;
+        }
+
+        if (healthy) {
+            mState     = STATE_HALF_OPEN;
+            mTrialSent = -1;
+        }
+        else {
+            open(now, Math.min(mOpenMillis * 2, MAX_OPEN_MILLIS));
+        }
+    }
+
+    private void open(long now, long millis) {
+        mState      = STATE_OPEN;
+        mOpenMillis = millis;
+        mOpenUntil  = now + millis;
+    }
+
+}
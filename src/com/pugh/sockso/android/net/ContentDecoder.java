@@ -0,0 +1,160 @@
+package com.pugh.sockso.android.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Negotiates compressed (gzip or deflate) responses and reads them.
+ * <p/>
+ * The body is decompressed as it's read off the connection, so a compressed response never
+ * has to be held in memory whole. The bytes read off the network and the bytes they decompressed
+ * to are counted, to see how much the compression saves.
+ */
+public final class ContentDecoder {
+
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    // Totals of the bodies read: off the network, and after decompressing
+    private static long sWireBytes = 0;
+    private static long sDecodedBytes = 0;
+
+    private ContentDecoder() {}
+
+    /**
+     * Asks for a compressed response
+     */
+    public static void acceptCompressed(HttpGet request) {
+        request.addHeader("Accept-Encoding", ACCEPT_ENCODING);
+    }
+
+    /**
+     * Reads the body of a response as a string, decompressing it if needed
+     */
+    public static String toString(HttpEntity entity) throws IOException {
+
+        InputStream content = entity.getContent();
+
+        if (content == null) {
+            return null;
+        }
+
+        // Read at the bandwidth share of the request's class of traffic
+        CountingInputStream wire = new CountingInputStream(TrafficPolicy.throttle(content));
+        CountingInputStream decoded = null;
+
+        try {
+            decoded = new CountingInputStream(decode(wire, entity.getContentEncoding()));
+
+            String charset = EntityUtils.getContentCharSet(entity);
+            Reader reader = new InputStreamReader(decoded, (charset != null) ? charset : DEFAULT_CHARSET);
+
+            StringBuilder body = new StringBuilder((int) Math.max(entity.getContentLength(), 4096));
+            char[] buffer = new char[4096];
+            int count;
+
+            while ((count = reader.read(buffer)) != -1) {
+                body.append(buffer, 0, count);
+            }
+
+            return body.toString();
+        }
+        finally {
+            content.close();
+            record(wire.getCount(), (decoded != null) ? decoded.getCount() : 0);
+            HttpMetrics.bytesIn(wire.getCount());
+        }
+    }
+
+    private static InputStream decode(InputStream in, Header contentEncoding) throws IOException {
+
+        String encoding = (contentEncoding != null) ? contentEncoding.getValue().trim().toLowerCase() : "";
+
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            return new GZIPInputStream(in);
+        }
+
+        if (encoding.equals("deflate")) {
+            return new InflaterInputStream(in);
+        }
+
+        return in;
+    }
+
+    private static synchronized void record(long wireBytes, long decodedBytes) {
+        sWireBytes    += wireBytes;
+        sDecodedBytes += decodedBytes;
+    }
+
+    /**
+     * Returns the bytes of response bodies read off the network so far
+     */
+    public static synchronized long getWireBytes() {
+        return sWireBytes;
+    }
+
+    /**
+     * Returns the bytes those bodies decompressed to
+     */
+    public static synchronized long getDecodedBytes() {
+        return sDecodedBytes;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long mCount = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            int b = super.read();
+
+            if (b != -1) {
+                mCount++;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+
+            int read = super.read(buffer, offset, count);
+
+            if (read > 0) {
+                mCount += read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+
+            long skipped = super.skip(count);
+            mCount += skipped;
+
+            return skipped;
+        }
+    }
+
+}
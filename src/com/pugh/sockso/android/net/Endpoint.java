@@ -0,0 +1,132 @@
+package com.pugh.sockso.android.net;
+
+import android.net.Uri;
+
+/**
+ * Groups request URLs by endpoint, for per-endpoint settings and counters
+ */
+public final class Endpoint {
+
+    /**
+     * The endpoints {@link #classify(String)} tells apart, OTHER is anything else
+     */
+    public static final String[] TEMPLATES = {
+        "/api",
+        "/api/artists", "/api/artists/*",
+        "/api/albums", "/api/albums/*",
+        "/api/tracks", "/api/tracks/*",
+        "/file/cover/*",
+        "/stream/*", // the player's HEAD requests, the MediaPlayer fetches the streams itself
+        "other"
+        };
+
+    public static final int SERVER_INFO = 0;
+    public static final int COVER       = 7;
+    public static final int STREAM      = 8;
+    public static final int OTHER       = 9;
+
+    // Collections, each has a list template (at 1 + 2 * its index) followed by a single item one
+    private static final String[] COLLECTIONS = { "/api/artists", "/api/albums", "/api/tracks" };
+
+    private Endpoint() {}
+
+    /**
+     * Returns the index in TEMPLATES of the URL's endpoint. Unlike templateOf(),
+     * it doesn't allocate anything, so it's cheap enough to call for every request.
+     */
+    public static int classify(String url) {
+
+        // Start of the path, after "scheme://host:port"
+        int scheme = url.indexOf("://");
+        int path = url.indexOf('/', (scheme == -1) ? 0 : scheme + 3);
+
+        if (path == -1) {
+            return OTHER;
+        }
+
+        if (url.startsWith("/file/cover/", path)) {
+            return COVER;
+        }
+
+        if (url.startsWith("/stream/", path)) {
+            return STREAM;
+        }
+
+        for (int i = 0; i < COLLECTIONS.length; i++) {
+
+            String collection = COLLECTIONS[i];
+
+            if (url.startsWith(collection, path)) {
+
+                int end = path + collection.length();
+
+                if (isEnd(url, end)) {
+                    return 1 + 2 * i;
+                }
+                if (url.charAt(end) == '/' && ! isEnd(url, end + 1)) {
+                    return 2 + 2 * i;
+                }
+                return OTHER;
+            }
+        }
+
+        if (url.startsWith("/api", path) && (isEnd(url, path + 4) || url.charAt(path + 4) == '/' && isEnd(url, path + 5))) {
+            return SERVER_INFO;
+        }
+
+        return OTHER;
+    }
+
+    // Is the end of the URL's path at the position?
+    private static boolean isEnd(String url, int position) {
+        return position >= url.length() || url.charAt(position) == '?' || url.charAt(position) == '#';
+    }
+
+    /**
+     * Returns the endpoint template of a URL: its path, with the ids (numeric segments)
+     * and anything after /file/cover/ or /stream/ replaced by '*'.
+     * e.g. "http://host:4444/api/albums/12?x=1" is "/api/albums/*"
+     */
+    public static String templateOf(String url) {
+
+        String path = Uri.parse(url).getPath();
+
+        if (path == null || path.length() == 0) {
+            return "/";
+        }
+
+        if (path.startsWith("/file/cover/")) {
+            return "/file/cover/*";
+        }
+
+        if (path.startsWith("/stream/")) {
+            return "/stream/*";
+        }
+
+        StringBuilder template = new StringBuilder(path.length());
+
+        for (String segment : path.split("/")) {
+
+            if (segment.length() == 0) {
+                continue;
+            }
+
+            template.append('/');
+            template.append(isId(segment) ? "*" : segment);
+        }
+
+        return (template.length() == 0) ? "/" : template.toString();
+    }
+
+    private static boolean isId(String segment) {
+
+        for (int i = 0; i < segment.length(); i++) {
+            if (! Character.isDigit(segment.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+}
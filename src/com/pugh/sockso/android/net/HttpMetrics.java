@@ -0,0 +1,362 @@
+package com.pugh.sockso.android.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.NoRouteToHostException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.params.HttpParams;
+
+import android.os.SystemClock;
+
+/**
+ * Measures the requests made to the server, per endpoint (see {@link Endpoint#TEMPLATES}):
+ * histograms of the DNS lookup, connect, time to first byte and total times, bytes received,
+ * failures by class, and how many requests reused a connection instead of opening one.
+ * <p/>
+ * Everything is recorded into arrays allocated up front, and each thread's request in progress
+ * is kept in a reusable sample, so measuring never allocates. The DNS and connect times come
+ * from the {@link #socketFactory()} the HTTP clients connect with.
+ * <p/>
+ * {@link #dump()} returns the numbers as CSV, to compare servers and releases.
+ */
+public final class HttpMetrics {
+
+    public static final int PHASE_DNS     = 0;
+    public static final int PHASE_CONNECT = 1;
+    public static final int PHASE_TTFB    = 2;
+    public static final int PHASE_TOTAL   = 3;
+
+    private static final String[] PHASES = { "dns", "connect", "ttfb", "total" };
+
+    public static final int ERROR_TIMEOUT  = 0; // connect or read timed out
+    public static final int ERROR_CONNECT  = 1; // host unknown or unreachable, connection refused
+    public static final int ERROR_IO       = 2; // any other I/O error
+    public static final int ERROR_HTTP_4XX = 3;
+    public static final int ERROR_HTTP_5XX = 4;
+    public static final int ERROR_ABORTED  = 5; // cancelled (see RequestContext)
+
+    private static final String[] ERRORS = { "timeout", "connect", "io", "http_4xx", "http_5xx", "aborted" };
+
+    // Bucket i counts times up to 2^i ms, the last one everything longer
+    private static final int BUCKETS = 17;
+
+    private static final int ENDPOINTS = Endpoint.TEMPLATES.length;
+
+    private static final long[][][] sHistograms = new long[ENDPOINTS][PHASES.length][BUCKETS];
+    private static final long[][] sTotalTimes = new long[ENDPOINTS][PHASES.length];
+    private static final long[] sRequests = new long[ENDPOINTS];
+    private static final long[] sConnections = new long[ENDPOINTS];
+    private static final long[] sBytesIn = new long[ENDPOINTS];
+    private static final long[][] sErrors = new long[ENDPOINTS][ERRORS.length];
+
+    // The request in progress on a thread
+    private static class Sample {
+
+        private boolean active;
+        private int endpoint;
+        private long startTime;
+        private long dnsTime;     // -1 if there was no lookup
+        private long connectTime; // -1 if a connection was reused
+        private long ttfbTime;
+        private long bytesIn;
+    }
+
+    private static final ThreadLocal<Sample> sSample = new ThreadLocal<Sample>() {
+
+        @Override
+        protected Sample initialValue() {
+            return new Sample();
+        }
+    };
+
+    private static final TimedSocketFactory sSocketFactory = new TimedSocketFactory();
+
+    private HttpMetrics() {}
+
+    /**
+     * Returns the socket factory that times DNS lookups and connects, for the "http" scheme
+     */
+    public static SocketFactory socketFactory() {
+        return sSocketFactory;
+    }
+
+    /**
+     * A request to the URL is starting on this thread
+     */
+    public static void begin(String url) {
+
+        Sample sample = sSample.get();
+
+        sample.active      = true;
+        sample.endpoint    = Endpoint.classify(url);
+        sample.startTime   = SystemClock.elapsedRealtime();
+        sample.dnsTime     = -1;
+        sample.connectTime = -1;
+        sample.ttfbTime    = -1;
+        sample.bytesIn     = 0;
+    }
+
+    /**
+     * The response headers have arrived
+     */
+    public static void firstByte() {
+
+        Sample sample = sSample.get();
+
+        if (sample.active) {
+            sample.ttfbTime = SystemClock.elapsedRealtime() - sample.startTime;
+        }
+    }
+
+    /**
+     * Body bytes read (off the network, before decompressing)
+     */
+    public static void bytesIn(long count) {
+
+        Sample sample = sSample.get();
+
+        if (sample.active) {
+            sample.bytesIn += count;
+        }
+    }
+
+    /**
+     * The request has finished with the HTTP status
+     */
+    public static void end(int status) {
+        finish(sSample.get(), status >= 500 ? ERROR_HTTP_5XX : status >= 400 ? ERROR_HTTP_4XX : -1);
+    }
+
+    /**
+     * The request has failed with the exception
+     */
+    public static void failed(IOException e) {
+        finish(sSample.get(), errorClassOf(e));
+    }
+
+    private static int errorClassOf(IOException e) {
+
+        if (e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException) {
+            return ERROR_TIMEOUT;
+        }
+
+        if (e instanceof InterruptedIOException) {
+            return ERROR_ABORTED;
+        }
+
+        if (e instanceof UnknownHostException || e instanceof ConnectException || e instanceof NoRouteToHostException) {
+            return ERROR_CONNECT;
+        }
+
+        return ERROR_IO;
+    }
+
+    private static synchronized void finish(Sample sample, int error) {
+
+        if (! sample.active) {
+            return;
+        }
+
+        sample.active = false;
+
+        final int endpoint = sample.endpoint;
+
+        sRequests[endpoint]++;
+        sBytesIn[endpoint] += sample.bytesIn;
+
+        if (sample.connectTime != -1) {
+            sConnections[endpoint]++;
+            record(endpoint, PHASE_CONNECT, sample.connectTime);
+        }
+
+        if (sample.dnsTime != -1) {
+            record(endpoint, PHASE_DNS, sample.dnsTime);
+        }
+
+        if (sample.ttfbTime != -1) {
+            record(endpoint, PHASE_TTFB, sample.ttfbTime);
+        }
+
+        record(endpoint, PHASE_TOTAL, SystemClock.elapsedRealtime() - sample.startTime);
+
+        if (error != -1) {
+            sErrors[endpoint][error]++;
+        }
+    }
+
+    private static void record(int endpoint, int phase, long millis) {
+
+        int bucket = 0;
+
+        while (bucket < BUCKETS - 1 && millis > (1L << bucket)) {
+            bucket++;
+        }
+
+        sHistograms[endpoint][phase][bucket]++;
+        sTotalTimes[endpoint][phase] += millis;
+    }
+
+    /**
+     * Returns the share of requests to the endpoint that reused a connection (0 to 1)
+     */
+    public static synchronized float getReuseRatio(int endpoint) {
+
+        long requests = sRequests[endpoint];
+
+        return (requests == 0) ? 0 : (float) (requests - sConnections[endpoint]) / requests;
+    }
+
+    /**
+     * Returns the time in ms that the given percentile (0 to 100) of the endpoint's requests
+     * took in the phase, rounded up to the upper bound of its histogram bucket
+     */
+    public static synchronized long getPercentile(int endpoint, int phase, int percentile) {
+
+        long[] histogram = sHistograms[endpoint][phase];
+        long count = 0;
+
+        for (long bucketCount : histogram) {
+            count += bucketCount;
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = (count * percentile + 99) / 100;
+        long seen = 0;
+
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+
+            seen += histogram[bucket];
+
+            if (seen >= target) {
+                return 1L << bucket;
+            }
+        }
+
+        return 1L << (BUCKETS - 1);
+    }
+
+    /**
+     * Returns the numbers as CSV, a row per endpoint and phase that has any requests
+     */
+    public static synchronized String dump() {
+
+        StringBuilder csv = new StringBuilder("endpoint,phase,count,mean_ms,p50_ms,p90_ms,p99_ms,"
+                + "requests,reuse_ratio,bytes_in");
+
+        for (String error : ERRORS) {
+            csv.append(",errors_").append(error);
+        }
+
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            csv.append(bucket < BUCKETS - 1 ? ",le_" : ",gt_").append(1L << Math.min(bucket, BUCKETS - 2));
+        }
+
+        csv.append('\n');
+
+        for (int endpoint = 0; endpoint < ENDPOINTS; endpoint++) {
+
+            if (sRequests[endpoint] == 0) {
+                continue;
+            }
+
+            for (int phase = 0; phase < PHASES.length; phase++) {
+
+                long count = 0;
+                for (long bucketCount : sHistograms[endpoint][phase]) {
+                    count += bucketCount;
+                }
+
+                csv.append(Endpoint.TEMPLATES[endpoint]).append(',').append(PHASES[phase]);
+                csv.append(',').append(count);
+                csv.append(',').append(count == 0 ? 0 : sTotalTimes[endpoint][phase] / count);
+                csv.append(',').append(getPercentile(endpoint, phase, 50));
+                csv.append(',').append(getPercentile(endpoint, phase, 90));
+                csv.append(',').append(getPercentile(endpoint, phase, 99));
+                csv.append(',').append(sRequests[endpoint]);
+                csv.append(',').append(getReuseRatio(endpoint));
+                csv.append(',').append(sBytesIn[endpoint]);
+
+                for (long errors : sErrors[endpoint]) {
+                    csv.append(',').append(errors);
+                }
+
+                for (long bucketCount : sHistograms[endpoint][phase]) {
+                    csv.append(',').append(bucketCount);
+                }
+
+                csv.append('\n');
+            }
+        }
+
+        return csv.toString();
+    }
+
+    /**
+     * Clears all the numbers
+     */
+    public static synchronized void reset() {
+
+        for (int endpoint = 0; endpoint < ENDPOINTS; endpoint++) {
+
+            for (int phase = 0; phase < PHASES.length; phase++) {
+                Arrays.fill(sHistograms[endpoint][phase], 0);
+                sTotalTimes[endpoint][phase] = 0;
+            }
+
+            Arrays.fill(sErrors[endpoint], 0);
+            sRequests[endpoint]    = 0;
+            sConnections[endpoint] = 0;
+            sBytesIn[endpoint]     = 0;
+        }
+    }
+
+    // Plain sockets, with the host name looked up separately so the lookup can be timed
+    private static class TimedSocketFactory implements SocketFactory {
+
+        private final PlainSocketFactory mFactory = PlainSocketFactory.getSocketFactory();
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return mFactory.createSocket();
+        }
+
+        @Override
+        public Socket connectSocket(Socket socket, String host, int port, InetAddress localAddress, int localPort,
+                HttpParams params) throws IOException {
+
+            Sample sample = sSample.get();
+
+            long start = SystemClock.elapsedRealtime();
+            InetAddress address = InetAddress.getByName(host);
+            long resolved = SystemClock.elapsedRealtime();
+
+            Socket connected = mFactory.connectSocket(socket, address.getHostAddress(), port, localAddress, localPort,
+                    params);
+
+            if (sample.active) {
+                sample.dnsTime     = resolved - start;
+                sample.connectTime = SystemClock.elapsedRealtime() - resolved;
+            }
+
+            return connected;
+        }
+
+        @Override
+        public boolean isSecure(Socket socket) {
+            return mFactory.isSecure(socket);
+        }
+    }
+
+}
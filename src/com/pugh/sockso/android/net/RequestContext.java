@@ -0,0 +1,102 @@
+package com.pugh.sockso.android.net;
+
+import java.io.InterruptedIOException;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Links a request running on the {@link RequestExecutor} to the HTTP request it's making,
+ * so cancelling it aborts the connection instead of waiting for it to finish.
+ * <p/>
+ * The HTTP layer finds the context of the thread it runs on with {@link #current()}.
+ * Work that runs on its own thread rather than the executor (e.g. the sync adapter) can still
+ * be given a context with {@link #enter(int)}, so its traffic is classified and cancellable.
+ */
+public final class RequestContext {
+
+    private static final ThreadLocal<RequestContext> sCurrent = new ThreadLocal<RequestContext>();
+
+    private final int mPriority;
+    private HttpUriRequest mRequest;
+    private boolean mCancelled = false;
+
+    RequestContext(int priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * Returns the context of the request running on this thread, or null if there isn't one
+     */
+    public static RequestContext current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Returns the priority (traffic class) the request was submitted with
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    static void enter(RequestContext context) {
+        sCurrent.set(context);
+    }
+
+    /**
+     * Makes what this thread does from now on a request of the priority (see RequestExecutor),
+     * until exit() is called
+     */
+    public static RequestContext enter(int priority) {
+
+        RequestContext context = new RequestContext(priority);
+        enter(context);
+
+        return context;
+    }
+
+    public static void exit() {
+        sCurrent.set(null);
+    }
+
+    /**
+     * Called before an HTTP request is executed
+     *
+     * @throws InterruptedIOException if the request has been cancelled
+     */
+    public synchronized void begin(HttpUriRequest request) throws InterruptedIOException {
+
+        if (mCancelled) {
+            throw new InterruptedIOException("Request cancelled");
+        }
+
+        mRequest = request;
+    }
+
+    /**
+     * Called once the HTTP request has finished
+     */
+    public synchronized void end(HttpUriRequest request) {
+
+        if (mRequest == request) {
+            mRequest = null;
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Aborts the HTTP request in progress, and makes any later one fail straight away
+     */
+    public synchronized void cancel() {
+
+        mCancelled = true;
+
+        if (mRequest != null) {
+            mRequest.abort();
+            mRequest = null;
+        }
+    }
+
+}
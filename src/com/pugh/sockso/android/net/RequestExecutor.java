@@ -0,0 +1,320 @@
+package com.pugh.sockso.android.net;
+
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs server requests on a small pool of background threads, shared by the whole app.
+ * <p/>
+ * Requests waiting for a thread are run in priority order (playback, then UI, prefetch and
+ * sync), and in the order they were submitted within a priority. A request can be cancelled,
+ * which aborts its HTTP connection if it's running (see {@link RequestContext}), and can be
+ * given a deadline, after which it's cancelled and fails with an InterruptedIOException.
+ * <p/>
+ * The priorities are also classes of traffic: how many requests of each may run at once, and
+ * whether they may start at all, is up to the {@link TrafficPolicy}. One thread is kept for
+ * playback requests, so they never wait behind the others.
+ */
+public final class RequestExecutor {
+
+    private static final String TAG = RequestExecutor.class.getSimpleName();
+
+    public static final int PRIORITY_PLAYBACK = 0;
+    public static final int PRIORITY_UI       = 1;
+    public static final int PRIORITY_PREFETCH = 2;
+    public static final int PRIORITY_SYNC     = 3;
+
+    /**
+     * No deadline
+     */
+    public static final long NO_DEADLINE = 0;
+
+    private static final int THREAD_COUNT = 3;
+
+    private static RequestExecutor sInstance;
+
+    /**
+     * Receives the outcome of a request, on the main thread
+     */
+    public interface Callback<T> {
+
+        public void onResult(T result);
+
+        /**
+         * @param error why the request failed, an InterruptedIOException if it was
+         *              cancelled or ran past its deadline
+         */
+        public void onError(Exception error);
+    }
+
+    /**
+     * A submitted request, which can also be waited on like any Future
+     */
+    public static class Request<T> extends FutureTask<T> implements Comparable<Request<?>> {
+
+        private final int mPriority;
+        private final long mSequence;
+        private final Callback<T> mCallback;
+        private final Handler mHandler;
+        private final RequestContext mContext;
+
+        private volatile boolean mExpired = false;
+        private volatile ScheduledFuture<?> mDeadline;
+
+        private Request(Callable<T> work, int priority, long sequence, Callback<T> callback, Handler handler) {
+            super(work);
+
+            mPriority = priority;
+            mSequence = sequence;
+            mCallback = callback;
+            mHandler  = handler;
+            mContext  = new RequestContext(priority);
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public void run() {
+
+            RequestContext.enter(mContext);
+
+            try {
+                super.run();
+            }
+            finally {
+                RequestContext.exit();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+
+            // Aborting the connection is what unblocks the thread, not interrupting it
+            boolean cancelled = super.cancel(false);
+
+            if (cancelled) {
+                mContext.cancel();
+            }
+
+            return cancelled;
+        }
+
+        private void expire() {
+
+            mExpired = true;
+
+            if (cancel(true)) {
+                Log.d(TAG, "Request ran past its deadline");
+            }
+        }
+
+        @Override
+        protected void done() {
+
+            ScheduledFuture<?> deadline = mDeadline;
+
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+
+            if (mCallback == null) {
+                return;
+            }
+
+            mHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    deliver();
+                }
+            });
+        }
+
+        private void deliver() {
+
+            T result;
+
+            try {
+                result = get();
+            }
+            catch (CancellationException e) {
+                mCallback.onError(new InterruptedIOException(mExpired ? "Deadline passed" : "Request cancelled"));
+                return;
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                mCallback.onError((cause instanceof Exception) ? (Exception) cause : e);
+                return;
+            }
+            catch (InterruptedException e) {
+                mCallback.onError(e); // can't happen, the request is done
+                return;
+            }
+
+            mCallback.onResult(result);
+        }
+
+        @Override
+        public int compareTo(Request<?> other) {
+
+            if (mPriority != other.mPriority) {
+                return (mPriority < other.mPriority) ? -1 : 1;
+            }
+
+            return (mSequence < other.mSequence) ? -1 : (mSequence > other.mSequence) ? 1 : 0;
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledExecutorService mDeadlines;
+    private final Handler mMainHandler;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // Waiting to run, in the order they'll run in, and how many are running of each priority
+    private final TreeSet<Request<?>> mPending = new TreeSet<Request<?>>();
+    private final int[] mRunning = new int[PRIORITY_SYNC + 1];
+    private int mRunningTotal = 0;
+
+    public static synchronized RequestExecutor getInstance() {
+
+        if (sInstance == null) {
+            sInstance = new RequestExecutor();
+        }
+
+        return sInstance;
+    }
+
+    private RequestExecutor() {
+
+        mMainHandler = new Handler(Looper.getMainLooper());
+
+        // Requests are only handed over when there's a thread free for them (see dispatch())
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT + 1, THREAD_COUNT + 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+
+                        return new Thread(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, TAG);
+                    }
+                });
+
+        mDeadlines = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Submits a request
+     *
+     * @param priority one of the PRIORITY_ constants, also its class of traffic
+     * @param timeoutMillis how long it may take from now before it's cancelled, or NO_DEADLINE
+     * @param callback gets the outcome on the main thread, may be null
+     */
+    public <T> Request<T> submit(Callable<T> work, int priority, long timeoutMillis, Callback<T> callback) {
+
+        final Request<T> request = new Request<T>(work, priority, mSequence.getAndIncrement(), callback, mMainHandler);
+
+        if (timeoutMillis != NO_DEADLINE) {
+            request.mDeadline = mDeadlines.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    request.expire();
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized (this) {
+            mPending.add(request);
+        }
+
+        dispatch();
+
+        return request;
+    }
+
+    /**
+     * Starts what's waiting and may run now, called when the TrafficPolicy changes
+     */
+    public void reschedule() {
+        dispatch();
+    }
+
+    private synchronized void dispatch() {
+
+        Iterator<Request<?>> pending = mPending.iterator();
+
+        while (pending.hasNext() && mRunningTotal < THREAD_COUNT + 1) {
+
+            final Request<?> request = pending.next();
+            final int priority = request.getPriority();
+
+            // Cancelled while it was waiting
+            if (request.isDone()) {
+                pending.remove();
+                continue;
+            }
+
+            if ((priority != PRIORITY_PLAYBACK && mRunningTotal >= THREAD_COUNT)
+                    || mRunning[priority] >= TrafficPolicy.getConcurrency(priority)
+                    || TrafficPolicy.isDeferred(priority)) {
+                continue;
+            }
+
+            pending.remove();
+            mRunning[priority]++;
+            mRunningTotal++;
+
+            mExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    try {
+                        request.run();
+                    }
+                    finally {
+                        finished(priority);
+                    }
+                }
+            });
+        }
+    }
+
+    private void finished(int priority) {
+
+        synchronized (this) {
+            mRunning[priority]--;
+            mRunningTotal--;
+        }
+
+        dispatch();
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.pugh.sockso.android.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * When to retry a failed (idempotent) request, and how long to wait first.
+ * <p/>
+ * The wait grows exponentially with each attempt, and is picked at random up to that
+ * ("full jitter"), so clients that failed together don't all retry together.
+ */
+public final class RetryPolicy {
+
+    public static final int MAX_ATTEMPTS = 3;
+
+    private static final long BASE_DELAY = 250;
+    private static final long MAX_DELAY  = 2000;
+
+    private static final Random sRandom = new Random();
+
+    private RetryPolicy() {}
+
+    /**
+     * Returns true if the request might succeed if it's tried again: it timed out, couldn't
+     * connect, got no response or a server error (5xx)
+     */
+    public static boolean isRetryable(IOException e) {
+
+        if (e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException) {
+            return true;
+        }
+
+        if (e instanceof InterruptedIOException || e instanceof ServerUnavailableException) {
+            return false; // cancelled, or not worth trying
+        }
+
+        if (e instanceof HttpResponseException) {
+            return ((HttpResponseException) e).getStatusCode() >= 500;
+        }
+
+        return e instanceof ConnectException || e instanceof NoRouteToHostException
+                || e instanceof NoHttpResponseException;
+    }
+
+    /**
+     * Waits before retrying, the attempt about to be made counting from 1 for the first retry
+     *
+     * @throws InterruptedIOException if the request was cancelled while waiting
+     */
+    public static void backOff(int attempt) throws InterruptedIOException {
+
+        long ceiling = Math.min(MAX_DELAY, BASE_DELAY << (attempt - 1));
+        long delay;
+
+        synchronized (sRandom) {
+            delay = (long) (sRandom.nextDouble() * ceiling);
+        }
+
+        try {
+            Thread.sleep(delay);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off");
+        }
+
+        RequestContext context = RequestContext.current();
+
+        if (context != null && context.isCancelled()) {
+            throw new InterruptedIOException("Request cancelled");
+        }
+    }
+
+}
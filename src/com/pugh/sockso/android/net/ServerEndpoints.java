@@ -0,0 +1,402 @@
+package com.pugh.sockso.android.net;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+/**
+ * The addresses the same Sockso server can be reached at (e.g. its LAN address and a WAN
+ * host name), and which one to use.
+ * <p/>
+ * Every endpoint is probed in the background by fetching the server info (/api) and timing it.
+ * Requests go to the healthy endpoint with the lowest round-trip time, and when a request to an
+ * endpoint fails to connect, the endpoint is marked down and the next best one is used straight
+ * away. Endpoints are probed again every few minutes, or after a failure, so one that comes back
+ * (or gets faster) is picked up again.
+ * <p/>
+ * Each endpoint also has a {@link CircuitBreaker}. While every endpoint's breaker is open the
+ * server is unavailable: requests should fail fast (see {@link #allowRequest(String)}), and
+ * {@link #ACTION_AVAILABILITY_CHANGED} is broadcast locally so the UI can carry on offline.
+ */
+public class ServerEndpoints {
+
+    private static final String TAG = ServerEndpoints.class.getSimpleName();
+
+    /**
+     * Broadcast (with LocalBroadcastManager) when the server becomes unavailable or available
+     * again, with EXTRA_AVAILABLE
+     */
+    public static final String ACTION_AVAILABILITY_CHANGED = "com.pugh.sockso.android.net.AVAILABILITY_CHANGED";
+    public static final String EXTRA_AVAILABLE = "available";
+
+    private static final long PROBE_INTERVAL = 5 * 60 * 1000;
+
+    private static final int PROBE_CONNECT_TIMEOUT = 3000;
+    private static final int PROBE_READ_TIMEOUT    = 5000;
+
+    // Weight of a new probe in the round-trip time average
+    private static final float RTT_ALPHA = 0.5f;
+
+    private static class Address {
+
+        private final String mRootUrl;
+        private boolean mHealthy = true; // until a probe or request says otherwise
+        private long mRtt = -1;          // averaged, in ms, -1 until probed
+        private final CircuitBreaker mBreaker = new CircuitBreaker();
+
+        private Address(String rootUrl) {
+            mRootUrl = rootUrl;
+        }
+    }
+
+    private final Context mContext; // for broadcasts, may be null
+    private final List<Address> mEndpoints;
+    private Address mCurrent;
+    private boolean mAvailable = true;
+
+    private long mLastProbe = 0;
+    private boolean mProbing = false;
+
+    /**
+     * @param rootUrls the root URL of each endpoint ("http://host:port"), the first is preferred
+     *                 until the endpoints have been probed
+     */
+    public ServerEndpoints(List<String> rootUrls) {
+        this(null, rootUrls);
+    }
+
+    /**
+     * @param context  to broadcast availability changes with, may be null
+     * @param rootUrls the root URL of each endpoint ("http://host:port"), the first is preferred
+     *                 until the endpoints have been probed
+     */
+    public ServerEndpoints(Context context, List<String> rootUrls) {
+
+        mContext = (context != null) ? context.getApplicationContext() : null;
+
+        List<Address> endpoints = new ArrayList<Address>(rootUrls.size());
+
+        for (String rootUrl : rootUrls) {
+            endpoints.add(new Address(rootUrl));
+        }
+
+        mEndpoints = Collections.unmodifiableList(endpoints);
+        mCurrent   = mEndpoints.get(0);
+    }
+
+    /**
+     * Returns the root URL of the endpoint to use now
+     */
+    public String getRootUrl() {
+
+        probeIfDue();
+
+        synchronized (this) {
+            return mCurrent.mRootUrl;
+        }
+    }
+
+    public int size() {
+        return mEndpoints.size();
+    }
+
+    /**
+     * Returns the URL with the root of the endpoint in use, if it starts with another
+     * endpoint's root (e.g. one built before a failover), else the URL unchanged
+     */
+    public synchronized String rebase(String url) {
+
+        for (Address endpoint : mEndpoints) {
+            if (endpoint != mCurrent && url.startsWith(endpoint.mRootUrl + "/")) {
+                return mCurrent.mRootUrl + url.substring(endpoint.mRootUrl.length());
+            }
+        }
+
+        return url;
+    }
+
+    /**
+     * Returns false if the URL's endpoint has its circuit breaker open, and the request
+     * shouldn't be made. If it's allowed, how it ended must be reported, with reportSuccess(),
+     * reportFailure() or reportAbandoned().
+     */
+    public boolean allowRequest(String url) {
+
+        boolean allowed;
+
+        synchronized (this) {
+            Address endpoint = find(url);
+            allowed = (endpoint == null) || endpoint.mBreaker.allowRequest(SystemClock.elapsedRealtime());
+        }
+
+        if (! allowed) {
+            probeIfDue();
+        }
+
+        return allowed;
+    }
+
+    /**
+     * Returns false while every endpoint has its circuit breaker open. Asking starts a health
+     * probe if one is due, so callers that only check (e.g. periodic syncs) still find out when
+     * the server is back.
+     */
+    public boolean isAvailable() {
+
+        probeIfDue();
+
+        synchronized (this) {
+            return mAvailable;
+        }
+    }
+
+    /**
+     * A request to the URL got an answer from its endpoint
+     */
+    public void reportSuccess(String url) {
+
+        synchronized (this) {
+
+            Address endpoint = find(url);
+
+            if (endpoint == null) {
+                return;
+            }
+
+            endpoint.mHealthy = true;
+            endpoint.mBreaker.onSuccess();
+        }
+
+        updateAvailability();
+    }
+
+    /**
+     * A request to the URL ended without an answer either way, e.g. it was cancelled
+     */
+    public synchronized void reportAbandoned(String url) {
+
+        Address endpoint = find(url);
+
+        if (endpoint != null) {
+            endpoint.mBreaker.onAbandoned();
+        }
+    }
+
+    /**
+     * A request to the URL couldn't reach its endpoint: switches to the next best endpoint
+     *
+     * @return true if requests now go to another endpoint
+     */
+    public boolean reportFailure(String url) {
+
+        boolean switched;
+
+        synchronized (this) {
+
+            Address failed = find(url);
+
+            if (failed == null) {
+                return false;
+            }
+
+            failed.mHealthy = false;
+            failed.mBreaker.onFailure(SystemClock.elapsedRealtime());
+            switched = select(failed);
+        }
+
+        Log.i(TAG, "Endpoint failed: " + url + (switched ? ", now using " + getRootUrl() : ""));
+
+        updateAvailability();
+
+        // Find out what's still up
+        probe();
+
+        return switched;
+    }
+
+    private Address find(String url) {
+
+        for (Address endpoint : mEndpoints) {
+            // Not just a prefix, http://nas:80 mustn't match http://nas:8080/...
+            if (url.equals(endpoint.mRootUrl) || url.startsWith(endpoint.mRootUrl + "/")) {
+                return endpoint;
+            }
+        }
+
+        return null;
+    }
+
+    private void probeIfDue() {
+
+        synchronized (this) {
+
+            long now = SystemClock.elapsedRealtime();
+            boolean due = mEndpoints.size() > 1 && now - mLastProbe >= PROBE_INTERVAL;
+
+            // An open breaker is probed sooner, that's what closes it again
+            for (Address endpoint : mEndpoints) {
+                due |= endpoint.mBreaker.isProbeDue(now);
+            }
+
+            if (! due) {
+                return;
+            }
+        }
+
+        probe();
+    }
+
+    // Broadcasts a change in whether any endpoint can be used
+    private void updateAvailability() {
+
+        boolean available = false;
+
+        synchronized (this) {
+
+            for (Address endpoint : mEndpoints) {
+                available |= endpoint.mBreaker.getState() != CircuitBreaker.STATE_OPEN;
+            }
+
+            if (available == mAvailable) {
+                return;
+            }
+
+            mAvailable = available;
+        }
+
+        Log.i(TAG, "Server " + (available ? "available" : "unavailable"));
+
+        if (mContext != null) {
+            Intent intent = new Intent(ACTION_AVAILABILITY_CHANGED);
+            intent.putExtra(EXTRA_AVAILABLE, available);
+            LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+        }
+    }
+
+    /**
+     * Probes all the endpoints in the background (unless they're already being probed)
+     */
+    public void probe() {
+
+        synchronized (this) {
+
+            if (mProbing) {
+                return;
+            }
+
+            mProbing   = true;
+            mLastProbe = SystemClock.elapsedRealtime();
+        }
+
+        RequestExecutor.getInstance().submit(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+
+                try {
+                    for (Address endpoint : mEndpoints) {
+                        probe(endpoint);
+                    }
+
+                    synchronized (ServerEndpoints.this) {
+                        select(null);
+                    }
+
+                    updateAvailability();
+                }
+                finally {
+                    synchronized (ServerEndpoints.this) {
+                        mProbing = false;
+                    }
+                }
+
+                return null;
+            }
+        }, RequestExecutor.PRIORITY_PREFETCH, RequestExecutor.NO_DEADLINE, null);
+    }
+
+    private void probe(Address endpoint) {
+
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, PROBE_CONNECT_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, PROBE_READ_TIMEOUT);
+
+        HttpGet request = new HttpGet(endpoint.mRootUrl + "/api");
+        request.setParams(params);
+
+        long start = SystemClock.elapsedRealtime();
+        boolean healthy = false;
+
+        try {
+            HttpResponse response = SharedHttpClient.get().execute(request);
+
+            if (response.getEntity() != null) {
+                response.getEntity().consumeContent();
+            }
+
+            healthy = response.getStatusLine().getStatusCode() == HttpStatus.SC_OK;
+        }
+        catch (IOException e) {
+            request.abort();
+            Log.d(TAG, "Probe of " + endpoint.mRootUrl + " failed: " + e.getMessage());
+        }
+
+        long rtt = SystemClock.elapsedRealtime() - start;
+
+        synchronized (this) {
+
+            endpoint.mHealthy = healthy;
+            endpoint.mBreaker.onProbe(healthy, SystemClock.elapsedRealtime());
+
+            if (healthy) {
+                endpoint.mRtt = (endpoint.mRtt == -1) ? rtt : (long) (RTT_ALPHA * rtt + (1 - RTT_ALPHA) * endpoint.mRtt);
+            }
+        }
+
+        Log.d(TAG, "Probed " + endpoint.mRootUrl + ": " + (healthy ? rtt + "ms" : "down"));
+    }
+
+    // Picks the healthy endpoint with the lowest round-trip time (not the excluded one),
+    // returns true if that's a change
+    private boolean select(Address excluded) {
+
+        Address best = null;
+
+        for (Address endpoint : mEndpoints) {
+
+            if (endpoint == excluded || ! endpoint.mHealthy
+                    || endpoint.mBreaker.getState() == CircuitBreaker.STATE_OPEN) {
+                continue;
+            }
+
+            // Probed ones first, in order of round-trip time, then the rest in the order given
+            if (best == null || (endpoint.mRtt != -1 && (best.mRtt == -1 || endpoint.mRtt < best.mRtt))) {
+                best = endpoint;
+            }
+        }
+
+        if (best == null || best == mCurrent) {
+            return false; // nothing better, stay where we are
+        }
+
+        mCurrent = best;
+
+        return true;
+    }
+
+}
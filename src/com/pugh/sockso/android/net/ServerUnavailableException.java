@@ -0,0 +1,17 @@
+package com.pugh.sockso.android.net;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of making a request when every endpoint of the server has its circuit
+ * breaker open (see {@link ServerEndpoints#isAvailable()})
+ */
+public class ServerUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ServerUnavailableException(String url) {
+        super("Server unavailable: " + url);
+    }
+
+}
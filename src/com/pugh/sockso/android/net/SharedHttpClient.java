@@ -0,0 +1,58 @@
+package com.pugh.sockso.android.net;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * The HTTP client all server requests go through.
+ * <p/>
+ * Its connections are pooled and kept alive between requests, so only the first request to
+ * the server pays for the DNS lookup and connect (see ServerFactory.warmUp()). Connections are
+ * made through the {@link HttpMetrics} socket factory.
+ * <p/>
+ * No request waits forever: connecting, each read and waiting for a pooled connection all time
+ * out. Requests can set shorter timeouts of their own (e.g. covers, health probes).
+ */
+public final class SharedHttpClient {
+
+    private static final int MAX_CONNECTIONS           = 8;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+
+    // Default timeouts (msecs)
+    private static final int  CONNECT_TIMEOUT   = 10 * 1000;
+    private static final int  READ_TIMEOUT      = 20 * 1000; // between two reads, not the whole response
+    private static final long POOL_WAIT_TIMEOUT = 10 * 1000;
+
+    private static HttpClient sClient;
+
+    private SharedHttpClient() {}
+
+    public static synchronized HttpClient get() {
+
+        if (sClient == null) {
+
+            HttpParams params = new BasicHttpParams();
+            ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+            ConnManagerParams.setTimeout(params, POOL_WAIT_TIMEOUT);
+            HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+            HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+
+            SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http", HttpMetrics.socketFactory(), 80));
+
+            sClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+        }
+
+        return sClient;
+    }
+
+}
@@ -0,0 +1,222 @@
+package com.pugh.sockso.android.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * How much of the network each class of traffic gets, depending on the link and on whether
+ * a track is streaming. The classes are the {@link RequestExecutor} priorities: the audio
+ * stream (playback), interactive (UI), prefetch (e.g. covers) and bulk sync.
+ * <p/>
+ * The stream always comes first. The {@link RequestExecutor} runs at most
+ * {@link #getConcurrency(int)} requests of each class at a time, and holds back the classes that
+ * are {@link #isDeferred(int) deferred}: bulk sync waits for an unmetered link (Wi-Fi or
+ * ethernet). While a track streams over a metered link, the other classes are also limited to a
+ * share of the bandwidth ({@link #throttle(InputStream)}), so they can't starve the stream.
+ */
+public final class TrafficPolicy {
+
+    private static final String TAG = TrafficPolicy.class.getSimpleName();
+
+    private static final int CLASSES = RequestExecutor.PRIORITY_SYNC + 1;
+
+    // ConnectivityManager.TYPE_ETHERNET, from API 13
+    private static final int TYPE_ETHERNET = 9;
+
+    // Requests of each class that may run at once
+    private static final int[] CONCURRENCY          = { Integer.MAX_VALUE, 2, 2, 1 };
+    private static final int[] CONCURRENCY_STREAMING = { Integer.MAX_VALUE, 2, 1, 1 };
+
+    // Bytes/second each class may read while a track streams over a metered link, 0 for no limit
+    private static final int[] BANDWIDTH_STREAMING = { 0, 64 * 1024, 16 * 1024, 16 * 1024 };
+
+    private static boolean sMetered = false; // until watch() finds out
+    private static boolean sStreaming = false;
+
+    private static BroadcastReceiver sReceiver;
+
+    // Token bucket of each class, a second's worth of bytes at most
+    private static final long[] sTokens = new long[CLASSES];
+    private static final long[] sRefilled = new long[CLASSES];
+
+    private TrafficPolicy() {}
+
+    /**
+     * Starts following what the network link is, idempotent
+     */
+    public static synchronized void watch(Context context) {
+
+        if (sReceiver != null) {
+            return;
+        }
+
+        context = context.getApplicationContext();
+
+        sReceiver = new BroadcastReceiver() {
+
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                update(context);
+            }
+        };
+
+        context.registerReceiver(sReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        update(context);
+    }
+
+    private static void update(Context context) {
+
+        ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = connectivity.getActiveNetworkInfo();
+
+        boolean metered = network == null
+                || (network.getType() != ConnectivityManager.TYPE_WIFI && network.getType() != TYPE_ETHERNET);
+
+        synchronized (TrafficPolicy.class) {
+
+            if (metered == sMetered) {
+                return;
+            }
+
+            sMetered = metered;
+        }
+
+        Log.d(TAG, "Link is now " + (metered ? "metered" : "unmetered"));
+
+        RequestExecutor.getInstance().reschedule();
+    }
+
+    /**
+     * A track has started or stopped streaming
+     */
+    public static void setStreaming(boolean streaming) {
+
+        synchronized (TrafficPolicy.class) {
+
+            if (streaming == sStreaming) {
+                return;
+            }
+
+            sStreaming = streaming;
+        }
+
+        RequestExecutor.getInstance().reschedule();
+    }
+
+    public static synchronized boolean isMetered() {
+        return sMetered;
+    }
+
+    /**
+     * Returns how many requests of the class (a RequestExecutor priority) may run at once
+     */
+    public static synchronized int getConcurrency(int priority) {
+        return (sStreaming && sMetered) ? CONCURRENCY_STREAMING[priority] : CONCURRENCY[priority];
+    }
+
+    /**
+     * Returns true if requests of the class shouldn't start now
+     */
+    public static synchronized boolean isDeferred(int priority) {
+        return priority == RequestExecutor.PRIORITY_SYNC && sMetered;
+    }
+
+    /**
+     * Returns the stream limited to the bandwidth share of the class of the request running on
+     * this thread (see {@link RequestContext}), if there is one
+     */
+    public static InputStream throttle(InputStream in) {
+
+        RequestContext context = RequestContext.current();
+
+        if (context == null || context.getPriority() == RequestExecutor.PRIORITY_PLAYBACK) {
+            return in;
+        }
+
+        return new ThrottledInputStream(in, context.getPriority());
+    }
+
+    // Blocks until the class may read the bytes
+    private static void acquire(int priority, int bytes) throws InterruptedIOException {
+
+        long wait;
+
+        synchronized (TrafficPolicy.class) {
+
+            if (! sStreaming || ! sMetered) {
+                return;
+            }
+
+            int rate = BANDWIDTH_STREAMING[priority];
+
+            if (rate == 0) {
+                return;
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            sTokens[priority] = Math.min(rate, sTokens[priority] + (now - sRefilled[priority]) * rate / 1000);
+            sRefilled[priority] = now;
+
+            // Goes into debt, the next read waits it off
+            sTokens[priority] -= bytes;
+
+            wait = (sTokens[priority] < 0) ? -sTokens[priority] * 1000 / rate : 0;
+        }
+
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    private static class ThrottledInputStream extends FilterInputStream {
+
+        private final int mPriority;
+
+        ThrottledInputStream(InputStream in, int priority) {
+            super(in);
+            mPriority = priority;
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            int b = super.read();
+
+            if (b != -1) {
+                acquire(mPriority, 1);
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+
+            int read = super.read(buffer, offset, count);
+
+            if (read > 0) {
+                acquire(mPriority, read);
+            }
+
+            return read;
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.pugh.sockso.android.player;
+
+/**
+ * Estimates the network bandwidth from how fast the MediaPlayer actually buffers the streams.
+ * <p/>
+ * The MediaPlayer only reports how much of the stream it has buffered (as a percentage), so the
+ * bytes downloaded between two buffering updates are worked out from the stream's content length.
+ * Chunked (e.g. transcoded) streams don't have one, their length is estimated from the track's
+ * duration and bitrate instead ({@link #estimateLength(int, long)}).
+ * Samples are accumulated until they're big enough to be meaningful, then folded into an
+ * exponentially weighted moving average. The estimate carries over from one track to the next.
+ */
+public class BandwidthEstimator {
+
+    // Don't take a sample until at least this much data/time has been seen
+    private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+    private static final long MIN_SAMPLE_TIME  = 500; // msecs
+
+    // Weight of the newest sample in the moving average
+    private static final double SAMPLE_WEIGHT = 0.3;
+
+    // Bits per second, -1 until the first sample
+    private long mEstimate = -1;
+
+    // Progress of the current stream
+    private int  mLastPercent = -1;
+    private long mLastTime = 0;
+    private long mPendingBytes = 0;
+    private long mPendingTime = 0;
+
+    /**
+     * Called when a new stream starts buffering
+     */
+    public synchronized void streamStarted() {
+
+        mLastPercent  = -1;
+        mLastTime     = 0;
+        mPendingBytes = 0;
+        mPendingTime  = 0;
+    }
+
+    /**
+     * @param percent how much of the stream is buffered
+     * @param contentLength size of the stream in bytes, or its estimate (-1 if not known yet)
+     * @param now current time in msecs (elapsed realtime)
+     */
+    public synchronized void onBufferingUpdate(int percent, long contentLength, long now) {
+
+        if (contentLength <= 0) {
+            return;
+        }
+
+        // Once it's all buffered there's nothing more to learn from this stream
+        if (mLastPercent >= 0 && mLastPercent < 100 && percent > mLastPercent) {
+
+            mPendingBytes += contentLength * (percent - mLastPercent) / 100;
+            mPendingTime  += now - mLastTime;
+
+            if (mPendingBytes >= MIN_SAMPLE_BYTES && mPendingTime >= MIN_SAMPLE_TIME) {
+                addSample(mPendingBytes * 8 * 1000 / mPendingTime);
+                mPendingBytes = 0;
+                mPendingTime  = 0;
+            }
+        }
+
+        if (mLastPercent < 0 || percent > mLastPercent) {
+            mLastPercent = percent;
+            mLastTime = now;
+        }
+    }
+
+    /**
+     * Returns roughly how many bytes a stream of the given bitrate and duration is, -1 if the
+     * duration isn't known
+     */
+    public static long estimateLength(int kbps, long durationMillis) {
+
+        if (durationMillis <= 0) {
+            return -1;
+        }
+
+        return kbps * 1000L / 8 * durationMillis / 1000;
+    }
+
+    /**
+     * @return the estimated bandwidth in bits per second, or -1 if nothing's been measured yet
+     */
+    public synchronized long getEstimate() {
+        return mEstimate;
+    }
+
+    private void addSample(long bitsPerSecond) {
+
+        if (mEstimate < 0) {
+            mEstimate = bitsPerSecond;
+        }
+        else {
+            mEstimate = (long) (SAMPLE_WEIGHT * bitsPerSecond + (1 - SAMPLE_WEIGHT) * mEstimate);
+        }
+    }
+
+}
@@ -2,6 +2,11 @@ package com.pugh.sockso.android.player;
 
 public class MusicUtils {
 
+    /**
+     * Size of a char buffer big enough for any timer written by millisToTimer(long, char[])
+     */
+    public static final int TIMER_BUFFER_SIZE = 24;
+
     /**
      * Function to convert milliseconds time to
      * Timer Format
@@ -9,31 +14,65 @@ public class MusicUtils {
      */
     public static String millisToTimer(long milliseconds) {
 
-        String finalTimerString = "";
-        String secondsString = "";
+        char[] buffer = new char[TIMER_BUFFER_SIZE];
+        int length = millisToTimer(milliseconds, buffer);
+
+        return new String(buffer, 0, length);
+    }
+
+    /**
+     * Writes the timer (Hours:Minutes:Seconds) for the given milliseconds into 
+     * the buffer, so it can be reused (e.g. for TextView.setText(char[], int, int))
+     * 
+     * @param buffer must be at least TIMER_BUFFER_SIZE long
+     * @return the number of chars written
+     */
+    public static int millisToTimer(long milliseconds, char[] buffer) {
+
+        if (milliseconds < 0) {
+            milliseconds = 0;
+        }
 
         // Convert total duration into time
-        int hours = (int) (milliseconds / (1000 * 60 * 60));
+        long hours = milliseconds / (1000 * 60 * 60);
         int minutes = (int) (milliseconds % (1000 * 60 * 60)) / (1000 * 60);
         int seconds = (int) ((milliseconds % (1000 * 60 * 60)) % (1000 * 60) / 1000);
 
-        // Add hours if there
+        int pos = 0;
+
+        // Add hours if there, minutes then get a leading 0 too
         if (hours > 0) {
-            finalTimerString = hours + ":";
+            pos = writeNumber(hours, buffer, pos);
+            buffer[pos++] = ':';
+            buffer[pos++] = (char) ('0' + minutes / 10);
+            buffer[pos++] = (char) ('0' + minutes % 10);
+        }
+        else {
+            pos = writeNumber(minutes, buffer, pos);
         }
 
         // Prepending 0 to seconds if it is one digit
-        if (seconds < 10) {
-            secondsString = "0" + seconds;
-        }
-        else {
-            secondsString = "" + seconds;
+        buffer[pos++] = ':';
+        buffer[pos++] = (char) ('0' + seconds / 10);
+        buffer[pos++] = (char) ('0' + seconds % 10);
+
+        return pos;
+    }
+
+    // Writes the digits of a non-negative number at pos, returns the position after them
+    private static int writeNumber(long number, char[] buffer, int pos) {
+
+        int digits = 1;
+        for (long n = number / 10; n > 0; n /= 10) {
+            digits++;
         }
 
-        finalTimerString = finalTimerString + minutes + ":" + secondsString;
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            buffer[i] = (char) ('0' + number % 10);
+            number /= 10;
+        }
 
-        // return timer string
-        return finalTimerString;
+        return pos + digits;
     }
 
     /**
@@ -44,20 +83,11 @@ public class MusicUtils {
      */
     public static int getProgressPercentage(long currentDuration, long totalDuration) {
         
-        if (totalDuration == 0) {
+        if (totalDuration <= 0) {
             return 0;
         }
-        
-        Double percentage = (double) 0;
-
-        long currentSeconds = (int) (currentDuration / 1000);
-        long totalSeconds = (int) (totalDuration / 1000);
 
-        // calculating percentage
-        percentage = (((double) currentSeconds) / totalSeconds) * 100;
-
-        // return percentage
-        return percentage.intValue();
+        return (int) (currentDuration * 100 / totalDuration);
     }
 
     /**
@@ -72,12 +102,10 @@ public class MusicUtils {
         if ( progress == 0 ){
             return 0;
         }
-        
-        int currentDuration = 0;
-        totalDuration = (int) (totalDuration / 1000);
-        currentDuration = (int) ((((double) progress) / 100) * totalDuration);
 
-        // return current duration in milliseconds
-        return currentDuration * 1000;
+        // Whole seconds, in milliseconds
+        int totalSeconds = totalDuration / 1000;
+
+        return (int) ((long) progress * totalSeconds / 100) * 1000;
     }
 }
@@ -0,0 +1,104 @@
+package com.pugh.sockso.android.player;
+
+import android.content.Context;
+
+import com.pugh.sockso.android.data.MusicRepository;
+import com.pugh.sockso.android.music.Track;
+
+/**
+ * The player's queue of tracks.
+ * <p/>
+ * The queue only stores the local database IDs of its tracks in a growable primitive array,
+ * so queueing a whole library costs 8 bytes per track. Track metadata is loaded on demand
+ * through the {@link MusicRepository}, off the main thread. Its small LRU cache keeps the
+ * hydrated tracks around the current play position, and the player has the next track loaded
+ * ahead of time.
+ */
+public class PlayQueue {
+
+    private static final String TAG = PlayQueue.class.getSimpleName();
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final MusicRepository mRepository;
+
+    // Local track IDs, only the first mSize entries are valid
+    private long[] mTrackIds;
+    private int mSize;
+
+    public PlayQueue(Context context) {
+
+        mRepository = MusicRepository.getInstance(context);
+        mTrackIds   = new long[INITIAL_CAPACITY];
+        mSize       = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Empties the queue. Hydrated tracks stay cached (in the repository), as they're
+     * likely to be queued again (e.g. when replaying an album).
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    public void add(long trackId) {
+
+        ensureCapacity(mSize + 1);
+        mTrackIds[mSize++] = trackId;
+    }
+
+    public void addAll(long[] trackIds) {
+
+        ensureCapacity(mSize + trackIds.length);
+        System.arraycopy(trackIds, 0, mTrackIds, mSize, trackIds.length);
+        mSize += trackIds.length;
+    }
+
+    public long getTrackId(int position) {
+
+        if (position < 0 || position >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(position);
+        }
+
+        return mTrackIds[position];
+    }
+
+    /**
+     * Loads the fully populated Track at the given queue position in the background (or takes
+     * it from the repository's cache), the callback gets it on the main thread
+     */
+    public void loadTrack(int position, MusicRepository.Callback<Track> callback) {
+        mRepository.getTrack(getTrackId(position), callback);
+    }
+
+    /**
+     * Loads the track at the given queue position into the cache ahead of time,
+     * so moving on to it doesn't have to wait for the database
+     */
+    public void prefetchTrack(int position) {
+        mRepository.prefetchTrack(getTrackId(position));
+    }
+
+    private void ensureCapacity(int capacity) {
+
+        if (capacity <= mTrackIds.length) {
+            return;
+        }
+
+        // Grow by 50% (or to the exact size needed, if that's bigger)
+        int newCapacity = Math.max(capacity, mTrackIds.length + (mTrackIds.length >> 1));
+
+        long[] trackIds = new long[newCapacity];
+        System.arraycopy(mTrackIds, 0, trackIds, 0, mSize);
+        mTrackIds = trackIds;
+    }
+
+}
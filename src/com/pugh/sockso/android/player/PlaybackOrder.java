@@ -0,0 +1,234 @@
+package com.pugh.sockso.android.player;
+
+import java.util.Random;
+
+/**
+ * Decides the order the tracks of the play queue are played in (repeat and shuffle modes).
+ * <p/>
+ * The order is tracked as a "step" through the queue. Without shuffle a step is simply the
+ * queue index; with shuffle it is mapped through a {@link ShufflePermutation}, so the
+ * shuffled order costs O(1) memory no matter how big the queue is. The permutation is
+ * rotated so that the track that was playing when shuffle got enabled is at step 0,
+ * which means every track in the queue still gets played exactly once.
+ */
+public class PlaybackOrder {
+
+    public static final int REPEAT_NONE = 0;
+    public static final int REPEAT_ALL  = 1;
+    public static final int REPEAT_ONE  = 2;
+
+    private final Random mRandom = new Random();
+
+    private int mSize = 0;
+    private int mStep = 0;
+
+    private int mRepeatMode = REPEAT_NONE;
+
+    // Only set when shuffling
+    private ShufflePermutation mPermutation = null;
+    private int mOffset = 0;
+
+    /**
+     * Resets the order for a new queue of the given size, starting at the first track
+     */
+    public void reset(int size) {
+
+        mSize = size;
+        mStep = 0;
+
+        if (isShuffling()) {
+            shuffle(0);
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the queue index of the current track
+     */
+    public int getIndex() {
+
+        if (mSize == 0) {
+            return 0;
+        }
+
+        return indexForStep(mStep);
+    }
+
+    /**
+     * Jumps to the given queue index. When shuffling, the rest of the queue
+     * is played in shuffled order from that track onwards.
+     */
+    public void setIndex(int index) {
+
+        if (index >= mSize || index < 0) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+
+        if (isShuffling()) {
+            mOffset = mPermutation.indexOf(index);
+            mStep = 0;
+        }
+        else {
+            mStep = index;
+        }
+    }
+
+    public boolean hasNext() {
+        return mSize > 0 && (mStep + 1 < mSize || mRepeatMode != REPEAT_NONE);
+    }
+
+    public boolean hasPrevious() {
+        return mSize > 0 && (mStep > 0 || mRepeatMode != REPEAT_NONE);
+    }
+
+    /**
+     * Moves on to the next track.
+     *
+     * @param isAutomatic true when the current track finished playing by itself
+     *                    (repeat one mode only repeats the track in that case)
+     * @return the queue index of the next track, or -1 if the end of the queue was reached
+     */
+    public int next(boolean isAutomatic) {
+
+        if (mSize == 0) {
+            return -1;
+        }
+
+        if (isAutomatic && mRepeatMode == REPEAT_ONE) {
+            return getIndex();
+        }
+
+        if (mStep + 1 < mSize) {
+            mStep++;
+        }
+        else if (mRepeatMode != REPEAT_NONE) {
+            mStep = 0;
+
+            // Each pass over the queue gets a fresh shuffle
+            if (isShuffling()) {
+                shuffle(mRandom.nextInt(mSize));
+            }
+        }
+        else {
+            return -1;
+        }
+
+        return getIndex();
+    }
+
+    /**
+     * Returns the queue index of the track after the current one (the one skipping to it would
+     * play), without moving on, or -1 if there isn't one or it isn't known yet (the next pass
+     * of a shuffled queue is only picked when it starts)
+     */
+    public int peekNext() {
+
+        if (mSize == 0) {
+            return -1;
+        }
+
+        if (mStep + 1 < mSize) {
+            return indexForStep(mStep + 1);
+        }
+
+        return (mRepeatMode != REPEAT_NONE && ! isShuffling()) ? 0 : -1;
+    }
+
+    /**
+     * Moves back to the previous track
+     *
+     * @return the queue index of the previous track, or -1 if at the start of the queue
+     */
+    public int previous() {
+
+        if (mSize == 0) {
+            return -1;
+        }
+
+        if (mStep > 0) {
+            mStep--;
+        }
+        else if (mRepeatMode != REPEAT_NONE) {
+            mStep = mSize - 1;
+        }
+        else {
+            return -1;
+        }
+
+        return getIndex();
+    }
+
+    public boolean isShuffling() {
+        return mPermutation != null;
+    }
+
+    public void setShuffle(boolean shuffle) {
+
+        if (shuffle == isShuffling()) {
+            return;
+        }
+
+        int index = getIndex();
+
+        if (shuffle) {
+            shuffle(index);
+        }
+        else {
+            mPermutation = null;
+            mOffset = 0;
+            mStep = index;
+        }
+    }
+
+    /**
+     * Picks a new shuffled order, keeping the current track where it is.
+     * Only a new seed is chosen, nothing is rebuilt.
+     */
+    public void reshuffle() {
+
+        if (isShuffling()) {
+            shuffle(getIndex());
+        }
+    }
+
+    public int getRepeatMode() {
+        return mRepeatMode;
+    }
+
+    public void setRepeatMode(int repeatMode) {
+
+        if (repeatMode != REPEAT_NONE && repeatMode != REPEAT_ALL && repeatMode != REPEAT_ONE) {
+            throw new IllegalArgumentException("Unknown repeat mode: " + repeatMode);
+        }
+
+        mRepeatMode = repeatMode;
+    }
+
+    // New permutation with the given queue index placed at step 0
+    private void shuffle(int currentIndex) {
+
+        if (mSize == 0) {
+            mPermutation = new ShufflePermutation(1, mRandom.nextLong());
+            mOffset = 0;
+            mStep = 0;
+            return;
+        }
+
+        mPermutation = new ShufflePermutation(mSize, mRandom.nextLong());
+        mOffset = mPermutation.indexOf(currentIndex);
+        mStep = 0;
+    }
+
+    private int indexForStep(int step) {
+
+        if (!isShuffling()) {
+            return step;
+        }
+
+        return mPermutation.get((int) (((long) step + mOffset) % mSize));
+    }
+
+}
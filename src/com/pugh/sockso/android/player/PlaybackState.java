@@ -0,0 +1,213 @@
+package com.pugh.sockso.android.player;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
+
+import com.pugh.sockso.android.music.Track;
+
+/**
+ * Immutable snapshot of everything the UI needs to know about the player.
+ * <p/>
+ * PlayerService builds a new snapshot whenever something changes and publishes it through a
+ * volatile field and in the extras of its broadcasts, so it can be read from any thread
+ * without locking and without calling back into the service.
+ */
+public final class PlaybackState implements Parcelable {
+
+    /**
+     * Intent extra the state is broadcast in
+     */
+    public static final String EXTRA = "com.pugh.sockso.android.player.PLAYBACK_STATE";
+
+    // Play states
+    public static final int STATE_STOPPED   = 0;
+    public static final int STATE_PREPARING = 1;
+    public static final int STATE_PLAYING   = 2;
+    public static final int STATE_PAUSED    = 3;
+    public static final int STATE_BUFFERING = 4; // playing, but stalled waiting for data
+
+    public static final PlaybackState EMPTY = new PlaybackState(-1, 0, null, null, null, 0, 0, 0, STATE_STOPPED,
+            0, 0, false, PlaybackOrder.REPEAT_NONE, 0);
+
+    private final long trackId;
+    private final long serverId;
+    private final String trackName;
+    private final String artistName;
+    private final String albumName;
+
+    // Position/duration in msecs, position was read at "timestamp" (elapsed realtime)
+    private final int  position;
+    private final int  duration;
+    private final long timestamp;
+
+    private final int bufferedPercent;
+    private final int playState;
+
+    private final int queueIndex;
+    private final int queueSize;
+    private final boolean shuffling;
+    private final int repeatMode;
+
+    public PlaybackState(long trackId, long serverId, String trackName, String artistName, String albumName,
+            int position, int duration, int bufferedPercent, int playState, int queueIndex, int queueSize,
+            boolean shuffling, int repeatMode, long timestamp) {
+
+        this.trackId = trackId;
+        this.serverId = serverId;
+        this.trackName = trackName;
+        this.artistName = artistName;
+        this.albumName = albumName;
+        this.position = position;
+        this.duration = duration;
+        this.bufferedPercent = bufferedPercent;
+        this.playState = playState;
+        this.queueIndex = queueIndex;
+        this.queueSize = queueSize;
+        this.shuffling = shuffling;
+        this.repeatMode = repeatMode;
+        this.timestamp = timestamp;
+    }
+
+    public static PlaybackState create(Track track, int position, int duration, int bufferedPercent, int playState,
+            int queueIndex, int queueSize, boolean shuffling, int repeatMode) {
+
+        if (track == null) {
+            return new PlaybackState(-1, 0, null, null, null, 0, 0, 0, STATE_STOPPED, 0, 0, shuffling, repeatMode,
+                    SystemClock.elapsedRealtime());
+        }
+
+        return new PlaybackState(track.getId(), track.getServerId(), track.getName(), track.getArtist(),
+                track.getAlbum(), position, duration, bufferedPercent, playState, queueIndex, queueSize, shuffling,
+                repeatMode, SystemClock.elapsedRealtime());
+    }
+
+    // Local track id, -1 if there is no track
+    public long getTrackId() {
+        return trackId;
+    }
+
+    public boolean hasTrack() {
+        return trackId != -1;
+    }
+
+    public long getServerId() {
+        return serverId;
+    }
+
+    public String getTrackName() {
+        return trackName;
+    }
+
+    public String getArtistName() {
+        return artistName;
+    }
+
+    public String getAlbumName() {
+        return albumName;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the position at the given time (SystemClock.elapsedRealtime()), extrapolated
+     * from when the snapshot was taken if the track is playing
+     */
+    public int getPosition(long now) {
+
+        if (playState != STATE_PLAYING || now <= timestamp) {
+            return position;
+        }
+
+        long extrapolated = position + (now - timestamp);
+
+        return (int) Math.min(extrapolated, duration);
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    // When the position was read (SystemClock.elapsedRealtime())
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getBufferedPercent() {
+        return bufferedPercent;
+    }
+
+    public int getPlayState() {
+        return playState;
+    }
+
+    // Stalled tracks count as playing, as far as the user is concerned
+    public boolean isPlaying() {
+        return playState == STATE_PLAYING || playState == STATE_BUFFERING;
+    }
+
+    public int getQueueIndex() {
+        return queueIndex;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public boolean isShuffling() {
+        return shuffling;
+    }
+
+    public int getRepeatMode() {
+        return repeatMode;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaybackState[track=" + trackId + ", state=" + playState + ", position=" + position + "/" + duration
+                + ", buffered=" + bufferedPercent + "%, queue=" + queueIndex + "/" + queueSize + "]";
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+
+        dest.writeLong(trackId);
+        dest.writeLong(serverId);
+        dest.writeString(trackName);
+        dest.writeString(artistName);
+        dest.writeString(albumName);
+        dest.writeInt(position);
+        dest.writeInt(duration);
+        dest.writeInt(bufferedPercent);
+        dest.writeInt(playState);
+        dest.writeInt(queueIndex);
+        dest.writeInt(queueSize);
+        dest.writeInt(shuffling ? 1 : 0);
+        dest.writeInt(repeatMode);
+        dest.writeLong(timestamp);
+    }
+
+    public static final Parcelable.Creator<PlaybackState> CREATOR = new Parcelable.Creator<PlaybackState>() {
+
+        @Override
+        public PlaybackState createFromParcel(Parcel source) {
+
+            return new PlaybackState(source.readLong(), source.readLong(), source.readString(), source.readString(),
+                    source.readString(), source.readInt(), source.readInt(), source.readInt(), source.readInt(),
+                    source.readInt(), source.readInt(), source.readInt() == 1, source.readInt(), source.readLong());
+        }
+
+        @Override
+        public PlaybackState[] newArray(int size) {
+            return new PlaybackState[size];
+        }
+    };
+
+}
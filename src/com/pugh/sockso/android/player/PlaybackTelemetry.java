@@ -0,0 +1,415 @@
+package com.pugh.sockso.android.player;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import android.os.SystemClock;
+
+/**
+ * Records streaming quality numbers for each track the player opens:
+ * prepare latency, time-to-first-audio, stalls (re-buffering), bytes streamed and errors.
+ * <p/>
+ * The stats of the most recent tracks are kept in a fixed size ring buffer of reusable records,
+ * so recording never grows memory. All times come from {@link SystemClock#elapsedRealtime()}.
+ * <p/>
+ * Methods are synchronized as the player callbacks and the content length lookup
+ * run on different threads.
+ */
+public class PlaybackTelemetry {
+
+    private static final int MAX_RECORDS = 64;
+
+    private static final String CSV_HEADER = "seq,track_id,server_id,prepare_ms,first_audio_ms,play_ms,"
+            + "stalls,stall_ms,rebuffer_ratio,buffered_percent,content_length,bytes_streamed,"
+            + "errors,last_error_what,last_error_extra";
+
+    /**
+     * Stats for one opened track
+     */
+    public static class TrackRecord {
+
+        private int  seq;
+        private long trackId;
+        private long serverId;
+        private String url;
+
+        private long requestTime;
+        private long prepareStartTime;
+        private long preparedTime;
+        private long firstAudioTime;
+
+        // Time actually spent playing (excluding pauses and stalls)
+        private long playTime;
+        private long playStartTime;
+
+        private int  stallCount;
+        private long stallTime;
+        private long stallStartTime;
+
+        private int  bufferedPercent;
+        private long contentLength;
+
+        private int errorCount;
+        private int lastErrorWhat;
+        private int lastErrorExtra;
+
+        private void reset(int seq, long trackId, long now) {
+
+            this.seq = seq;
+            this.trackId = trackId;
+            this.serverId = 0;
+            this.url = null;
+            this.requestTime = now;
+            this.prepareStartTime = 0;
+            this.preparedTime = 0;
+            this.firstAudioTime = 0;
+            this.playTime = 0;
+            this.playStartTime = 0;
+            this.stallCount = 0;
+            this.stallTime = 0;
+            this.stallStartTime = 0;
+            this.bufferedPercent = 0;
+            this.contentLength = -1;
+            this.errorCount = 0;
+            this.lastErrorWhat = 0;
+            this.lastErrorExtra = 0;
+        }
+
+        public int getSeq() {
+            return seq;
+        }
+
+        public long getTrackId() {
+            return trackId;
+        }
+
+        public long getServerId() {
+            return serverId;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        // Time between starting to prepare the stream and the MediaPlayer being ready, -1 if unknown
+        public long getPrepareLatency() {
+            return (preparedTime > 0 && prepareStartTime > 0) ? preparedTime - prepareStartTime : -1;
+        }
+
+        // Time between the track being requested and playback starting, -1 if it never started
+        public long getTimeToFirstAudio() {
+            return firstAudioTime > 0 ? firstAudioTime - requestTime : -1;
+        }
+
+        public long getPlayTime(long now) {
+            return playStartTime > 0 ? playTime + (now - playStartTime) : playTime;
+        }
+
+        public int getStallCount() {
+            return stallCount;
+        }
+
+        public long getStallTime(long now) {
+            return stallStartTime > 0 ? stallTime + (now - stallStartTime) : stallTime;
+        }
+
+        // Fraction of the listening time spent stalled
+        public float getRebufferRatio(long now) {
+
+            long stalled = getStallTime(now);
+            long total = stalled + getPlayTime(now);
+
+            return total > 0 ? (float) stalled / total : 0f;
+        }
+
+        public int getBufferedPercent() {
+            return bufferedPercent;
+        }
+
+        // Size of the stream in bytes, -1 if unknown
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        // Estimated from how much of the stream has been buffered, -1 if unknown
+        public long getBytesStreamed() {
+            return contentLength >= 0 ? contentLength * bufferedPercent / 100 : -1;
+        }
+
+        public int getErrorCount() {
+            return errorCount;
+        }
+
+        public int getLastErrorWhat() {
+            return lastErrorWhat;
+        }
+
+        public int getLastErrorExtra() {
+            return lastErrorExtra;
+        }
+    }
+
+    private final TrackRecord[] mRecords = new TrackRecord[MAX_RECORDS];
+
+    // Index in mRecords of the current (most recent) record, -1 if nothing recorded yet
+    private int mHead = -1;
+    private int mCount = 0;
+    private int mNextSeq = 1;
+
+    public PlaybackTelemetry() {
+
+        for (int i = 0; i < MAX_RECORDS; i++) {
+            mRecords[i] = new TrackRecord();
+        }
+    }
+
+    /**
+     * Starts a new record (recycling the oldest one) for a track that is about to be streamed
+     *
+     * @return the sequence number of the record
+     */
+    public synchronized int trackRequested(long trackId) {
+
+        long now = SystemClock.elapsedRealtime();
+
+        // Close off whatever the previous track was doing
+        TrackRecord previous = current();
+        if (previous != null) {
+            endSegments(previous, now);
+        }
+
+        mHead = (mHead + 1) % MAX_RECORDS;
+        mCount = Math.min(mCount + 1, MAX_RECORDS);
+
+        int seq = mNextSeq++;
+        mRecords[mHead].reset(seq, trackId, now);
+
+        return seq;
+    }
+
+    public synchronized void prepareStarted(long serverId, String url) {
+
+        TrackRecord record = current();
+
+        if (record != null) {
+            record.serverId = serverId;
+            record.url = url;
+            record.prepareStartTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * The stream has moved to another server endpoint, it's still the same track (and record)
+     */
+    public synchronized void streamFailedOver(String url) {
+
+        TrackRecord record = current();
+
+        if (record != null) {
+            record.url = url;
+        }
+    }
+
+    public synchronized void prepared() {
+
+        TrackRecord record = current();
+
+        if (record != null && record.preparedTime == 0) {
+            record.preparedTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    // Called each time playback starts or resumes
+    public synchronized void playbackStarted() {
+
+        TrackRecord record = current();
+
+        if (record == null) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+
+        if (record.firstAudioTime == 0) {
+            record.firstAudioTime = now;
+        }
+
+        if (record.playStartTime == 0) {
+            record.playStartTime = now;
+        }
+    }
+
+    // Called when playback is paused or stopped
+    public synchronized void playbackStopped() {
+
+        TrackRecord record = current();
+
+        if (record != null) {
+            endSegments(record, SystemClock.elapsedRealtime());
+        }
+    }
+
+    public synchronized void stallStarted() {
+
+        TrackRecord record = current();
+
+        if (record == null || record.stallStartTime > 0) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+
+        // Time spent stalled doesn't count as playing time
+        if (record.playStartTime > 0) {
+            record.playTime += now - record.playStartTime;
+            record.playStartTime = 0;
+        }
+
+        record.stallCount++;
+        record.stallStartTime = now;
+    }
+
+    public synchronized void stallEnded() {
+
+        TrackRecord record = current();
+
+        if (record == null || record.stallStartTime == 0) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+
+        record.stallTime += now - record.stallStartTime;
+        record.stallStartTime = 0;
+        record.playStartTime = now;
+    }
+
+    public synchronized void bufferingUpdate(int percent) {
+
+        TrackRecord record = current();
+
+        if (record != null) {
+            record.bufferedPercent = percent;
+        }
+    }
+
+    /**
+     * Sets the size of the stream, only if the record with the given sequence
+     * number is still the current one (the lookup happens asynchronously)
+     */
+    public synchronized void setContentLength(int seq, long contentLength) {
+
+        TrackRecord record = current();
+
+        if (record != null && record.seq == seq) {
+            record.contentLength = contentLength;
+        }
+    }
+
+    public synchronized void error(int what, int extra) {
+
+        TrackRecord record = current();
+
+        if (record != null) {
+            record.errorCount++;
+            record.lastErrorWhat = what;
+            record.lastErrorExtra = extra;
+            endSegments(record, SystemClock.elapsedRealtime());
+        }
+    }
+
+    // Content length of the current track's stream, -1 if unknown
+    public synchronized long getContentLength() {
+
+        TrackRecord record = current();
+
+        return record != null ? record.contentLength : -1;
+    }
+
+    // Number of stalls of the current track so far
+    public synchronized int getStallCount() {
+
+        TrackRecord record = current();
+
+        return record != null ? record.stallCount : 0;
+    }
+
+    public synchronized int getRecordCount() {
+        return mCount;
+    }
+
+    /**
+     * Writes a human readable summary of the recorded tracks, newest first
+     */
+    public synchronized void dump(PrintWriter writer) {
+
+        long now = SystemClock.elapsedRealtime();
+
+        writer.println("Playback telemetry (" + mCount + " of max " + MAX_RECORDS + " tracks):");
+
+        for (int i = 0; i < mCount; i++) {
+
+            TrackRecord record = mRecords[(mHead - i + MAX_RECORDS) % MAX_RECORDS];
+
+            writer.println("  #" + record.seq + " track " + record.trackId + " (server id " + record.serverId + ")"
+                    + " prepare=" + record.getPrepareLatency() + "ms"
+                    + " firstAudio=" + record.getTimeToFirstAudio() + "ms"
+                    + " played=" + record.getPlayTime(now) + "ms"
+                    + " stalls=" + record.stallCount + "/" + record.getStallTime(now) + "ms"
+                    + " rebuffer=" + record.getRebufferRatio(now)
+                    + " buffered=" + record.bufferedPercent + "%"
+                    + " bytes=" + record.getBytesStreamed() + "/" + record.contentLength
+                    + " errors=" + record.errorCount
+                    + (record.errorCount > 0 ? " (last: " + record.lastErrorWhat + "," + record.lastErrorExtra + ")" : ""));
+        }
+    }
+
+    /**
+     * Exports the recorded tracks (oldest first) to a CSV file
+     */
+    public synchronized void export(File file) throws IOException {
+
+        long now = SystemClock.elapsedRealtime();
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+
+        try {
+            writer.println(CSV_HEADER);
+
+            for (int i = mCount - 1; i >= 0; i--) {
+
+                TrackRecord record = mRecords[(mHead - i + MAX_RECORDS) % MAX_RECORDS];
+
+                writer.println(record.seq + "," + record.trackId + "," + record.serverId + ","
+                        + record.getPrepareLatency() + "," + record.getTimeToFirstAudio() + ","
+                        + record.getPlayTime(now) + "," + record.stallCount + "," + record.getStallTime(now) + ","
+                        + record.getRebufferRatio(now) + "," + record.bufferedPercent + ","
+                        + record.contentLength + "," + record.getBytesStreamed() + ","
+                        + record.errorCount + "," + record.lastErrorWhat + "," + record.lastErrorExtra);
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private TrackRecord current() {
+        return mHead >= 0 ? mRecords[mHead] : null;
+    }
+
+    // Closes any open playing/stalled time segments of the record
+    private static void endSegments(TrackRecord record, long now) {
+
+        if (record.playStartTime > 0) {
+            record.playTime += now - record.playStartTime;
+            record.playStartTime = 0;
+        }
+
+        if (record.stallStartTime > 0) {
+            record.stallTime += now - record.stallStartTime;
+            record.stallStartTime = 0;
+        }
+    }
+
+}
@@ -1,7 +1,10 @@
 package com.pugh.sockso.android.player;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.Callable;
 
 import android.app.Notification;
 import android.app.PendingIntent;
@@ -15,24 +18,34 @@ import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnBufferingUpdateListener;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnInfoListener;
 import android.media.MediaPlayer.OnPreparedListener;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import com.pugh.sockso.android.R;
+import com.pugh.sockso.android.ServerFactory;
+import com.pugh.sockso.android.SocksoServer;
 import com.pugh.sockso.android.activity.PlayerActivity;
+import com.pugh.sockso.android.api.ServerCapabilities;
+import com.pugh.sockso.android.api.TrackStreamer;
+import com.pugh.sockso.android.data.MusicRepository;
 import com.pugh.sockso.android.music.Track;
+import com.pugh.sockso.android.net.RequestExecutor;
+import com.pugh.sockso.android.net.TrafficPolicy;
 
 public class PlayerService extends Service implements OnPreparedListener, OnCompletionListener,
-        OnBufferingUpdateListener, OnErrorListener {
+        OnBufferingUpdateListener, OnErrorListener, OnInfoListener {
 
     private static final String TAG = PlayerService.class.getSimpleName();
 
     // State for when the player is done preparing, currently playing a track, or paused:
     private boolean mIsInitialized = false;
     private boolean mIsPreparing   = false;
+    private boolean mIsStalled     = false;
     
     // Media Player
     private MediaPlayer mPlayer = null;
@@ -43,19 +56,50 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
     private static final int NOTIFICATION_ID = 1; // just a number to identify notification type
 
     // Playlist of tracks (can be one)
-    private List<Track> mPlaylist = null;
+    private PlayQueue mPlaylist = null;
 
     // Binder object for clients that want to call methods on this service
     private IBinder mBinder = new PlayerServiceBinder();
 
-    // TODO Remove once playlist setup
-    private int mPlayIndex = 0;
+    // Order the playlist is played in (shuffle/repeat)
+    private PlaybackOrder mPlayOrder = null;
+
+    // The current track, once it has been loaded, and the one being loaded (-1 if none is)
+    private Track mTrack = null;
+    private long mLoadingTrackId = -1;
+
+    // Streaming quality stats of the recently played tracks
+    private final PlaybackTelemetry mTelemetry = new PlaybackTelemetry();
+
+    // File (in the app's private files dir) the telemetry gets exported to
+    private static final String TELEMETRY_FILE = "playback_telemetry.csv";
+
+    // Adaptive stream quality
+    private final BandwidthEstimator mBandwidth = new BandwidthEstimator();
+    private final StreamQualityPolicy mQualityPolicy = new StreamQualityPolicy();
+
+    // Latest snapshot of the player state, replaced (never modified) on every change
+    private volatile PlaybackState mState = PlaybackState.EMPTY;
+
+    // How much of the current track's stream has been buffered, and its bitrate
+    private int mBufferedPercent = 0;
+    private int mStreamBitrate = StreamQualityPolicy.ORIGINAL;
+
+    // Stream of the current track, and where to pick it up again when it has failed over
+    // to another server endpoint (-1 when it hasn't)
+    private String mStreamUrl = null;
+    private int mResumePosition = -1;
+    private boolean mFailedOver = false;
+
+    // Last position read from the player, it can't be asked once it has gone into the error state
+    private int mLastPosition = 0;
 
     // This is to notify the activity that a track changed (or ended) and should update the UI
     public static final String TRACK_STARTED = "com.pugh.sockso.android.player.TRACK_STARTED";
     public static final String TRACK_CHANGED = "com.pugh.sockso.android.player.TRACK_CHANGED";
     public static final String PLAYSTATE_CHANGE   = "com.pugh.sockso.android.player.PLAYSTATE_CHANGE";
     public static final String TRACK_ERROR   = "com.pugh.sockso.android.player.TRACK_ERROR";
+    public static final String TRACK_BUFFERING = "com.pugh.sockso.android.player.TRACK_BUFFERING";
 
     // How much to increment/decrement the time when seeking through the track
     private static final int SEEK_TIME = 15 * 1000; // 15 seconds
@@ -64,7 +108,9 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
     public void onCreate() {
         Log.d(TAG, "onCreate() called");
         
-        mPlaylist = new ArrayList<Track>();
+        mPlaylist = new PlayQueue(this);
+        mPlayOrder = new PlaybackOrder();
+        TrafficPolicy.watch(this);
         registerReceiver(mNoisyAudioStreamReceiver, new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY));  
         
         super.onCreate();
@@ -76,8 +122,10 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
         Log.d(TAG, "onDestroy() called");
 
         mBinder = null;
+        mLoadingTrackId = -1;
 
         unregisterReceiver(mNoisyAudioStreamReceiver);
+        TrafficPolicy.setStreaming(false);
 
         if (mPlayer != null) {
             if (mPlayer.isPlaying()) {
@@ -116,7 +164,6 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
             if (AudioManager.ACTION_AUDIO_BECOMING_NOISY.equals(intent.getAction())) {
                 Log.d(TAG, "Uh Oh, something was unplugged. Pausing...");
                 pause();
-                notifyChange(PLAYSTATE_CHANGE);
             }
         }
     };
@@ -152,47 +199,70 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
         if (mPlayer != null && mPlayer.isPlaying()) {
 
             mPlayer.pause();
+            mTelemetry.playbackStopped();
+            TrafficPolicy.setStreaming(false);
 
             // stop being a foreground service
             stopForeground(true);
+
+            notifyChange(PLAYSTATE_CHANGE);
         } 
     }
 
-    // Sets the playlist to a single track
-    public void open(Track track) {
-        Log.d(TAG, "open(): " + track.getName());
+    // Sets the playlist to a single track (local track id)
+    public void open(long trackId) {
+        Log.d(TAG, "open(): " + trackId);
         
         if ( isPlaying() ) {
             throw new IllegalStateException("Can't call open() while track is playing!");
         }
         
         mPlaylist.clear();
-        mPlaylist.add(track);
-        mPlayIndex = 0;
+        mPlaylist.add(trackId);
+        mPlayOrder.reset(mPlaylist.size());
     }
 
-    // Sets the playlist to a list of tracks
-    public void open( List<Track> tracks ) {
-        Log.d(TAG, "open(): " + tracks.size());
+    // Sets the playlist to a list of tracks (local track ids)
+    public void open( long[] trackIds ) {
+        Log.d(TAG, "open(): " + trackIds.length);
         
         if ( isPlaying() ) {
             throw new IllegalStateException("Can't call open() while track is playing!");
         }
         
         mPlaylist.clear();
-        mPlaylist.addAll(tracks);
-        mPlayIndex = 0;
+        mPlaylist.addAll(trackIds);
+        mPlayOrder.reset(mPlaylist.size());
+    }
+    
+    // Returns the local id of the current track, or -1 if the playlist is empty
+    public long getTrackId() {
+        
+        if ( ! mPlaylist.isEmpty() ) {
+            return mPlaylist.getTrackId(mPlayOrder.getIndex());
+        }
+        
+        return -1;
     }
     
-    // TODO: This should return the currently playing track id OR Track object
+    // Returns the current track, or null if the playlist is empty or it hasn't been loaded yet
     public Track getTrack() {
         
-        if ( mPlaylist.size() > 0 ) {
-            return mPlaylist.get(mPlayIndex);
+        if ( ! mPlaylist.isEmpty() && mTrack != null
+                && mTrack.getId() == mPlaylist.getTrackId(mPlayOrder.getIndex()) ) {
+            return mTrack;
         }
         
         return null;
     }
+
+    /**
+     * Returns the latest snapshot of the player state.
+     * Safe to call from any thread, it doesn't touch the MediaPlayer.
+     */
+    public PlaybackState getState() {
+        return mState;
+    }
     
     /**
      * Reconfigures MediaPlayer according to audio focus settings and starts/restarts it. This
@@ -205,11 +275,11 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
     private void configAndStartMediaPlayer() {
         Log.d(TAG, "configAndStartMediaPlayer() called");
 
-        Track track = mPlaylist.get(mPlayIndex);
         String notificationText = getString(R.string.notification_playing) + ": " 
-                + track.getArtist() + " - \"" + track.getName() + "\"";
+                + mTrack.getArtist() + " - \"" + mTrack.getName() + "\"";
         
         mPlayer.start();
+        mTelemetry.playbackStarted();
         setUpAsForeground(notificationText);
     }
     
@@ -220,34 +290,109 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
     public void play() {
         Log.d(TAG, "play() called");
 
-        if ( mPlaylist.size() == 0 || mIsPreparing ) {
+        if ( mPlaylist.isEmpty() || mIsPreparing ) {
             return;
         }
         
         if (mPlayer != null && mIsInitialized) {
             
+            TrafficPolicy.setStreaming(true);
             configAndStartMediaPlayer();
             notifyChange(PLAYSTATE_CHANGE);
         }
         else {
-            
-            createMediaPlayerIfNeeded();
 
-            Track track = mPlaylist.get(mPlayIndex);
-            
-            // hardcoded TODO remove
-            String url = "http://sockso.perrierliquors.com:4444/stream/" + track.getServerId();
+            final long trackId = mPlaylist.getTrackId(mPlayOrder.getIndex());
 
-            mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            
-            try {
-                mPlayer.setDataSource(url);
-                mIsPreparing = true;
-                mPlayer.prepareAsync();
+            if (mTrack != null && mTrack.getId() == trackId) {
+                startStream(mTrack);
+                return;
             }
-            catch (Exception e) {
-                Log.e(TAG, "Exception with url " + url + ": " + e.getMessage());
+
+            // Already on its way
+            if (trackId == mLoadingTrackId) {
+                return;
             }
+
+            // The database isn't queried on the main thread, play() carries on once it's loaded
+            mLoadingTrackId = trackId;
+            mPlaylist.loadTrack(mPlayOrder.getIndex(), new MusicRepository.Callback<Track>() {
+
+                @Override
+                public void onResult(Track track) {
+
+                    // Stopped, or moved on to another track, in the meantime
+                    if (trackId != mLoadingTrackId) {
+                        return;
+                    }
+
+                    mLoadingTrackId = -1;
+
+                    if (track == null) {
+                        Log.w(TAG, "Track " + trackId + " isn't in the library");
+                        notifyChange(TRACK_ERROR);
+                        return;
+                    }
+
+                    mTrack = track;
+                    play();
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts streaming the (loaded) track from the start
+     */
+    private void startStream(Track track) {
+
+        createMediaPlayerIfNeeded();
+
+        boolean stalled = mTelemetry.getStallCount() > 0;
+        int seq = mTelemetry.trackRequested(track.getId());
+
+        // Stream quality is only chosen when a track starts, never in the middle of one
+        int bitrate = mQualityPolicy.selectBitrate(mBandwidth.getEstimate(), stalled, SystemClock.elapsedRealtime());
+        TrackStreamer streamer = new TrackStreamer(ServerFactory.getServer(this).getRootUrl());
+        String url = streamer.getStreamUrl(track.getServerId(), bitrate);
+
+        // Only fail over once per track
+        mFailedOver = false;
+        mResumePosition = -1;
+        mLastPosition = 0;
+
+        mStreamUrl = url;
+        mStreamBitrate = bitrate;
+        mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+
+        try {
+            mPlayer.setDataSource(url);
+            mIsPreparing = true;
+            mIsStalled = false;
+            mBufferedPercent = 0;
+            mTelemetry.prepareStarted(track.getServerId(), url);
+            mBandwidth.streamStarted();
+            TrafficPolicy.setStreaming(true);
+            mPlayer.prepareAsync();
+            fetchContentLength(url, seq);
+
+            // Let the UI show the new track while it's preparing
+            notifyChange(TRACK_CHANGED);
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Exception with url " + url + ": " + e.getMessage());
+        }
+
+        prefetchNextTrack();
+    }
+
+    // Has the track after the current one loaded ahead of time
+    private void prefetchNextTrack() {
+
+        int next = mPlayOrder.peekNext();
+
+        if (next >= 0) {
+            mPlaylist.prefetchTrack(next);
         }
     }
 
@@ -257,14 +402,27 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
         
         mIsInitialized = true;
         mIsPreparing = false;
+        mTelemetry.prepared();
+
+        if (mResumePosition > 0) {
+            mPlayer.seekTo(mResumePosition);
+        }
+
+        mResumePosition = -1;
         configAndStartMediaPlayer();
         notifyChange(TRACK_STARTED);
     }
     
     public void stop() {
         Log.d(TAG, "stop() called");
+
+        // A track that's still loading won't start either
+        mLoadingTrackId = -1;
+
         if (mPlayer != null) {
             mPlayer.stop();
+            mTelemetry.playbackStopped();
+            TrafficPolicy.setStreaming(false);
             
             mIsInitialized = false;
             // stop being a foreground service
@@ -293,6 +451,7 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
             mPlayer.setOnBufferingUpdateListener(this);
             mPlayer.setOnCompletionListener(this);
             mPlayer.setOnErrorListener(this);
+            mPlayer.setOnInfoListener(this);
 
             /**
              * Make sure the media player will acquire a wake-lock while playing.
@@ -312,7 +471,8 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
     public synchronized int getPosition() {
         
         if (mIsInitialized) {
-            return mPlayer.getCurrentPosition();
+            mLastPosition = mPlayer.getCurrentPosition();
+            return mLastPosition;
         }
         
         return 0;
@@ -336,12 +496,13 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
         
         stop();
         
-        if ( mPlayIndex + 1 >= mPlaylist.size() ) {
+        // Repeat/shuffle modes decide what comes next
+        if ( mPlayOrder.next(true) < 0 ) {
             
             notifyChange(PLAYSTATE_CHANGE);
         }
         else {
-            nextTrack();
+            play();
         }
     }
 
@@ -349,27 +510,193 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
     public void onBufferingUpdate(MediaPlayer mediaPlayer, int percentage) {
         Log.d(TAG, "onBufferingUpdate(): " + percentage);
 
-        // Intent intent = new Intent(TRACK_BUFFERING);
-        // intent.putExtra("percentage", percentage);
-        // LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
-        // TODO: This should provide some feedback to the user if we're streaming
+        mTelemetry.bufferingUpdate(percentage);
+
+        // Keeps the position up to date in case the stream fails
+        getPosition();
+
+        long length = mTelemetry.getContentLength();
+
+        // Chunked streams (e.g. transcoded ones) don't say how long they are
+        if (length <= 0) {
+            length = BandwidthEstimator.estimateLength(StreamQualityPolicy.nominalKbps(mStreamBitrate), getDuration());
+        }
+
+        mBandwidth.onBufferingUpdate(percentage, length, SystemClock.elapsedRealtime());
+
+        // MediaPlayer keeps repeating 100% once the whole stream is buffered
+        if (percentage != mBufferedPercent) {
+            mBufferedPercent = percentage;
+            notifyChange(TRACK_BUFFERING);
+        }
     }
 
     @Override
     public boolean onError(MediaPlayer player, int what, int extra) {
         Log.e(TAG, "onError() called");
-        Log.e(TAG, "what: " + what);
+        Log.e(TAG, "what: " + what + ", extra: " + extra);
         
+        mTelemetry.error(what, extra);
+
+        // Last known position, the player can't be asked in the error state
+        int position = mLastPosition;
+
         // Reset the player back to a valid state:
         mPlayer.reset();
         mIsInitialized = false;
-        
+        mIsPreparing = false;
+        mIsStalled = false;
+
+        // If the server can be reached some other way, carry on from there
+        SocksoServer server = ServerFactory.getServer(this);
+
+        if (! mFailedOver && mStreamUrl != null && server.reportFailure(mStreamUrl)) {
+
+            // Part way through needs a server that streams ranges, else the track starts again
+            ServerCapabilities capabilities = ServerCapabilities.peek(server);
+
+            if (capabilities == null || ! capabilities.supportsRangeStreaming()) {
+                position = 0;
+            }
+
+            Log.i(TAG, "Stream failed, resuming at " + position + "ms on another endpoint");
+            mFailedOver = true;
+
+            if (resumeStream(server.rebase(mStreamUrl), position)) {
+                return true;
+            }
+        }
+
+        mResumePosition = -1;
+        TrafficPolicy.setStreaming(false);
+
         // Notify the activity so the user can be notified
         notifyChange(TRACK_ERROR);
         
         return true;
     }
 
+    /**
+     * Picks the current track's stream up again from another endpoint, at the same bitrate and
+     * in the same telemetry record (it's not a new track). Returns false if it couldn't.
+     */
+    private boolean resumeStream(String url, int position) {
+
+        mStreamUrl = url;
+        mResumePosition = position;
+        mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+
+        try {
+            mPlayer.setDataSource(url);
+            mIsPreparing = true;
+            mBufferedPercent = 0;
+            mTelemetry.streamFailedOver(url);
+            mBandwidth.streamStarted();
+            mPlayer.prepareAsync();
+
+            notifyChange(PLAYSTATE_CHANGE);
+            return true;
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Exception with url " + url + ": " + e.getMessage());
+            mPlayer.reset();
+            mIsPreparing = false;
+            return false;
+        }
+    }
+
+    @Override
+    public boolean onInfo(MediaPlayer player, int what, int extra) {
+        Log.d(TAG, "onInfo(): " + what + ", extra: " + extra);
+
+        switch (what) {
+
+        case MediaPlayer.MEDIA_INFO_BUFFERING_START:
+            mTelemetry.stallStarted();
+            mIsStalled = true;
+            // The position stops moving, so clients need a fresh snapshot
+            notifyChange(PLAYSTATE_CHANGE);
+            return true;
+        case MediaPlayer.MEDIA_INFO_BUFFERING_END:
+            mTelemetry.stallEnded();
+            mIsStalled = false;
+            notifyChange(PLAYSTATE_CHANGE);
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Looks up the size of the stream in the background (HEAD request), 
+     * so the telemetry can work out how many bytes have been streamed.
+     */
+    private void fetchContentLength(final String url, final int seq) {
+
+        final SocksoServer server = ServerFactory.getServer(this);
+
+        // Part of the stream's traffic
+        RequestExecutor.getInstance().submit(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+
+                try {
+                    long length = server.getContentLength(url);
+
+                    if (length >= 0) {
+                        mTelemetry.setContentLength(seq, length);
+                    }
+                }
+                catch (IOException e) {
+                    Log.w(TAG, "Couldn't get content length of " + url + ": " + e.getMessage());
+                }
+
+                return null;
+            }
+        }, RequestExecutor.PRIORITY_PLAYBACK, RequestExecutor.NO_DEADLINE, null);
+    }
+
+    public PlaybackTelemetry getTelemetry() {
+        return mTelemetry;
+    }
+
+    /**
+     * Exports the playback telemetry as CSV to the app's private files directory
+     * 
+     * @return the file that was written
+     */
+    public File exportTelemetry() throws IOException {
+
+        File file = new File(getFilesDir(), TELEMETRY_FILE);
+        mTelemetry.export(file);
+
+        Log.i(TAG, "Exported playback telemetry to " + file);
+
+        return file;
+    }
+
+    /**
+     * Debug surface for the playback telemetry:
+     * adb shell dumpsys activity service com.pugh.sockso.android/.player.PlayerService [export]
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+
+        mTelemetry.dump(writer);
+        writer.println("Bandwidth estimate: " + mBandwidth.getEstimate() + " bps, stream bitrate: "
+                + mQualityPolicy.getBitrate() + " kbps (0 = original)");
+
+        if (args != null && args.length > 0 && "export".equals(args[0])) {
+            try {
+                writer.println("Exported to " + exportTelemetry());
+            }
+            catch (IOException e) {
+                writer.println("Export failed: " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Configures service as a foreground service.
      * A foreground service is a service that's doing something the user is actively aware of
@@ -396,35 +723,62 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
         startForeground(NOTIFICATION_ID, mNotification);
     }
 
+    /**
+     * Builds and publishes a new snapshot of the player state
+     */
+    private PlaybackState updateState() {
+
+        Track track = getTrack();
+        int playState = PlaybackState.STATE_STOPPED;
+
+        if (mIsPreparing) {
+            playState = PlaybackState.STATE_PREPARING;
+        }
+        else if (mPlayer != null && mIsInitialized) {
+            if (mPlayer.isPlaying()) {
+                playState = mIsStalled ? PlaybackState.STATE_BUFFERING : PlaybackState.STATE_PLAYING;
+            }
+            else {
+                playState = PlaybackState.STATE_PAUSED;
+            }
+        }
+
+        mState = PlaybackState.create(track, getPosition(), getDuration(), mBufferedPercent, playState,
+                mPlayOrder.getIndex(), mPlaylist.size(), mPlayOrder.isShuffling(), mPlayOrder.getRepeatMode());
+
+        return mState;
+    }
+
     /**
      * Notify the change-receivers that something has changed.
-     * The intent that is sent contains the following data for the currently playing track:
-     * "id" - Integer: the database row ID
+     * The intent that is sent contains the following data for the current track:
+     * PlaybackState.EXTRA - PlaybackState: snapshot of the whole player state
+     * "id" - Long: the database row ID
      * "artist" - String: the name of the artist
      * "album" - String: the name of the album
      * "track" - String: the name of the track
+     * "playing" - Boolean: whether the track is playing
      * The intent has an action that is one of
-     * "com.android.music.metachanged"
-     * "com.android.music.queuechanged",
-     * "com.android.music.playbackcomplete"
-     * "com.android.music.playstatechanged"
-     * respectively indicating that a new track has started playing,
-     * that the playback queue has changed,
-     * that playback has stopped because the last file in the list has been played,
-     * or that the play-state changed (paused/resumed).
+     * TRACK_CHANGED, TRACK_STARTED, PLAYSTATE_CHANGE, TRACK_BUFFERING or TRACK_ERROR
+     * respectively indicating that a new track is being prepared,
+     * that it has started playing,
+     * that the play-state changed (paused/resumed/seeked, shuffle or repeat mode),
+     * that more of the stream has been buffered,
+     * or that the track couldn't be played.
      */
     private void notifyChange(String what) {
         Log.d(TAG, "Broadcasting message: " + what);
         
+        PlaybackState state = updateState();
+
         Intent intent = new Intent(what);
-        /*
-         * TODO Set this stuff
-         * intent.putExtra("id", Long.valueOf(getAudioId()));
-         * intent.putExtra("artist", getArtistName());
-         * intent.putExtra("album",getAlbumName());
-         * intent.putExtra("track", getTrackName());
-         * intent.putExtra("playing", isPlaying());
-         */
+        intent.putExtra(PlaybackState.EXTRA, state);
+        intent.putExtra("id", state.getTrackId());
+        intent.putExtra("artist", state.getArtistName());
+        intent.putExtra("album", state.getAlbumName());
+        intent.putExtra("track", state.getTrackName());
+        intent.putExtra("playing", state.isPlaying());
+
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
 
         /*
@@ -443,51 +797,68 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
             throw new ArrayIndexOutOfBoundsException();
         }
         
-        mPlayIndex = pos;
+        mPlayOrder.setIndex(pos);
     }
     
-    // TODO
     public void skipTrack() {
         
-        if ( ! isLastTrackInPlaylist() ) {
+        if ( mPlayOrder.hasNext() ) {
         
             if ( isPlaying() ) {
                 stop();
             }
 
-            nextTrack();
+            mPlayOrder.next(false);
+            play();
         }
     }
-    
-    private boolean isLastTrackInPlaylist() {
-        
-        return ( mPlayIndex >= mPlaylist.size() - 1 );
-    }
-    
-    private void nextTrack() {
-        
-        mPlayIndex++;
-        play();
-        //notifyChange(TRACK_CHANGED);
-    }
 
     public void prevTrack() {
         
-        if ( ! isFirstTrackInPlaylist() ) {
+        if ( mPlayOrder.hasPrevious() ) {
         
             if ( isPlaying() ) {
                 stop();
             }
 
-            mPlayIndex--;
+            mPlayOrder.previous();
             play();
         }
     }
 
+    public boolean isShuffling() {
+        return mPlayOrder.isShuffling();
+    }
+
+    /**
+     * Turns shuffle on or off. The current track keeps playing either way,
+     * turning shuffle on shuffles the rest of the playlist.
+     */
+    public void setShuffle(boolean shuffle) {
+        Log.d(TAG, "setShuffle(): " + shuffle);
+
+        mPlayOrder.setShuffle(shuffle);
+        prefetchNextTrack();
+        notifyChange(PLAYSTATE_CHANGE);
+    }
+
+    public void reshuffle() {
+        mPlayOrder.reshuffle();
+        prefetchNextTrack();
+        notifyChange(PLAYSTATE_CHANGE);
+    }
+
+    // One of PlaybackOrder.REPEAT_NONE, REPEAT_ALL or REPEAT_ONE
+    public int getRepeatMode() {
+        return mPlayOrder.getRepeatMode();
+    }
 
-    private boolean isFirstTrackInPlaylist() {
+    public void setRepeatMode(int repeatMode) {
+        Log.d(TAG, "setRepeatMode(): " + repeatMode);
 
-        return ( mPlayIndex == 0 );        
+        mPlayOrder.setRepeatMode(repeatMode);
+        prefetchNextTrack();
+        notifyChange(PLAYSTATE_CHANGE);
     }
 
     public void seekBackward() {
@@ -496,6 +867,7 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
             int currentPos = mPlayer.getCurrentPosition();
             int seekPos = (currentPos - SEEK_TIME >= 0) ? currentPos - SEEK_TIME : 0;
             mPlayer.seekTo(seekPos);
+            notifyChange(PLAYSTATE_CHANGE);
         }
     }
 
@@ -508,6 +880,7 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
             // will change by a tiny amount by the time the actual seekTo() method takes place
             int seekPos = (currentPos + SEEK_TIME + 20 < duration) ? currentPos + SEEK_TIME : duration;
             mPlayer.seekTo(seekPos);
+            notifyChange(PLAYSTATE_CHANGE);
         }
     }
 
@@ -519,6 +892,7 @@ public class PlayerService extends Service implements OnPreparedListener, OnComp
             // will change by a tiny amount by the time the actual seekTo() method takes place
             if ( seekPos >= 0 && seekPos + 20 < mPlayer.getDuration() ) {
                 mPlayer.seekTo(seekPos);
+                notifyChange(PLAYSTATE_CHANGE);
             }
         }
     }
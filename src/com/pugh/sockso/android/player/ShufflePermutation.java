@@ -0,0 +1,119 @@
+package com.pugh.sockso.android.player;
+
+/**
+ * A pseudo-random permutation of the numbers [0, size) that is computed on the fly.
+ * <p/>
+ * Nothing is stored per element: each lookup runs a small keyed Feistel network over the
+ * smallest even-bit domain that contains size, and "cycle walks" any result that falls outside
+ * [0, size) until it lands back in range. Because a Feistel network is invertible, the inverse
+ * lookup (which step a given element is at) is just as cheap.
+ */
+class ShufflePermutation {
+
+    private static final int ROUNDS = 4;
+
+    private final int mSize;
+    private final int mHalfBits;
+    private final long mHalfMask;
+    private final long mSeed;
+
+    ShufflePermutation(int size, long seed) {
+
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+
+        // Number of bits needed to hold (size - 1), rounded up to an even count
+        int bits = 64 - Long.numberOfLeadingZeros(Math.max(size - 1, 1));
+
+        mSize     = size;
+        mHalfBits = (bits + 1) / 2;
+        mHalfMask = (1L << mHalfBits) - 1;
+        mSeed     = seed;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the element at the given step of the permutation
+     */
+    int get(int step) {
+
+        if (step < 0 || step >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(step);
+        }
+
+        long value = step;
+
+        do {
+            value = encrypt(value);
+        }
+        while (value >= mSize);
+
+        return (int) value;
+    }
+
+    /**
+     * Returns the step of the permutation that the given element is at (the inverse of get())
+     */
+    int indexOf(int element) {
+
+        if (element < 0 || element >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(element);
+        }
+
+        long value = element;
+
+        do {
+            value = decrypt(value);
+        }
+        while (value >= mSize);
+
+        return (int) value;
+    }
+
+    private long encrypt(long value) {
+
+        long left  = value >>> mHalfBits;
+        long right = value & mHalfMask;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long tmp = right;
+            right = left ^ roundFunction(right, round);
+            left  = tmp;
+        }
+
+        return (left << mHalfBits) | right;
+    }
+
+    private long decrypt(long value) {
+
+        long left  = value >>> mHalfBits;
+        long right = value & mHalfMask;
+
+        for (int round = ROUNDS - 1; round >= 0; round--) {
+            long tmp = left;
+            left  = right ^ roundFunction(left, round);
+            right = tmp;
+        }
+
+        return (left << mHalfBits) | right;
+    }
+
+    // 64 bit mix (MurmurHash3 finalizer) of the half-block, the seed and the round number
+    private long roundFunction(long half, int round) {
+
+        long h = mSeed ^ (half * 0x9E3779B97F4A7C15L) ^ ((long) (round + 1) << 48);
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h & mHalfMask;
+    }
+
+}
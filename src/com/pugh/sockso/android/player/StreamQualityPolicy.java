@@ -0,0 +1,101 @@
+package com.pugh.sockso.android.player;
+
+import android.util.Log;
+
+/**
+ * Picks the stream quality (bitrate) for the next track from the measured bandwidth.
+ * <p/>
+ * Quality steps down as soon as the estimate can't comfortably sustain the current bitrate
+ * (or the last track stalled), and only steps back up one level at a time once the
+ * estimate clears the higher bitrate by a wide margin and the last downgrade isn't too recent.
+ * The policy is only consulted when a track starts, so quality never changes mid-track.
+ */
+public class StreamQualityPolicy {
+
+    private static final String TAG = StreamQualityPolicy.class.getSimpleName();
+
+    /**
+     * Unmodified file, as stored on the server
+     */
+    public static final int ORIGINAL = 0;
+
+    // Bitrates (kbps) to request, best first
+    private static final int[] BITRATES = { ORIGINAL, 192, 128, 64 };
+
+    // Assumed bitrate of the original files, they're usually high quality MP3s
+    private static final int ORIGINAL_NOMINAL_KBPS = 320;
+
+    // Bandwidth needed relative to the bitrate to keep (or step down to) a level
+    private static final float DOWN_HEADROOM = 1.3f;
+
+    // Bandwidth needed relative to the bitrate to step up to a level
+    private static final float UP_HEADROOM = 2.0f;
+
+    // Minimum time to stay at a level after stepping down
+    private static final long UP_HOLD_TIME = 60 * 1000; // 1 minute
+
+    private int mLevel = 0;
+    private long mLastDownSwitch = 0;
+
+    /**
+     * Chooses the bitrate for the next track
+     *
+     * @param bandwidth estimated bandwidth in bits per second (-1 if unknown)
+     * @param stalled whether the previous track had to re-buffer
+     * @param now current time in msecs (elapsed realtime)
+     * @return the bitrate in kbps, or {@link #ORIGINAL}
+     */
+    public synchronized int selectBitrate(long bandwidth, boolean stalled, long now) {
+
+        int level = mLevel;
+
+        if (stalled || (bandwidth >= 0 && bandwidth < requiredBandwidth(level, DOWN_HEADROOM))) {
+
+            // Step down to the best level the bandwidth supports, at least one level if we stalled
+            level = stalled ? Math.min(level + 1, BITRATES.length - 1) : level;
+
+            while (level < BITRATES.length - 1 && bandwidth >= 0 && bandwidth < requiredBandwidth(level, DOWN_HEADROOM)) {
+                level++;
+            }
+        }
+        else if (level > 0 && bandwidth >= 0 && now - mLastDownSwitch >= UP_HOLD_TIME
+                && bandwidth >= requiredBandwidth(level - 1, UP_HEADROOM)) {
+
+            level--;
+        }
+
+        if (level != mLevel) {
+            Log.i(TAG, "Stream quality " + describe(BITRATES[mLevel]) + " -> " + describe(BITRATES[level])
+                    + " (bandwidth: " + bandwidth + " bps, stalled: " + stalled + ")");
+
+            if (level > mLevel) {
+                mLastDownSwitch = now;
+            }
+
+            mLevel = level;
+        }
+
+        return BITRATES[mLevel];
+    }
+
+    public synchronized int getBitrate() {
+        return BITRATES[mLevel];
+    }
+
+    /**
+     * Returns the bitrate (kbps) a stream requested at the bitrate is taken to have,
+     * the nominal one for {@link #ORIGINAL}
+     */
+    public static int nominalKbps(int bitrate) {
+        return bitrate == ORIGINAL ? ORIGINAL_NOMINAL_KBPS : bitrate;
+    }
+
+    private static long requiredBandwidth(int level, float headroom) {
+        return (long) (nominalKbps(BITRATES[level]) * 1000 * headroom);
+    }
+
+    private static String describe(int bitrate) {
+        return bitrate == ORIGINAL ? "original" : bitrate + "kbps";
+    }
+
+}
@@ -4,6 +4,7 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
@@ -14,8 +15,12 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.pugh.sockso.android.Preferences;
+import com.pugh.sockso.android.ServerFactory;
 import com.pugh.sockso.android.account.SocksoAccountAuthenticator;
 import com.pugh.sockso.android.data.MusicManager;
+import com.pugh.sockso.android.net.RequestContext;
+import com.pugh.sockso.android.net.RequestExecutor;
+import com.pugh.sockso.android.net.TrafficPolicy;
 
 public class SocksoSyncAdapter extends AbstractThreadedSyncAdapter {
 
@@ -26,6 +31,9 @@ public class SocksoSyncAdapter extends AbstractThreadedSyncAdapter {
     private AccountManager mAccountManager;
     private final Context mContext;
 
+    // Of the sync in progress, to cancel it with
+    private volatile RequestContext mSyncContext;
+
     public SocksoSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
 
@@ -57,6 +65,26 @@ public class SocksoSyncAdapter extends AbstractThreadedSyncAdapter {
             // TODO Wipe out the database if this is a new account!
         }
         
+        // Leave the library as it is, the sync manager tries again later
+        if ( ! ServerFactory.getServer(mContext).isAvailable() ) {
+            Log.i(TAG, "Server unavailable, not syncing");
+            syncResult.stats.numIoExceptions++;
+            return;
+        }
+
+        // Bulk work waits for an unmetered link, unless it's the first sync or was asked for
+        TrafficPolicy.watch(mContext);
+        boolean deferred = TrafficPolicy.isDeferred(RequestExecutor.PRIORITY_SYNC);
+
+        if ( deferred && ! isNewAccount && ! extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false) ) {
+            Log.i(TAG, "Metered link, not syncing");
+            syncResult.stats.numIoExceptions++;
+            return;
+        }
+
+        // Runs on this thread, but its traffic is bulk sync (throttled while a track streams)
+        mSyncContext = RequestContext.enter(RequestExecutor.PRIORITY_SYNC);
+
         try {
             long syncMarker = MusicManager.syncLibrary(mContext, lastSyncMarker);
             setServerSyncMarker(account, syncMarker);
@@ -64,6 +92,22 @@ public class SocksoSyncAdapter extends AbstractThreadedSyncAdapter {
         catch (Exception e) {
             Log.e(TAG, "Exception syncing library", e);
         }
+        finally {
+            RequestContext.exit();
+            mSyncContext = null;
+        }
+    }
+
+    @Override
+    public void onSyncCanceled() {
+        super.onSyncCanceled();
+
+        RequestContext context = mSyncContext;
+
+        if (context != null) {
+            Log.i(TAG, "Sync cancelled");
+            context.cancel();
+        }
     }
 
     /**
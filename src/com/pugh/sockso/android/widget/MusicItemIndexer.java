@@ -1,19 +1,24 @@
 package com.pugh.sockso.android.widget;
 
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
-import android.util.SparseIntArray;
 import android.widget.SectionIndexer;
 
 /**
  * A helper class for adapters that implement the SectionIndexer interface.
  * <p/>
- * If the items in the adapter are sorted by according to specified String types,
- * then this class provides a way to do fast indexing of large lists using binary search.
+ * If the items in the adapter are sorted by according to specified String types (or by
+ * values starting with them, e.g. the sort keys of a list sectioned by letter),
+ * then this class provides a way to do fast indexing of large lists.
  * <p/>
- * It caches the indices that have been determined through the binary search and also
- * invalidates the cache if changes occur in the cursor.
+ * The index is built once, in a single forward pass over the cursor, into two int arrays:
+ * the section of every row and the first row of every section. Both lookups are then
+ * just array reads, so the fast scroller doesn't have to touch the cursor at all.
  * <p/>
- * If the cursor changes, then the adapter must call {@link #setCursor} to invalidate the cached sections indexes
+ * If the cursor changes, then the adapter must call {@link #setCursor} to rebuild the index
+ * <p/>
+ * An indexer can also be built from the number of rows in each section (see
+ * {@link #setSectionCounts}), when they are known up front and the list isn't all loaded.
  */
 public class MusicItemIndexer implements SectionIndexer {
 
@@ -38,32 +43,62 @@ public class MusicItemIndexer implements SectionIndexer {
     private int mSectionsLength;
 
     /**
-     * This contains a cache of the computed indices so far. 
-     * It will get reset whenever the dataset changes or the cursor changes.
+     * Section index of each row in the cursor, null if built from section counts.
+     */
+    private int[] mRowSections;
+
+    /**
+     * Number of rows in the list.
+     */
+    private int mRowCount;
+
+    /**
+     * First row of each section. Missing sections point at the start of the next
+     * section (or the end of the list), which is what the FastScroller expects.
      */
-    private SparseIntArray mSectionsMap;
+    private int[] mSectionStarts;
+
+    /**
+     * Reused to read the sorted column without allocating a String per row.
+     */
+    private final CharArrayBuffer mBuffer = new CharArrayBuffer(64);
 
     /**
      * Constructs the indexer.
-     * 
+     *
      * @param cursor the Cursor containing the data set
      * @param sortedColumnIndex the column number in the cursor that is sorted alphabetically
      * @param sections string array containing the sections.
      */
     public MusicItemIndexer(Cursor cursor, int sortedColumnIndex, CharSequence[] sections) {
 
-        mDataCursor     = cursor;
         mColumnIndex    = sortedColumnIndex;
 
         mSections       = sections;
         mSectionsLength = sections.length;
-        
-        mSectionsMap    = new SparseIntArray(mSectionsLength);
+
+        setCursor(cursor);
+    }
+
+    /**
+     * Constructs the indexer from the number of rows in each section, without a cursor.
+     *
+     * @param sections string array containing the sections.
+     * @param sectionCounts the number of rows in each section, in the same order
+     */
+    public MusicItemIndexer(CharSequence[] sections, int[] sectionCounts) {
+
+        mColumnIndex    = -1;
+
+        mSections       = sections;
+        mSectionsLength = sections.length;
+
+        setSectionCounts(sectionCounts);
     }
 
     /**
      * Returns the section array constructed from the section array provided in the constructor.
-     * 
+     *
      * @return the section array
      */
     public Object[] getSections() {
@@ -71,200 +106,212 @@ public class MusicItemIndexer implements SectionIndexer {
     }
 
     /**
-     * Sets a new cursor as the data set and resets the cache of indices.
-     * 
+     * Sets a new cursor as the data set and rebuilds the index.
+     *
      * @param cursor the new cursor to use as the data set
      */
     public void setCursor(Cursor cursor) {
 
         mDataCursor = cursor;
-        mSectionsMap.clear();
+        buildIndex();
     }
 
+    /**
+     * Rebuilds the index from the number of rows in each section (in the order of the sections),
+     * no cursor is needed.
+     *
+     * @param sectionCounts rows per section, missing ones count as empty
+     */
+    public void setSectionCounts(int[] sectionCounts) {
+
+        mDataCursor    = null;
+        mRowSections   = null;
+        mSectionStarts = new int[mSectionsLength];
+
+        int row = 0;
+
+        // Empty sections start where the next one does, as for a cursor
+        for (int i = 0; i < mSectionsLength; i++) {
+
+            mSectionStarts[i] = row;
+
+            if (i < sectionCounts.length) {
+                row += sectionCounts[i];
+            }
+        }
+
+        mRowCount = row;
+    }
 
     /**
-     * Performs a binary search or cache lookup to find the first row that
-     * matches a given section's starting letter.
-     * 
+     * Returns the first row of the given section.
+     *
      * @param sectionIndex the section to search for
-     * @return the row index of the first occurrence, or the nearest next letter.
+     * @return the row index of the first occurrence, or the nearest next section.
      *         For instance, if searching for "T" and no "T" is found, then the first
-     *         row starting with "U" or any higher letter is returned. 
+     *         row starting with "U" or any higher letter is returned.
      *         If there is no data following "T" at all, then the list size is returned.
      */
     public int getPositionForSection(int sectionIndex) {
 
-        final SparseIntArray sectionsMap = mSectionsMap;
-        final Cursor cursor = mDataCursor;
-
-        if (cursor == null || mSections.length == 0) {
+        if (mSectionsLength == 0 || sectionIndex <= 0) {
             return 0;
         }
 
-        // Check bounds
-        if (sectionIndex <= 0) {
-            return 0;
-        }
-        
         // If the sectionIndex is greater than the length of the sections, set it to the end
         if (sectionIndex >= mSectionsLength) {
             sectionIndex = mSectionsLength - 1;
         }
 
-        int savedCursorPos = cursor.getPosition();
-
-        int count = cursor.getCount();
-        int start = 0;
-        int end = count;
-        int pos;
-
-        CharSequence section = mSections[sectionIndex];
-        int key = sectionIndex;
-        
-        // Check map
-        if (Integer.MIN_VALUE != (pos = sectionsMap.get(key, Integer.MIN_VALUE))) {
-            
-            // Is it approximate? Using negative value to indicate that it's
-            // an approximation and positive value when it is the accurate position.
-            if (pos < 0) {
-                pos = -pos;
-                end = pos;
+        return mSectionStarts[sectionIndex];
+    }
+
+    /**
+     * Returns the section index for a given position in the list
+     */
+    public int getSectionForPosition(int position) {
+
+        if (position < 0 || mRowCount == 0) {
+            return 0;
+        }
+
+        if (position >= mRowCount) {
+            position = mRowCount - 1;
+        }
+
+        if (mRowSections == null) {
+            return findSectionOfRow(position);
+        }
+
+        return mRowSections[position];
+    }
+
+    // Binary search for the last section starting at or before the row, which is the
+    // non-empty one (empty sections share the start of the section after them)
+    private int findSectionOfRow(int row) {
+
+        int low  = 0;
+        int high = mSectionsLength - 1;
+
+        while (low < high) {
+
+            int mid = (low + high + 1) >>> 1;
+
+            if (mSectionStarts[mid] <= row) {
+                low = mid;
             }
             else {
-                // Not approximate, this is the confirmed start of section, return it
-                return pos;
+                high = mid - 1;
             }
         }
 
-        // Do we have the position of the previous section?
-        if (sectionIndex > 0) {
-            
-            int prevLetterPos = mSectionsMap.get(sectionIndex - 1, Integer.MIN_VALUE);
-            
-            if (prevLetterPos != Integer.MIN_VALUE) {
-                start = Math.abs(prevLetterPos);
-            }
-        }
+        return low;
+    }
+
+    // One pass over the (sorted) cursor filling in the row and section arrays
+    private void buildIndex() {
+
+        final Cursor cursor = mDataCursor;
+        final int count = (cursor == null) ? 0 : cursor.getCount();
+
+        mRowCount      = count;
+        mRowSections   = new int[count];
+        mSectionStarts = new int[mSectionsLength];
+
+        int nextSection = 0; // first section that hasn't got its start set yet
 
-        // Now that we have a possibly optimized start and end, let's binary search
+        if (count > 0) {
 
-        pos = (end + start) / 2;
+            int savedCursorPos = cursor.getPosition();
 
-        while (pos < end) {
-            // Get section at pos
-            cursor.moveToPosition(pos);
-            String secName = cursor.getString(mColumnIndex);
-            
-            if (secName == null) {
-                if (pos == 0) {
-                    break;
+            // Rows usually come in long runs of the same value, so remember the last one
+            char[] lastValue = new char[mBuffer.data.length];
+            int lastLength   = -1;
+            int lastSection  = 0;
+
+            for (int row = 0; row < count && cursor.moveToPosition(row); row++) {
+
+                int section;
+
+                if (cursor.isNull(mColumnIndex)) {
+                    // Keep the sort order intact, a null belongs with the row before it
+                    section = lastSection;
                 }
                 else {
-                    pos--;
-                    continue;
-                }
-            }
-            
-            int diff = compare(secName, section.toString());
-            
-            // They aren't the same
-            if (diff != 0) {
-                
-                if (diff < 0) {
-                    // New start position
-                    start = pos + 1;
-                    
-                    // If we're at the end of the list of sections, since the list is sorted,
-                    // then the position for this section is the end of the list
-                    if (start >= count) {
-                        pos = count;
-                        break;
+                    cursor.copyStringToBuffer(mColumnIndex, mBuffer);
+
+                    if (mBuffer.sizeCopied == lastLength && regionEquals(mBuffer.data, lastValue, lastLength)) {
+                        section = lastSection;
+                    }
+                    else {
+                        section = findSection(mBuffer.data, mBuffer.sizeCopied);
+
+                        if (lastValue.length < mBuffer.data.length) {
+                            lastValue = new char[mBuffer.data.length];
+                        }
+                        System.arraycopy(mBuffer.data, 0, lastValue, 0, mBuffer.sizeCopied);
+                        lastLength = mBuffer.sizeCopied;
                     }
                 }
-                else {
-                    // New end position
-                    end = pos;
-                }
-            }
-            else {
-                // They're the same, but that doesn't mean it's the start
-                if (start == pos) {
-                    // Found the start, we're done :)
-                    break;
-                }
-                else {
-                    // Need to go further lower to find the starting row (we could be in the middle)
-                    end = pos;
+
+                mRowSections[row] = section;
+                lastSection = section;
+
+                // This row starts its own section and any missing ones before it
+                while (nextSection <= section) {
+                    mSectionStarts[nextSection++] = row;
                 }
             }
-            
-            // Get the new midpoint
-            pos = (start + end) / 2;
+
+            // Set the cursor back to its original position
+            cursor.moveToPosition(savedCursorPos);
         }
-        
-        // Remember where we found the section
-        mSectionsMap.put(key, pos);
-        
-        // Set the cursor back to its original position
-        cursor.moveToPosition(savedCursorPos);
-        
-        return pos;
-    }
 
-    /**
-     * Returns the section index for a given position in the list by querying the item
-     * and comparing it with all items in the section array.
-     */
-    public int getSectionForPosition(int position) {
+        // Sections after the last row start at the end of the list
+        while (nextSection < mSectionsLength) {
+            mSectionStarts[nextSection++] = count;
+        }
+    }
 
-        int savedCursorPos = mDataCursor.getPosition();
-        mDataCursor.moveToPosition(position);
-        
-        String curName = mDataCursor.getString(mColumnIndex);
-        mDataCursor.moveToPosition(savedCursorPos);
+    // Linear search, as there are only a few items in the section index.
+    // A value belongs to the section it starts with (e.g. "beatles, the" is under "B")
+    private int findSection(char[] value, int length) {
 
-        // Linear search, as there are only a few items in the section index
-        // Could speed this up later if it actually gets used.
         for (int i = 0; i < mSectionsLength; i++) {
-            
+
             CharSequence section = mSections[i];
-            
-            if (curName.equalsIgnoreCase(section.toString())) {
+
+            if (section.length() <= length && startsWithIgnoreCase(value, section)) {
                 return i;
             }
         }
 
-        return 0; // Don't recognize the letter - falls under zero'th section
+        return 0; // Don't recognize the value - falls under zero'th section
     }
-    
-    // Order of the section array used in the constructor
-    private int compare(String left, String right) {
-        
-        int leftIndex  = 0;
-        int rightIndex = 0;
-        
-        boolean foundLeft  = false;
-        boolean foundRight = false;
-        
-        for (int i = 0; i < mSectionsLength; i++) {
-            
-            String section = mSections[i].toString();
-            
-            if (!foundLeft && left.equalsIgnoreCase(section)) {
-                leftIndex = i;
-                foundLeft = true;
-            }
-            
-            if (!foundRight && right.equalsIgnoreCase(section)) {
-                rightIndex = i;
-                foundRight = true;
+
+    private static boolean startsWithIgnoreCase(char[] value, CharSequence section) {
+
+        for (int i = section.length() - 1; i >= 0; i--) {
+
+            char a = section.charAt(i);
+            char b = value[i];
+
+            if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+                return false;
             }
-         
-            if (foundLeft && foundRight) {
-                break;
+        }
+
+        return true;
+    }
+
+    private static boolean regionEquals(char[] a, char[] b, int length) {
+
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
             }
         }
-        
-        return (leftIndex - rightIndex);
+
+        return true;
     }
 }
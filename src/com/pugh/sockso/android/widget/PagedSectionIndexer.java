@@ -0,0 +1,170 @@
+package com.pugh.sockso.android.widget;
+
+import android.database.Cursor;
+import android.widget.SectionIndexer;
+
+import com.pugh.sockso.android.data.PagedCursorLoader.PagedCursor;
+import com.pugh.sockso.android.data.SocksoProvider.SectionColumns;
+
+/**
+ * Section indexer for the lists that are loaded a page at a time.
+ * <p/>
+ * The sections are seeded from the list's rows in the sections table (see {@link SectionColumns}),
+ * which sync keeps up to date, so the fast scroller knows where every section starts without
+ * the list cursor being read, or even loaded. Until they've been loaded (or if they're out of
+ * date), the rows loaded so far are indexed instead.
+ * <p/>
+ * Jumping to a section that hasn't been loaded yet scrolls to the end of what's loaded and has
+ * the {@link PagingScrollListener} load down to the section and scroll there.
+ */
+public class PagedSectionIndexer implements SectionIndexer {
+
+    private final CharSequence[] mSections;
+    private final String mSortColumn;
+
+    private PagingScrollListener mPager;
+
+    // Index from the sections table, null if there isn't one
+    private MusicItemIndexer mSeededIndexer;
+    private int mSeededRowCount;
+
+    // Index of the loaded rows, built when first needed
+    private MusicItemIndexer mCursorIndexer;
+    private boolean mCursorIndexed = false;
+
+    private Cursor mCursor;
+    private int mLoadedCount;
+
+    /**
+     * @param sections the sections, in list order (as the SectionColumns.SECTION values)
+     * @param sortColumn the column of the list cursor the list is sorted on
+     */
+    public PagedSectionIndexer(CharSequence[] sections, String sortColumn) {
+
+        mSections   = sections;
+        mSortColumn = sortColumn;
+    }
+
+    public void setPagingListener(PagingScrollListener pager) {
+        mPager = pager;
+    }
+
+    /**
+     * Sets the list cursor (the rows loaded so far)
+     */
+    public void setCursor(Cursor cursor) {
+
+        mCursor        = cursor;
+        mLoadedCount   = (cursor == null) ? 0 : cursor.getCount();
+        mCursorIndexed = false;
+    }
+
+    /**
+     * Seeds the index from a cursor over the list's rows of the sections table, or clears it (null)
+     */
+    public void setSectionCounts(Cursor sections) {
+
+        mSeededIndexer  = null;
+        mSeededRowCount = 0;
+
+        if (sections == null || ! sections.moveToFirst()) {
+            return;
+        }
+
+        final int sectionCol = sections.getColumnIndexOrThrow(SectionColumns.SECTION);
+        final int countCol   = sections.getColumnIndexOrThrow(SectionColumns.ROW_COUNT);
+
+        int[] counts = new int[mSections.length];
+
+        do {
+            int section = findSection(sections.getString(sectionCol));
+            int count   = sections.getInt(countCol);
+
+            counts[section] += count;
+            mSeededRowCount += count;
+        }
+        while (sections.moveToNext());
+
+        mSeededIndexer = new MusicItemIndexer(mSections, counts);
+    }
+
+    @Override
+    public Object[] getSections() {
+        return mSections;
+    }
+
+    @Override
+    public int getPositionForSection(int section) {
+
+        MusicItemIndexer indexer = getIndexer();
+
+        if (indexer == null || mLoadedCount == 0) {
+            return 0;
+        }
+
+        int position = indexer.getPositionForSection(section);
+
+        if (mPager != null) {
+            mPager.scrollToWhenLoaded(position >= mLoadedCount ? position : -1);
+        }
+
+        // The list can only be scrolled as far as the rows it has
+        return Math.min(position, mLoadedCount - 1);
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+
+        MusicItemIndexer indexer = getIndexer();
+
+        return (indexer == null) ? 0 : indexer.getSectionForPosition(position);
+    }
+
+    private MusicItemIndexer getIndexer() {
+
+        if (mSeededIndexer != null && isSeedCurrent()) {
+            return mSeededIndexer;
+        }
+
+        if (! mCursorIndexed) {
+
+            if (mCursor == null) {
+                mCursorIndexer = null;
+            }
+            else if (mCursorIndexer == null) {
+                mCursorIndexer = new MusicItemIndexer(mCursor, mCursor.getColumnIndexOrThrow(mSortColumn), mSections);
+            }
+            else {
+                mCursorIndexer.setCursor(mCursor);
+            }
+
+            mCursorIndexed = true;
+        }
+
+        return mCursorIndexer;
+    }
+
+    // The sections are out of date if they don't add up to the rows in the list
+    private boolean isSeedCurrent() {
+
+        if (mLoadedCount > mSeededRowCount) {
+            return false;
+        }
+
+        boolean allLoaded = ! (mCursor instanceof PagedCursor) || ! ((PagedCursor) mCursor).hasMore();
+
+        return ! allLoaded || mLoadedCount == mSeededRowCount;
+    }
+
+    private int findSection(String value) {
+
+        for (int i = 0; i < mSections.length; i++) {
+            if (mSections[i].toString().equalsIgnoreCase(value)) {
+                return i;
+            }
+        }
+
+        return 0; // like MusicItemIndexer, unknown values go in the first section
+    }
+
+}
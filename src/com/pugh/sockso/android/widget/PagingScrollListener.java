@@ -0,0 +1,85 @@
+package com.pugh.sockso.android.widget;
+
+import android.database.Cursor;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.Loader;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+import com.pugh.sockso.android.data.PagedCursorLoader;
+
+/**
+ * Asks a {@link PagedCursorLoader} for the next page as the list scrolls towards the end
+ * of the rows loaded so far.
+ * <p/>
+ * It can also jump to a row that hasn't been loaded yet (see {@link #scrollToWhenLoaded(int)}),
+ * the list is scrolled there once the loader has got that far.
+ */
+public class PagingScrollListener implements OnScrollListener {
+
+    private final LoaderManager mLoaderManager;
+    private final int mLoaderId;
+
+    // Row to scroll to once it's loaded, -1 for none
+    private int mPendingPosition = -1;
+
+    public PagingScrollListener(LoaderManager loaderManager, int loaderId) {
+
+        mLoaderManager = loaderManager;
+        mLoaderId      = loaderId;
+    }
+
+    /**
+     * Loads the list down to the given row and then scrolls to it, -1 cancels a previous request
+     */
+    public void scrollToWhenLoaded(int position) {
+
+        mPendingPosition = position;
+
+        PagedCursorLoader loader = getLoader();
+
+        if (position >= 0 && loader != null) {
+            loader.loadThrough(position);
+        }
+    }
+
+    @Override
+    public void onScroll(final AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+
+        if (totalItemCount == 0) {
+            return;
+        }
+
+        if (mPendingPosition >= 0 && mPendingPosition < totalItemCount) {
+
+            final int position = mPendingPosition;
+            mPendingPosition = -1;
+
+            // Not in the middle of the layout that loaded the rows
+            view.post(new Runnable() {
+                public void run() {
+                    view.setSelection(position);
+                }
+            });
+            return;
+        }
+
+        PagedCursorLoader loader = getLoader();
+
+        if (loader != null) {
+            loader.loadNextPageIfNeeded(firstVisibleItem + visibleItemCount, totalItemCount);
+        }
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    private PagedCursorLoader getLoader() {
+
+        Loader<Cursor> loader = mLoaderManager.getLoader(mLoaderId);
+
+        return (loader instanceof PagedCursorLoader) ? (PagedCursorLoader) loader : null;
+    }
+
+}